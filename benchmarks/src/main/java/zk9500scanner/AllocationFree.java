@@ -0,0 +1,17 @@
+package zk9500scanner;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a benchmark that must not allocate in steady state. {@link BenchmarkRunner} fails the run when such a benchmark allocates more than a few bytes per operation,
+ * whether or not a baseline is given.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface AllocationFree {
+}
@@ -0,0 +1,240 @@
+package zk9500scanner;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, writes a JSON report and optionally acts as a regression gate against a previous report.
+ * <p>
+ * Usage: {@code java -jar benchmarks.jar [--baseline=previous.json] [--tolerance=0.10] [--result=jmh-result.json] [JMH options]}. With a baseline the process exits
+ * with status 1 when any benchmark is slower, has a higher p99 or allocates more per operation than the baseline by more than the tolerance.
+ * </p>
+ * <p>
+ * Benchmarks marked {@link AllocationFree} are checked on every run: the process exits with status 1 when one allocates more than {@value #ALLOCATION_NOISE} bytes per
+ * operation.
+ * </p>
+ */
+public class BenchmarkRunner {
+	private static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+
+	/** Bytes per operation tolerated as measurement noise on allocation-free benchmarks. */
+	private static final int ALLOCATION_NOISE = 16;
+
+	public static void main(String[] args) throws Exception {
+		String baseline = null;
+		String result = "jmh-result.json";
+		double tolerance = 0.10;
+		List<String> jmhArgs = new ArrayList<>();
+
+		for (String arg : args) {
+			if (arg.startsWith("--baseline=")) {
+				baseline = arg.substring("--baseline=".length());
+			} else if (arg.startsWith("--tolerance=")) {
+				tolerance = Double.parseDouble(arg.substring("--tolerance=".length()));
+			} else if (arg.startsWith("--result=")) {
+				result = arg.substring("--result=".length());
+			} else {
+				jmhArgs.add(arg);
+			}
+		}
+
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(jmhArgs.toArray(new String[0])))
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result(result)
+				.build();
+
+		Collection<RunResult> results = new Runner(options).run();
+		List<String> regressions = checkAllocationFree(results);
+
+		if (baseline != null) {
+			regressions.addAll(compare(results, readBaseline(baseline), tolerance));
+		}
+
+		for (String regression : regressions) {
+			System.err.println("REGRESSION " + regression);
+		}
+
+		if (!regressions.isEmpty()) {
+			System.exit(1);
+		}
+
+		if (baseline != null) {
+			System.out.println("No regressions against " + baseline);
+		}
+	}
+
+	/**
+	 * Checks that the benchmarks marked {@link AllocationFree} did not allocate.
+	 */
+	private static List<String> checkAllocationFree(Collection<RunResult> results) throws ClassNotFoundException {
+		List<String> regressions = new ArrayList<>();
+
+		for (RunResult run : results) {
+			BenchmarkParams params = run.getParams();
+			String benchmark = params.getBenchmark();
+			int separator = benchmark.lastIndexOf('.');
+
+			if (!isAllocationFree(Class.forName(benchmark.substring(0, separator)), benchmark.substring(separator + 1))) {
+				continue;
+			}
+
+			Map<String, String> values = new TreeMap<>();
+			for (String key : params.getParamsKeys()) {
+				values.put(key, params.getParam(key));
+			}
+
+			double allocation = getAllocation(run);
+
+			if (allocation > ALLOCATION_NOISE) {
+				regressions.add(String.format("%s allocates %.1f B/op but must be allocation-free", key(benchmark, params.getMode().shortLabel(), values), allocation));
+			}
+		}
+
+		return regressions;
+	}
+
+	private static boolean isAllocationFree(Class<?> type, String name) {
+		for (Method method : type.getMethods()) {
+			if (method.getName().equals(name) && method.isAnnotationPresent(AllocationFree.class)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Scores of one benchmark from a previous report.
+	 */
+	private static class Baseline {
+		double score;
+		double p99 = Double.NaN;
+		double allocation = Double.NaN;
+	}
+
+	private static Map<String, Baseline> readBaseline(String path) throws IOException {
+		JSONArray runs = new JSONArray(new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8));
+		Map<String, Baseline> baselines = new HashMap<>();
+
+		for (int i = 0; i < runs.length(); i++) {
+			JSONObject run = runs.getJSONObject(i);
+			JSONObject primary = run.getJSONObject("primaryMetric");
+			Map<String, String> params = new TreeMap<>();
+			JSONObject jsonParams = run.optJSONObject("params");
+
+			if (jsonParams != null) {
+				for (String key : jsonParams.keySet()) {
+					params.put(key, jsonParams.getString(key));
+				}
+			}
+
+			Baseline baseline = new Baseline();
+			baseline.score = primary.getDouble("score");
+
+			JSONObject percentiles = primary.optJSONObject("scorePercentiles");
+			if (percentiles != null && percentiles.has("99.0")) {
+				baseline.p99 = percentiles.getDouble("99.0");
+			}
+
+			JSONObject secondary = run.optJSONObject("secondaryMetrics");
+			if (secondary != null) {
+				for (String key : secondary.keySet()) {
+					if (stripPrefix(key).equals(ALLOCATION_METRIC)) {
+						baseline.allocation = secondary.getJSONObject(key).getDouble("score");
+					}
+				}
+			}
+
+			baselines.put(key(run.getString("benchmark"), run.getString("mode"), params), baseline);
+		}
+
+		return baselines;
+	}
+
+	private static List<String> compare(Collection<RunResult> results, Map<String, Baseline> baselines, double tolerance) {
+		List<String> regressions = new ArrayList<>();
+
+		for (RunResult run : results) {
+			BenchmarkParams params = run.getParams();
+			Map<String, String> values = new TreeMap<>();
+			for (String key : params.getParamsKeys()) {
+				values.put(key, params.getParam(key));
+			}
+
+			String key = key(params.getBenchmark(), params.getMode().shortLabel(), values);
+			Baseline baseline = baselines.get(key);
+			if (baseline == null) {
+				continue;
+			}
+
+			double score = run.getPrimaryResult().getScore();
+			boolean higherIsBetter = params.getMode() == Mode.Throughput;
+
+			if (higherIsBetter ? score < baseline.score * (1 - tolerance) : score > baseline.score * (1 + tolerance)) {
+				regressions.add(String.format("%s score %.3f vs baseline %.3f", key, score, baseline.score));
+			}
+
+			if (params.getMode() == Mode.SampleTime && !Double.isNaN(baseline.p99)) {
+				double p99 = run.getPrimaryResult().getStatistics().getPercentile(99);
+				if (p99 > baseline.p99 * (1 + tolerance)) {
+					regressions.add(String.format("%s p99 %.3f vs baseline %.3f", key, p99, baseline.p99));
+				}
+			}
+
+			double allocation = getAllocation(run);
+
+			// allow a few bytes of noise on allocation-free benchmarks
+			if (!Double.isNaN(baseline.allocation) && allocation > baseline.allocation * (1 + tolerance) + 16) {
+				regressions.add(String.format("%s allocation %.1f B/op vs baseline %.1f B/op", key, allocation, baseline.allocation));
+			}
+		}
+
+		return regressions;
+	}
+
+	private static String key(String benchmark, String mode, Map<String, String> params) {
+		return benchmark + ":" + mode + params;
+	}
+
+	/**
+	 * Returns the allocation per operation the GC profiler measured in a run. JMH hands out its secondary results as raw types, so they are only looked up by name.
+	 *
+	 * @return The bytes allocated per operation, or NaN if the run was not profiled.
+	 */
+	private static double getAllocation(RunResult run) {
+		for (String metric : run.getSecondaryResults().keySet()) {
+			if (stripPrefix(metric).equals(ALLOCATION_METRIC)) {
+				return run.getSecondaryResults().get(metric).getScore();
+			}
+		}
+
+		return Double.NaN;
+	}
+
+	private static String stripPrefix(String metric) {
+		// older JMH versions prefix profiler metrics with a middle dot
+		return metric.startsWith("\u00b7") ? metric.substring(1) : metric;
+	}
+}
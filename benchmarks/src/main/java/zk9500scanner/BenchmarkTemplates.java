@@ -0,0 +1,84 @@
+package zk9500scanner;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.logging.Level;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Synthetic template population shared by the benchmarks. Probes are noisy copies of enrolled templates so that they score above
+ * {@link SimulatedSensorDriver#MATCH_THRESHOLD} against their source and near zero against everything else.
+ */
+final class BenchmarkTemplates {
+	/** Fraction of bytes changed when deriving a probe from an enrolled template. */
+	private static final double PROBE_NOISE = 0.1;
+
+	private BenchmarkTemplates() {
+	}
+
+	static {
+		// keep library logging out of the measurements
+		Main.log.setLevel(Level.WARNING);
+	}
+
+	/**
+	 * Creates a library whose snapshots go to a fresh temporary directory.
+	 */
+	static Library library(SensorDriver driver) {
+		try {
+			System.setProperty("library.snapshot", Files.createTempDirectory("zk9500-bench").toString());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return new Library(driver);
+	}
+
+	static byte[][] population(int size, long seed) {
+		Random random = new Random(seed);
+		byte[][] templates = new byte[size][Library.TEMPLATE_SIZE];
+
+		for (byte[] template : templates) {
+			random.nextBytes(template);
+		}
+
+		return templates;
+	}
+
+	static byte[] probe(byte[] enrolled, Random random) {
+		byte[] probe = enrolled.clone();
+
+		for (int i = 0; i < probe.length; i++) {
+			if (random.nextDouble() < PROBE_NOISE) {
+				probe[i] ^= (byte) (1 + random.nextInt(255));
+			}
+		}
+
+		return probe;
+	}
+
+	/**
+	 * Adds the population straight to the library's algorithm database, bypassing base64 so that setup stays fast for large sizes.
+	 */
+	static void enroll(Library library, byte[][] templates) {
+		for (int i = 0; i < templates.length; i++) {
+			library.getDatabase().add(i + 1, templates[i]);
+		}
+	}
+
+	/**
+	 * Builds a `library-init` message the way the web app sends it.
+	 */
+	static String libraryInitMessage(SensorDriver driver, byte[][] templates) {
+		JSONArray fingerprints = new JSONArray();
+
+		for (int i = 0; i < templates.length; i++) {
+			fingerprints.put(new JSONObject().put("id", i + 1).put("data", driver.blobToBase64(templates[i], Library.TEMPLATE_SIZE)));
+		}
+
+		return new JSONObject().put("event", "library-init").put("fingerprints", fingerprints).toString();
+	}
+}
@@ -0,0 +1,94 @@
+package zk9500scanner;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 1:N identification of a scan against libraries of increasing size, on one shard or spread over eight shards searched in parallel, optionally followed by encoding the `biometric` event as JSON text or as a binary frame, as the
+ * scan handler in {@link Main} does. {@code identify} measures the JSON result API, {@code identifyInto} the allocation-free one used by the scan handler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class IdentifyBenchmark {
+	private static final int PROBES = 64;
+
+	@Param({ "1000", "10000", "50000", "200000" })
+	public int librarySize;
+
+	@Param({ "1", "8" })
+	public int shards;
+
+	private SensorDriver driver;
+	private Library library;
+	private byte[][] probes;
+	private int next = 0;
+	private final int[] match = new int[2];
+
+	@Setup(Level.Trial)
+	public void setup() {
+		System.setProperty("library.shards", String.valueOf(shards));
+		driver = new SimulatedSensorDriver(null, 1, 1);
+		library = BenchmarkTemplates.library(driver);
+
+		byte[][] templates = BenchmarkTemplates.population(librarySize, 42);
+		BenchmarkTemplates.enroll(library, templates);
+
+		Random random = new Random(7);
+		probes = new byte[PROBES][];
+		for (int i = 0; i < PROBES; i++) {
+			probes[i] = BenchmarkTemplates.probe(templates[random.nextInt(librarySize)], random);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		library.close();
+	}
+
+	@Benchmark
+	public JSONObject identify() throws Exception {
+		return library.identify(nextProbe());
+	}
+
+	@Benchmark
+	public boolean identifyInto() throws Exception {
+		return library.identify(nextProbe(), match);
+	}
+
+	@Benchmark
+	public String identifyAndBuildEvent() throws Exception {
+		library.identify(nextProbe(), match);
+		return Main.toBiometricEvent(match[0], match[1], System.currentTimeMillis()).toText();
+	}
+
+	@Benchmark
+	public ByteBuffer identifyAndBuildBinaryEvent() throws Exception {
+		library.identify(nextProbe(), match);
+		return Main.toBiometricEvent(match[0], match[1], System.currentTimeMillis()).toBinary();
+	}
+
+	private byte[] nextProbe() {
+		next = (next + 1) % PROBES;
+		return probes[next];
+	}
+}
@@ -0,0 +1,64 @@
+package zk9500scanner;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A complete single-message `library-init`: streaming the message received by {@link SocketServer} through {@link TemplateMessageReader} into the library's decode
+ * pipeline and committing it. Each invocation rebuilds the whole database, so this runs in single-shot mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class LibraryInitBenchmark {
+	@Param({ "1000", "10000", "50000", "200000" })
+	public int librarySize;
+
+	private SensorDriver driver;
+	private Library library;
+	private String message;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		driver = new SimulatedSensorDriver(null, 1, 1);
+		library = BenchmarkTemplates.library(driver);
+		message = BenchmarkTemplates.libraryInitMessage(driver, BenchmarkTemplates.population(librarySize, 42));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		library.close();
+	}
+
+	@Benchmark
+	public Library initialize() throws Exception {
+		TemplateMessageReader.read(new StringReader(message), header -> begin());
+		library.commitInitialize().join();
+		return library;
+	}
+
+	private LibraryLoader begin() {
+		try {
+			return library.beginInitialize(librarySize);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package zk9500scanner;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full three-scan enrollment through {@link RegistrationManager#process(RegistrationSession, Scan)}, ending with {@link Library#registerTemplates(int, byte[][])}.
+ * The first scan runs the duplicate check against the whole library, so cost depends on the library size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class RegistrationBenchmark {
+	@Param({ "1000", "10000", "50000", "200000" })
+	public int librarySize;
+
+	private SensorDriver driver;
+	private Library library;
+	private RegistrationManager registrations;
+	private Scan[] scans;
+	private int registrationID;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		driver = new SimulatedSensorDriver(null, 1, 1);
+		library = BenchmarkTemplates.library(driver);
+		BenchmarkTemplates.enroll(library, BenchmarkTemplates.population(librarySize, 42));
+
+		// a finger that is not enrolled yet, presented three times
+		Random random = new Random(11);
+		byte[] finger = BenchmarkTemplates.population(1, 1234)[0];
+		scans = new Scan[Library.REG_TEMPLATE_COUNT];
+		for (int i = 0; i < scans.length; i++) {
+			byte[] probe = BenchmarkTemplates.probe(finger, random);
+			scans[i] = new Scan(0, probe, probe.length, Scan.FAKE_STATUS_UNCHECKED, System.nanoTime());
+		}
+
+		// hold detection off: the three scans stand for three separate touches
+		registrations = new RegistrationManager(library, new HoldCache(library, 0, 0), TimeUnit.MINUTES.toMillis(10));
+
+		registrationID = librarySize + 1;
+	}
+
+	@TearDown(Level.Invocation)
+	public void unregister() {
+		library.getDatabase().remove(registrationID);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		registrations.close();
+		library.close();
+	}
+
+	@Benchmark
+	public Event enroll() {
+		registrations.start(0, registrationID, null);
+		Event event = null;
+
+		for (Scan scan : scans) {
+			event = registrations.process(registrations.get(0), scan);
+			if (event == null || event.getName().equals(Event.REGISTRATION_ERROR)) {
+				throw new IllegalStateException("Enrollment rejected: " + (event != null ? event.toText() : "session replaced"));
+			}
+		}
+
+		return event;
+	}
+}
@@ -0,0 +1,95 @@
+package zk9500scanner;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The work done for every capture before an event is built, as on the `process` stage: copying the sensor buffer into a pooled {@link Scan}, the finger-hold check,
+ * and for a new finger the 1:N identification. Both cases must not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class ScanPathBenchmark {
+	private static final int PROBES = 64;
+
+	@Param({ "100" })
+	public int librarySize;
+
+	private SensorDriver driver;
+	private Library library;
+	private HoldCache holds;
+	private ObjectPool<Scan> scans;
+	private byte[][] probes;
+	private byte[] held;
+	private int next = 0;
+	private final int[] match = new int[2];
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		driver = new SimulatedSensorDriver(null, 1, 1);
+		library = BenchmarkTemplates.library(driver);
+
+		byte[][] templates = BenchmarkTemplates.population(librarySize, 42);
+		BenchmarkTemplates.enroll(library, templates);
+
+		Random random = new Random(7);
+		probes = new byte[PROBES][];
+		for (int i = 0; i < PROBES; i++) {
+			probes[i] = BenchmarkTemplates.probe(templates[random.nextInt(librarySize)], random);
+		}
+
+		// one finger resting on device 1, new fingers on device 0
+		scans = Scan.newPool(8);
+		holds = new HoldCache(library, TimeUnit.HOURS.toMillis(1), 8);
+		held = BenchmarkTemplates.probe(templates[0], random);
+		holds.add(new Scan(1, held, held.length, Scan.FAKE_STATUS_UNCHECKED, System.nanoTime()), null);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		holds.close();
+		library.close();
+	}
+
+	@Benchmark
+	@AllocationFree
+	public boolean heldFinger() {
+		Scan scan = Scan.obtain(scans, 1, held, held.length, Scan.FAKE_STATUS_UNCHECKED, System.nanoTime());
+		boolean repeat = holds.isRepeat(scan);
+		scan.recycle();
+		return repeat;
+	}
+
+	@Benchmark
+	@AllocationFree
+	public int newFinger() throws Exception {
+		next = (next + 1) % PROBES;
+		Scan scan = Scan.obtain(scans, 0, probes[next], Library.TEMPLATE_SIZE, Scan.FAKE_STATUS_UNCHECKED, System.nanoTime());
+		int id = 0;
+
+		if (!holds.isRepeat(scan) && library.identify(scan.getTemplate(), match)) {
+			id = match[0];
+		}
+
+		scan.recycle();
+		return id;
+	}
+}
@@ -0,0 +1,115 @@
+package zk9500scanner;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
+import org.json.JSONObject;
+
+/**
+ * One simulated dashboard of a {@link LoadTest}: a WebSocket client that negotiates the {@link BinaryProtocol} subprotocol, whose timestamps have millisecond
+ * precision, and measures every `biometric` event it receives.
+ * <p>
+ * The scan-to-client latency of an event is its arrival time less the capture time it carries; both clocks are the same when the load test runs on the server's host.
+ * The delivery lag is how much later this client received an event than the first client that received it.
+ * </p>
+ */
+public class LoadClient extends WebSocketClient {
+	private final int index;
+	private final LoadTest test;
+	private final Histogram latency;
+	private final Histogram lag;
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong other = new AtomicLong();
+
+	/** Receives the responses to commands, those carrying a `requestId`, on the client's thread. */
+	public Consumer<Event> onResponse = null;
+
+	/**
+	 * @param uri   The server address.
+	 * @param index The client number, from 0.
+	 * @param test  The load test collecting the measurements.
+	 */
+	public LoadClient(URI uri, int index, LoadTest test) {
+		super(uri, new Draft_6455(Collections.<IExtension>emptyList(), Collections.<IProtocol>singletonList(new Protocol(BinaryProtocol.SUBPROTOCOL))));
+		this.index = index;
+		this.test = test;
+		this.latency = new Histogram("scan-to-client", "ms");
+		this.lag = new Histogram("delivery-lag", "ns");
+	}
+
+	@Override
+	public void onOpen(ServerHandshake handshake) {
+	}
+
+	@Override
+	public void onMessage(String message) {
+		// only binary frames are expected once the subprotocol is negotiated
+		other.incrementAndGet();
+	}
+
+	@Override
+	public void onMessage(ByteBuffer bytes) {
+		long now = System.currentTimeMillis();
+		long arrival = System.nanoTime();
+
+		// image frames share the version byte but are not events
+		if (bytes.remaining() < BinaryProtocol.HEADER_SIZE || bytes.get(bytes.position() + 1) == BinaryProtocol.getType(Event.IMAGE_FRAME)) {
+			other.incrementAndGet();
+			return;
+		}
+
+		Event event = BinaryProtocol.decode(bytes);
+		JSONObject extra = event.getExtra();
+
+		if (extra != null && extra.has(SocketServer.REQUEST_ID)) {
+			Consumer<Event> consumer = onResponse;
+			if (consumer != null) {
+				consumer.accept(event);
+			}
+			return;
+		}
+
+		if (!Event.BIOMETRIC.equals(event.getName()) || !test.isMeasuring()) {
+			other.incrementAndGet();
+			return;
+		}
+
+		long millis = now - event.getTimestamp();
+
+		received.incrementAndGet();
+		latency.record(millis);
+		lag.record(test.delivered(extra != null ? extra.optInt("device") : 0, event.getTimestamp(), event.getId(), millis, arrival));
+	}
+
+	@Override
+	public void onClose(int code, String reason, boolean remote) {
+		if (remote) {
+			System.err.println("Client " + index + " closed by the server: " + code + " " + reason);
+		}
+	}
+
+	@Override
+	public void onError(Exception e) {
+		System.err.println("Client " + index + " error: " + e.getMessage());
+	}
+
+	/**
+	 * Summarizes what the client received while measuring.
+	 *
+	 * @return The `client` number, the `biometric` events `received` while measuring, the `other` messages, and the `scanToClient` latency and `deliveryLag` of the
+	 *         events received.
+	 */
+	public JSONObject toJSON() {
+		return new JSONObject().put("client", index).put("received", received.get()).put("other", other.get()).put("scanToClient", latency.toJSON())
+				.put("deliveryLag", lag.toJSON());
+	}
+}
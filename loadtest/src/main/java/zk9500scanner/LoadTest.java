@@ -0,0 +1,339 @@
+package zk9500scanner;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * End-to-end load test of a running scanner service: many dashboards connected at once, scans replayed by the simulated sensor, and library and registration commands
+ * on top, with the scan-to-client latency and per-client delivery lag written to a JSON report.
+ * <p>
+ * Usage: {@code java -jar loadtest.jar [--name=value ...]}, with the options listed in {@link #main(String[])}. Without `--url` the service is started in this
+ * process with the simulated driver replaying a generated capture file, so the test runs on any machine. With `--url` it targets a service started separately, e.g.
+ * {@code java -jar zk9500scanner.jar --driver=sim --capture=load.zkcap} after {@code java -jar loadtest.jar --prepare --capture=load.zkcap}; both runs must use the
+ * same `--library.size`, `--seed` and capture options so that the replayed scans match the library sent by the test.
+ * </p>
+ * <p>
+ * The test runs in phases: every client connects, client 0 sends the library in one `library-init` and waits for `library-init-ok`, the scans are left to warm up,
+ * and then every `biometric` event is measured for the test duration while client 0 sends `registration-start` commands, each cancelled as soon as it is answered.
+ * Finally the service's own `metrics` are fetched and added to the report.
+ * </p>
+ */
+public class LoadTest {
+	/** Fraction of bytes changed when deriving a replayed scan from an enrolled template. */
+	private static final double PROBE_NOISE = 0.1;
+
+	/** How long a command may wait for its response, in milliseconds. */
+	private static final long RESPONSE_TIMEOUT = 60000;
+
+	private final int clientCount = Integer.getInteger("clients", 10);
+	private final int librarySize = Integer.getInteger("library.size", 1000);
+	private final int captureRecords = Integer.getInteger("capture.records", 200);
+	private final int scanInterval = Integer.getInteger("scan.interval", 50);
+	private final long seed = Long.getLong("seed", 1);
+	private final int warmup = Integer.getInteger("warmup", 5);
+	private final int duration = Integer.getInteger("duration", 30);
+	private final double registrationRate = Double.parseDouble(System.getProperty("registration.rate", "1"));
+
+	private final List<LoadClient> clients = new ArrayList<>();
+	private final Map<String, Delivery> deliveries = new ConcurrentHashMap<>();
+	private final Map<String, CompletableFuture<Event>> pending = new ConcurrentHashMap<>();
+	private final Histogram scanToClient = new Histogram("scan-to-client", "ms");
+	private final Histogram deliveryLag = new Histogram("delivery-lag", "ns");
+	private final Histogram registrationStart = new Histogram("registration-start", "ns");
+	private final AtomicLong events = new AtomicLong();
+	private volatile boolean measuring = false;
+
+	/**
+	 * The first arrival of an event, and how many clients have received it.
+	 */
+	private static class Delivery {
+		final long firstArrival;
+		int clients = 0;
+
+		Delivery(long firstArrival) {
+			this.firstArrival = firstArrival;
+		}
+	}
+
+	/**
+	 * Runs the load test. Every {@code --name=value} argument is applied as a system property:
+	 * <ul>
+	 * <li>`url`: the service to test, e.g. `ws://localhost:1234`; without it the service is started in this process on `wsport` (default 51234)</li>
+	 * <li>`clients` (10): dashboards connected at once</li>
+	 * <li>`library.size` (1000): templates sent in the `library-init`</li>
+	 * <li>`capture`: the capture file to write, by default a temporary file; `capture.records` (200) scans, one every `scan.interval` (50) milliseconds</li>
+	 * <li>`sim.devices` (1): simulated sensors of the service started in this process, each replaying the capture</li>
+	 * <li>`warmup` (5) and `duration` (30): seconds before and of measurement</li>
+	 * <li>`registration.rate` (1): `registration-start` commands per second while measuring, 0 for none</li>
+	 * <li>`seed` (1): seed of the synthetic templates</li>
+	 * <li>`report` (`loadtest-report.json`): the report written at the end</li>
+	 * <li>`prepare`: only write the capture file, for a service started separately</li>
+	 * </ul>
+	 *
+	 * @param args The options.
+	 */
+	public static void main(String[] args) throws Exception {
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+
+			if (arg.startsWith("--") && separator > 2) {
+				System.setProperty(arg.substring(2, separator), arg.substring(separator + 1));
+			} else if (arg.startsWith("--")) {
+				System.setProperty(arg.substring(2), "true");
+			}
+		}
+
+		LoadTest test = new LoadTest();
+		byte[][] templates = test.population();
+		String capture = System.getProperty("capture");
+		Path path = capture != null ? Paths.get(capture) : Files.createTempFile("zk9500-load", ".zkcap");
+
+		test.writeCapture(path, templates);
+
+		if (Boolean.getBoolean("prepare")) {
+			System.out.println("Wrote " + test.captureRecords + " scans to " + path);
+			return;
+		}
+
+		String url = System.getProperty("url");
+
+		if (url == null) {
+			int port = Integer.getInteger("wsport", 51234);
+			url = "ws://localhost:" + port;
+
+			System.setProperty("wsport", String.valueOf(port));
+			System.setProperty("driver", "sim");
+			System.setProperty("capture", path.toString());
+			Main.main(new String[0]);
+		}
+
+		JSONObject report = test.run(new URI(url), templates);
+		String file = System.getProperty("report", "loadtest-report.json");
+
+		Files.write(Paths.get(file), report.toString(2).getBytes(StandardCharsets.UTF_8));
+		test.printSummary(report, file);
+		System.exit(0);
+	}
+
+	/**
+	 * Creates the enrolled templates, the same for every run with the same seed.
+	 */
+	private byte[][] population() {
+		Random random = new Random(seed);
+		byte[][] templates = new byte[librarySize][Library.TEMPLATE_SIZE];
+
+		for (byte[] template : templates) {
+			random.nextBytes(template);
+		}
+
+		return templates;
+	}
+
+	/**
+	 * Writes the scans replayed by the simulated sensor: noisy copies of the first enrolled templates, so that each identifies as its source.
+	 */
+	private void writeCapture(Path path, byte[][] templates) throws IOException {
+		Random random = new Random(seed + 1);
+		byte[] image = new byte[300 * 400];
+
+		try (CaptureFile.Writer writer = new CaptureFile.Writer(path, 300, 400)) {
+			for (int i = 0; i < captureRecords; i++) {
+				byte[] probe = templates[i % templates.length].clone();
+
+				for (int j = 0; j < probe.length; j++) {
+					if (random.nextDouble() < PROBE_NOISE) {
+						probe[j] ^= (byte) (1 + random.nextInt(255));
+					}
+				}
+
+				writer.append(scanInterval, 31, probe, probe.length, image);
+			}
+		}
+	}
+
+	/**
+	 * Runs every phase against a service.
+	 *
+	 * @return The report.
+	 */
+	private JSONObject run(URI uri, byte[][] templates) throws Exception {
+		for (int i = 0; i < clientCount; i++) {
+			LoadClient client = new LoadClient(uri, i, this);
+			client.onResponse = this::respond;
+
+			if (!client.connectBlocking(10, TimeUnit.SECONDS)) {
+				throw new Exception("Client " + i + " could not connect to " + uri);
+			}
+			clients.add(client);
+		}
+
+		LoadClient control = clients.get(0);
+		System.out.println("Connected " + clientCount + " clients to " + uri);
+
+		// library-init, sent the way the web app sends it
+		JSONArray fingerprints = new JSONArray();
+		for (int i = 0; i < templates.length; i++) {
+			fingerprints.put(new JSONObject().put("id", i + 1).put("data", Base64.getEncoder().encodeToString(templates[i])));
+		}
+
+		long start = System.nanoTime();
+		Event loaded = request(control, new JSONObject().put("event", Event.LIBRARY_INIT).put("fingerprints", fingerprints), "library-init");
+		long libraryInit = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		System.out.println("Loaded " + loaded.getExtra().optInt("loaded") + " templates in " + libraryInit + " ms");
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+
+		measuring = true;
+		long measureStart = System.nanoTime();
+		long end = measureStart + TimeUnit.SECONDS.toNanos(duration);
+		long registrations = 0;
+
+		while (System.nanoTime() < end) {
+			if (registrationRate > 0) {
+				long sent = System.nanoTime();
+				String requestId = "registration-" + registrations++;
+
+				// a registration holds the sensor's scans, so it is cancelled as soon as it has started
+				request(control, new JSONObject().put("event", Event.REGISTRATION_START).put("id", librarySize + 1).put("device", 0).put(SocketServer.REQUEST_ID, requestId),
+						requestId);
+				registrationStart.recordSince(sent);
+				control.send(new JSONObject().put("event", Event.REGISTRATION_START).put("id", 0).put("device", 0).toString());
+
+				Thread.sleep(Math.max(0, (long) (1000 / registrationRate) - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sent)));
+			} else {
+				Thread.sleep(100);
+			}
+		}
+
+		measuring = false;
+		double seconds = (System.nanoTime() - measureStart) / 1e9;
+
+		Event metrics = request(control, new JSONObject().put("event", Event.METRICS), "metrics");
+
+		JSONArray perClient = new JSONArray();
+		for (LoadClient client : clients) {
+			perClient.put(client.toJSON());
+			client.close();
+		}
+
+		JSONObject config = new JSONObject().put("url", uri.toString()).put("clients", clientCount).put("librarySize", librarySize)
+				.put("captureRecords", captureRecords).put("scanInterval", scanInterval).put("warmup", warmup).put("duration", duration)
+				.put("registrationRate", registrationRate);
+
+		return new JSONObject()
+				.put("config", config)
+				.put("libraryInit", new JSONObject().put("templates", librarySize).put("loaded", loaded.getExtra().optInt("loaded")).put("millis", libraryInit))
+				.put("events", new JSONObject().put("count", events.get()).put("rate", events.get() / seconds)
+						.put("deliveries", scanToClient.getCount()).put("deliveryRate", scanToClient.getCount() / seconds))
+				.put("scanToClient", scanToClient.toJSON())
+				.put("deliveryLag", deliveryLag.toJSON())
+				.put("registrationStart", registrationStart.toJSON())
+				.put("clients", perClient)
+				.put("server", metrics.getExtra());
+	}
+
+	/**
+	 * Sends a command and waits for the response carrying its `requestId`.
+	 */
+	private Event request(LoadClient client, JSONObject command, String requestId) throws Exception {
+		CompletableFuture<Event> response = new CompletableFuture<>();
+		pending.put(requestId, response);
+		client.send(command.put(SocketServer.REQUEST_ID, requestId).toString());
+
+		try {
+			Event event = response.get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+
+			if (Event.COMMAND_REJECTED.equals(event.getName())) {
+				throw new Exception(command.getString("event") + " was rejected by the service");
+			}
+
+			return event;
+		} catch (TimeoutException e) {
+			throw new Exception("No response to " + command.getString("event") + " within " + RESPONSE_TIMEOUT + " ms");
+		} finally {
+			pending.remove(requestId);
+		}
+	}
+
+	/**
+	 * Completes the command waiting for a response. Progress events of a long command are skipped.
+	 */
+	private void respond(Event event) {
+		if (Event.LIBRARY_INIT_PROGRESS.equals(event.getName())) {
+			return;
+		}
+
+		CompletableFuture<Event> response = pending.get(String.valueOf(event.getExtra().opt(SocketServer.REQUEST_ID)));
+
+		if (response != null) {
+			response.complete(event);
+		}
+	}
+
+	/**
+	 * Tells clients whether their events are being measured.
+	 */
+	boolean isMeasuring() {
+		return measuring;
+	}
+
+	/**
+	 * Records the arrival of a `biometric` event at a client.
+	 *
+	 * @param device    The sensor the event came from.
+	 * @param timestamp The capture time of the event.
+	 * @param id        The identified fingerprint ID.
+	 * @param latency   The scan-to-client latency at this client, in milliseconds.
+	 * @param arrival   The arrival time, a {@link System#nanoTime()} reading.
+	 * @return How much later the event arrived than at the first client that received it, in nanoseconds.
+	 */
+	long delivered(int device, long timestamp, Integer id, long latency, long arrival) {
+		String key = device + ":" + timestamp + ":" + id;
+		Delivery delivery = deliveries.computeIfAbsent(key, k -> {
+			events.incrementAndGet();
+			return new Delivery(arrival);
+		});
+
+		synchronized (delivery) {
+			// forget the event once every client has it
+			if (++delivery.clients == clientCount) {
+				deliveries.remove(key);
+			}
+		}
+
+		long lag = Math.max(0, arrival - delivery.firstArrival);
+		scanToClient.record(latency);
+		deliveryLag.record(lag);
+		return lag;
+	}
+
+	private void printSummary(JSONObject report, String file) {
+		JSONObject latency = report.getJSONObject("scanToClient");
+		JSONObject lag = report.getJSONObject("deliveryLag");
+		JSONObject events = report.getJSONObject("events");
+
+		System.out.println(String.format("%d clients, %.1f events/s, %.1f deliveries/s", clientCount, events.getDouble("rate"), events.getDouble("deliveryRate")));
+		System.out.println(String.format("scan-to-client p50 %d ms, p99 %d ms, p999 %d ms, max %d ms", latency.getLong("p50"), latency.getLong("p99"),
+				latency.getLong("p999"), latency.getLong("max")));
+		System.out.println(String.format("delivery lag p50 %.2f ms, p99 %.2f ms, p999 %.2f ms", lag.getLong("p50") / 1e6, lag.getLong("p99") / 1e6,
+				lag.getLong("p999") / 1e6));
+		System.out.println("Report written to " + file);
+	}
+}
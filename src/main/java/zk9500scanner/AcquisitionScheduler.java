@@ -0,0 +1,135 @@
+package zk9500scanner;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how long the acquisition loop waits between polls of the sensor.
+ * <p>
+ * While a finger is being presented the sensor is polled every {@code minInterval}. Every poll that finds nothing stretches the interval by {@code backoff}, up to
+ * {@code maxInterval}, so an idle sensor is polled rarely while a touch is picked up quickly. The scheduler also keeps the observed scan-to-event latency, i.e. the
+ * time from the start of the poll that returned a capture until its event has been handled.
+ * </p>
+ */
+public class AcquisitionScheduler {
+	private final long minInterval;
+	private final long maxInterval;
+	private final double backoff;
+	private long interval;
+
+	private final AtomicLong scans = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+	private volatile long lastLatency = 0;
+
+	/**
+	 * @param minInterval Poll interval while a finger is present, in milliseconds.
+	 * @param maxInterval Longest poll interval of an idle sensor, in milliseconds.
+	 * @param backoff     Factor the interval grows by after each empty poll; 1 keeps it at {@code minInterval}.
+	 */
+	public AcquisitionScheduler(long minInterval, long maxInterval, double backoff) {
+		if (minInterval < 0 || maxInterval < minInterval || backoff < 1) {
+			throw new IllegalArgumentException("Invalid acquisition schedule [min: " + minInterval + ", max: " + maxInterval + ", backoff: " + backoff + "]");
+		}
+
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		this.backoff = backoff;
+		this.interval = minInterval;
+	}
+
+	/**
+	 * Creates a scheduler from the `scan.interval.min` (default 20 ms), `scan.interval.max` (default 250 ms) and `scan.backoff` (default 1.5) system properties.
+	 *
+	 * @return The scheduler.
+	 */
+	public static AcquisitionScheduler fromSystemProperties() {
+		long min = Long.parseLong(System.getProperty("scan.interval.min", "20"));
+		long max = Long.parseLong(System.getProperty("scan.interval.max", "250"));
+		double backoff = Double.parseDouble(System.getProperty("scan.backoff", "1.5"));
+
+		return new AcquisitionScheduler(min, max, backoff);
+	}
+
+	/**
+	 * Returns the wait before the next poll, given whether the last poll saw a finger. Called by the acquisition thread only.
+	 *
+	 * @param captured Whether the last poll returned a capture.
+	 * @return The wait in milliseconds.
+	 */
+	public long next(boolean captured) {
+		if (captured) {
+			interval = minInterval;
+		} else {
+			interval = Math.min(maxInterval, Math.max(interval + 1, (long) (interval * backoff)));
+		}
+
+		return interval;
+	}
+
+	/**
+	 * Waits for the interval computed by {@link #next(boolean)}.
+	 *
+	 * @param captured Whether the last poll returned a capture.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public void await(boolean captured) throws InterruptedException {
+		long wait = next(captured);
+
+		if (wait > 0) {
+			TimeUnit.MILLISECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Records the latency of one scan.
+	 *
+	 * @param nanos Time from the capture to its handled event, in nanoseconds.
+	 */
+	public void recordLatency(long nanos) {
+		scans.incrementAndGet();
+		totalLatency.addAndGet(nanos);
+		Metrics.SCAN_TO_EVENT.record(nanos);
+		lastLatency = nanos;
+
+		long max;
+		while (nanos > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, nanos)) {
+		}
+	}
+
+	/**
+	 * @return The current poll interval in milliseconds.
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @return The number of scans handled.
+	 */
+	public long getScanCount() {
+		return scans.get();
+	}
+
+	/**
+	 * @return The latency of the last scan in nanoseconds.
+	 */
+	public long getLastLatency() {
+		return lastLatency;
+	}
+
+	/**
+	 * @return The mean scan latency in nanoseconds, 0 before the first scan.
+	 */
+	public long getAverageLatency() {
+		long count = scans.get();
+		return count == 0 ? 0 : totalLatency.get() / count;
+	}
+
+	/**
+	 * @return The highest scan latency in nanoseconds.
+	 */
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+}
@@ -0,0 +1,317 @@
+package zk9500scanner;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A background identification job over many templates: either a `batch-identify` of templates sent by a client, or a `batch-audit` of the whole library for the
+ * same finger enrolled under two IDs.
+ * <p>
+ * The templates are shared out between `batch.threads` worker threads (default one less than the number of cores). An identify job copies the library once, when it
+ * starts, into a database with a shard per worker; the workers search it together, each starting on its own shard, and never contend with live identification for a
+ * database handle. Workers run at the lowest priority and pause while live scans are in the scan pipeline. Results are streamed in a `batch-progress` event every second, and a final `batch-done` event carries the rest.
+ * </p>
+ * <p>
+ * An audit compares each pair of fingerprints once: every worker adds the library to a database of its own in order, and searches each fingerprint of its share against the
+ * fingerprints added before it. A finger enrolled under several IDs is thus paired with at least its best earlier match, and an audit costs half an N&times;N search.
+ * The price is memory: while an audit runs, the algorithm library holds `batch.threads` copies of the library.
+ * </p>
+ */
+public class BatchJob {
+	/** How long workers pause while live scans are waiting, in nanoseconds. */
+	private static final long BUSY_PAUSE = TimeUnit.MILLISECONDS.toNanos(5);
+
+	/** How often progress is reported, in nanoseconds. */
+	private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private static final AtomicLong nextJob = new AtomicLong(1);
+
+	private final long job = nextJob.getAndIncrement();
+	private final String command;
+	private final Object requestId;
+	private final Library library;
+	private final int[] ids;
+	private final byte[][] templates;
+	private final String[] errors;
+	private DatabaseHandle shared = null; // Copy of the library searched by every worker of an identify job
+	private final AtomicInteger next = new AtomicInteger();
+	private final AtomicInteger done = new AtomicInteger();
+	private final AtomicInteger found = new AtomicInteger();
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicLong lastProgress = new AtomicLong();
+	private final Queue<JSONObject> results = new ConcurrentLinkedQueue<>();
+	private final long startedAt = System.nanoTime();
+	private volatile boolean cancelled = false;
+	private volatile String error = null;
+	private Consumer<Event> onEvent;
+	private BooleanSupplier idle;
+
+	/**
+	 * Collects the templates of a `batch-identify` command as they are parsed.
+	 */
+	public static class Probes implements TemplateMessageReader.TemplateSink {
+		private final List<Integer> ids = new ArrayList<>();
+		private final List<byte[]> templates = new ArrayList<>();
+		private final List<String> errors = new ArrayList<>();
+
+		@Override
+		public void accept(int id, String base64) {
+			try {
+				byte[] blob = Base64.getDecoder().decode(base64);
+				accept(id, blob, 0, blob.length);
+			} catch (IllegalArgumentException e) {
+				add(id, null, "Unable to extract (" + e.getMessage() + ")");
+			}
+		}
+
+		@Override
+		public void accept(int id, byte[] buffer, int offset, int length) {
+			if (length == 0 || length > Library.TEMPLATE_SIZE) {
+				add(id, null, "Invalid template length " + length);
+				return;
+			}
+
+			byte[] template = new byte[Library.TEMPLATE_SIZE];
+			System.arraycopy(buffer, offset, template, 0, length);
+			add(id, template, null);
+		}
+
+		private void add(int id, byte[] template, String error) {
+			ids.add(id);
+			templates.add(template);
+			errors.add(error);
+		}
+	}
+
+	private BatchJob(String command, Object requestId, Library library, int[] ids, byte[][] templates, String[] errors) {
+		this.command = command;
+		this.requestId = requestId;
+		this.library = library;
+		this.ids = ids;
+		this.templates = templates;
+		this.errors = errors;
+	}
+
+	/**
+	 * Creates a job identifying templates sent by a client.
+	 *
+	 * @param library   The library to identify against.
+	 * @param probes    The templates, each with a client-chosen `id` echoed in its result.
+	 * @param requestId The `requestId` of the command, or {@code null}.
+	 * @return The job, not started.
+	 */
+	public static BatchJob identify(Library library, Probes probes, Object requestId) {
+		return new BatchJob(Event.BATCH_IDENTIFY, requestId, library, probes.ids.stream().mapToInt(Integer::intValue).toArray(),
+				probes.templates.toArray(new byte[0][]), probes.errors.toArray(new String[0]));
+	}
+
+	/**
+	 * Creates a job looking for fingerprints of the library that match each other.
+	 *
+	 * @param library   The library to audit.
+	 * @param requestId The `requestId` of the command, or {@code null}.
+	 * @return The job, not started.
+	 * @throws Exception If the library has no database.
+	 */
+	public static BatchJob audit(Library library, Object requestId) throws Exception {
+		return new BatchJob(Event.BATCH_AUDIT, requestId, library, library.getIds(), null, null);
+	}
+
+	/**
+	 * Starts the worker threads.
+	 *
+	 * @param onEvent Receives the `batch-progress` and `batch-done` events, on the worker threads.
+	 * @param idle    Tells whether live scans are waiting; workers pause while it returns false.
+	 */
+	public void start(Consumer<Event> onEvent, BooleanSupplier idle) {
+		int threads = Math.max(1, Math.min(ids.length, Integer.getInteger("batch.threads", Runtime.getRuntime().availableProcessors() - 1)));
+
+		this.onEvent = onEvent;
+		this.idle = idle;
+		lastProgress.set(System.nanoTime());
+
+		if (templates != null) {
+			try {
+				shared = library.copyDatabase(threads);
+			} catch (Exception e) {
+				Main.log.severe("Batch job " + job + " failed: " + e.getMessage());
+				error = e.getMessage();
+				finish();
+				return;
+			}
+		}
+
+		running.set(threads);
+
+		Main.log.info("Started " + command + " job " + job + " of " + ids.length + " fingerprints on " + threads + " threads");
+
+		for (int i = 0; i < threads; i++) {
+			int index = i;
+			Thread worker = new Thread(() -> work(index, threads), "batch-" + job + "-" + i);
+			worker.setDaemon(true);
+			worker.setPriority(Thread.MIN_PRIORITY);
+			worker.start();
+		}
+	}
+
+	private void work(int worker, int threads) {
+		DatabaseHandle database = null;
+
+		try {
+			byte[] probe = new byte[Library.TEMPLATE_SIZE];
+			int[] match = new int[2];
+
+			if (templates != null) {
+				for (int index = next.getAndIncrement(); !cancelled && index < ids.length; index = next.getAndIncrement()) {
+					pause();
+					identify(shared, worker, index, match);
+					done.incrementAndGet();
+					progress();
+				}
+			} else {
+				database = library.newDatabase();
+
+				// every worker adds the whole library in order, but only searches its own share of it
+				for (int index = 0; !cancelled && index < ids.length; index++) {
+					boolean mine = index % threads == worker;
+
+					if (library.getTemplate(ids[index], probe)) {
+						if (mine) {
+							pause();
+							audit(database, ids[index], probe, match);
+						}
+
+						database.add(ids[index], probe);
+					}
+
+					if (mine) {
+						done.incrementAndGet();
+						progress();
+					}
+				}
+			}
+		} catch (Exception e) {
+			Main.log.severe("Batch job " + job + " failed: " + e.getMessage());
+			error = e.getMessage();
+			cancelled = true;
+		} finally {
+			if (database != null) {
+				database.release();
+			}
+
+			if (running.decrementAndGet() == 0) {
+				if (shared != null) {
+					shared.release();
+				}
+				finish();
+			}
+		}
+	}
+
+	/**
+	 * Waits while live scans are in the pipeline.
+	 */
+	private void pause() {
+		while (!cancelled && !idle.getAsBoolean()) {
+			LockSupport.parkNanos(BUSY_PAUSE);
+		}
+	}
+
+	private void identify(DatabaseHandle database, int worker, int index, int[] match) {
+		JSONObject result = new JSONObject().put("id", ids[index]);
+
+		if (errors[index] != null) {
+			result.put("message", errors[index]);
+		} else if (database.identify(templates[index], match, worker) && match[1] >= library.getThreshold()) {
+			result.put("match", match[0]).put("score", match[1]);
+			found.incrementAndGet();
+		}
+
+		results.add(result);
+	}
+
+	/**
+	 * Searches a fingerprint among those before it in the library, so that each pair is compared once.
+	 */
+	private void audit(DatabaseHandle database, int id, byte[] probe, int[] match) {
+		if (database.identify(probe, match) && match[1] >= library.getThreshold()) {
+			results.add(new JSONObject().put("id", match[0]).put("match", id).put("score", match[1]));
+			found.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Sends the results found since the last report, at most once per {@link #PROGRESS_INTERVAL}.
+	 */
+	private void progress() {
+		long now = System.nanoTime();
+		long last = lastProgress.get();
+
+		if (now - last >= PROGRESS_INTERVAL && lastProgress.compareAndSet(last, now)) {
+			onEvent.accept(toEvent(Event.BATCH_PROGRESS));
+		}
+	}
+
+	private void finish() {
+		Event event = toEvent(Event.BATCH_DONE).put("found", found.get()).put("elapsed", (System.nanoTime() - startedAt) / 1_000_000);
+
+		if (error != null) {
+			event.put("message", error);
+		} else if (cancelled) {
+			event.put("cancelled", true);
+		}
+
+		Main.log.info("Finished " + command + " job " + job + ": " + done.get() + " of " + ids.length + " fingerprints, " + found.get() + " found");
+		onEvent.accept(event);
+	}
+
+	private Event toEvent(String name) {
+		JSONArray batch = new JSONArray();
+
+		for (JSONObject result = results.poll(); result != null; result = results.poll()) {
+			batch.put(result);
+		}
+
+		return new Event(name).put("job", job).put("command", command).put("done", done.get()).put("total", ids.length).put("results", batch)
+				.put(SocketServer.REQUEST_ID, requestId);
+	}
+
+	/**
+	 * Stops the job after the fingerprints being searched. The `batch-done` event is still sent, with `cancelled` set.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return true until every worker has stopped.
+	 */
+	public boolean isRunning() {
+		return running.get() > 0;
+	}
+
+	public long getJob() {
+		return job;
+	}
+
+	/**
+	 * Summarizes the job.
+	 *
+	 * @return The `job` number, `command`, fingerprints `done` out of `total`, and matches `found`.
+	 */
+	public JSONObject toJSON() {
+		return new JSONObject().put("job", job).put("command", command).put("done", done.get()).put("total", ids.length).put("found", found.get());
+	}
+}
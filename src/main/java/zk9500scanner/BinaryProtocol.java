@@ -0,0 +1,209 @@
+package zk9500scanner;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Compact binary framing of {@link Event}s, used by connections that negotiate the {@value #SUBPROTOCOL} WebSocket subprotocol.
+ * <p>
+ * Frame layout (big-endian):
+ * </p>
+ *
+ * <pre>
+ * u8  version ({@value #VERSION})
+ * u8  event type (see {@link #TYPES}; 0 means the name is the `event` field of the extras)
+ * u16 flags: 1 = id present, 2 = score present, 4 = timestamp present
+ * i32 id
+ * i32 score
+ * i64 timestamp, epoch milliseconds
+ * i32 payload length, followed by the payload
+ * i32 extras length, followed by the remaining fields as UTF-8 JSON
+ * </pre>
+ * <p>
+ * For events the payload is the raw fingerprint template. In `library-init`, `library-init-chunk`, `library-add`, `library-update` and `batch-identify` messages sent by
+ * clients the payload is a sequence of templates, each an i32 id, an i32 length and the template bytes.
+ * </p>
+ * <p>
+ * A frame is rejected when a length is negative, larger than what is left of the frame, or above {@link #MAX_PAYLOAD} or {@link #MAX_EXTRAS}, before anything is
+ * allocated for it.
+ * </p>
+ */
+public class BinaryProtocol {
+	/** WebSocket subprotocol selecting binary frames. */
+	public static final String SUBPROTOCOL = "zk9500.v1.binary";
+
+	/** Current frame version. */
+	public static final int VERSION = 1;
+
+	/** Size of the fixed frame header, up to and including the payload length. */
+	public static final int HEADER_SIZE = 24;
+
+	/** Largest payload accepted, enough for a `library-init-chunk` of about 30000 templates. */
+	public static final int MAX_PAYLOAD = 64 * 1024 * 1024;
+
+	/** Largest extras accepted. */
+	public static final int MAX_EXTRAS = 16 * 1024 * 1024;
+
+	private static final int FLAG_ID = 1;
+	private static final int FLAG_SCORE = 2;
+	private static final int FLAG_TIMESTAMP = 4;
+
+	/** Event type codes, indexed by code. */
+	public static final String[] TYPES = { null, Event.BIOMETRIC, Event.BIOMETRIC_ERROR, Event.REGISTRATION_START, Event.REGISTRATION_ONGOING,
+			Event.REGISTRATION_SUCCESS, Event.REGISTRATION_ERROR, Event.LIBRARY_INIT, Event.LIBRARY_INIT_BEGIN, Event.LIBRARY_INIT_CHUNK, Event.LIBRARY_INIT_COMMIT,
+			Event.LIBRARY_INIT_PROGRESS, Event.LIBRARY_INIT_OK, Event.BIOMETRIC_HOLD, Event.METRICS,
+			Event.COMMAND_REJECTED, Event.LIBRARY_ADD, Event.LIBRARY_UPDATE, Event.LIBRARY_REMOVE, Event.LIBRARY_ACK,
+			Event.VERIFY_START, Event.VERIFY, Event.VERIFY_ERROR, Event.BATCH_IDENTIFY, Event.BATCH_AUDIT, Event.BATCH_CANCEL, Event.BATCH_PROGRESS, Event.BATCH_DONE,
+			Event.CAPTURE_QUALITY, Event.IMAGE_STREAM, Event.IMAGE_FRAME, Event.DEVICE_LOST, Event.DEVICE_RESTORED,
+			Event.JOURNAL_REPLAY, Event.JOURNAL_ACK };
+
+	private static final Map<String, Integer> CODES = new HashMap<>();
+
+	static {
+		for (int code = 1; code < TYPES.length; code++) {
+			CODES.put(TYPES[code], code);
+		}
+	}
+
+	private BinaryProtocol() {
+	}
+
+	/**
+	 * Looks up the type code of an event.
+	 *
+	 * @param name The event name.
+	 * @return The code, or 0 if the event has none.
+	 */
+	public static int getType(String name) {
+		return CODES.getOrDefault(name, 0);
+	}
+
+	/**
+	 * Encodes an event.
+	 *
+	 * @param event The event.
+	 * @return The frame, ready to be sent.
+	 */
+	public static ByteBuffer encode(Event event) {
+		Integer code = CODES.get(event.getName());
+		JSONObject extra = event.getExtra();
+
+		if (code == null) {
+			extra = extra != null ? new JSONObject(extra.toMap()) : new JSONObject();
+			extra.put("event", event.getName());
+		}
+
+		byte[] extras = extra != null ? extra.toString().getBytes(StandardCharsets.UTF_8) : new byte[0];
+		byte[] payload = event.getTemplate() != null ? event.getTemplate() : new byte[0];
+		int flags = (event.getId() != null ? FLAG_ID : 0) | (event.getScore() != null ? FLAG_SCORE : 0) | (event.getTimestamp() != 0 ? FLAG_TIMESTAMP : 0);
+
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length + 4 + extras.length);
+		frame.put((byte) VERSION);
+		frame.put((byte) (code != null ? code : 0));
+		frame.putShort((short) flags);
+		frame.putInt(event.getId() != null ? event.getId() : 0);
+		frame.putInt(event.getScore() != null ? event.getScore() : 0);
+		frame.putLong(event.getTimestamp());
+		frame.putInt(payload.length);
+		frame.put(payload);
+		frame.putInt(extras.length);
+		frame.put(extras);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Decodes a frame.
+	 *
+	 * @param frame The received frame.
+	 * @return The event, with the payload as its template.
+	 * @throws IllegalArgumentException If the frame is malformed or of an unsupported version.
+	 */
+	public static Event decode(ByteBuffer frame) {
+		try {
+			int version = frame.get() & 0xFF;
+			if (version != VERSION) {
+				throw new IllegalArgumentException("Unsupported frame version " + version);
+			}
+
+			int code = frame.get() & 0xFF;
+			int flags = frame.getShort() & 0xFFFF;
+			int id = frame.getInt();
+			int score = frame.getInt();
+			long timestamp = frame.getLong();
+
+			byte[] payload = new byte[readLength(frame, MAX_PAYLOAD, "payload")];
+			frame.get(payload);
+
+			byte[] extras = new byte[readLength(frame, MAX_EXTRAS, "extras")];
+			frame.get(extras);
+			JSONObject extra = extras.length > 0 ? new JSONObject(new String(extras, StandardCharsets.UTF_8)) : new JSONObject();
+
+			String name = code > 0 && code < TYPES.length ? TYPES[code] : (String) extra.remove("event");
+			if (name == null) {
+				throw new IllegalArgumentException("Unknown event type " + code);
+			}
+
+			Event event = new Event(name);
+			for (String key : extra.keySet()) {
+				event.put(key, extra.get(key));
+			}
+			if ((flags & FLAG_ID) != 0) {
+				event.id(id);
+			}
+			if ((flags & FLAG_SCORE) != 0) {
+				event.score(score);
+			}
+			if ((flags & FLAG_TIMESTAMP) != 0) {
+				event.timestamp(timestamp);
+			}
+			if (payload.length > 0) {
+				event.template(payload);
+			}
+
+			return event;
+		} catch (java.nio.BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated frame");
+		}
+	}
+
+	/**
+	 * Reads a length field, checking it against the rest of the frame and a maximum before anything of that size is allocated.
+	 */
+	private static int readLength(ByteBuffer frame, int max, String field) {
+		int length = frame.getInt();
+
+		if (length < 0 || length > frame.remaining() || length > max) {
+			throw new IllegalArgumentException("Invalid " + field + " length " + length);
+		}
+
+		return length;
+	}
+
+	/**
+	 * Passes the templates of a `library-init` payload to a sink.
+	 *
+	 * @param payload The payload: repeated i32 id, i32 length, template bytes.
+	 * @param sink    The receiver.
+	 * @throws Exception If the payload is malformed or the sink fails.
+	 */
+	public static void readTemplates(byte[] payload, TemplateMessageReader.TemplateSink sink) throws Exception {
+		ByteBuffer records = ByteBuffer.wrap(payload);
+
+		while (records.hasRemaining()) {
+			int id = records.getInt();
+			int length = records.getInt();
+
+			if (length <= 0 || length > Library.TEMPLATE_SIZE || length > records.remaining()) {
+				throw new IllegalArgumentException("Invalid template length " + length + " for ID " + id);
+			}
+
+			sink.accept(id, payload, records.position(), length);
+			records.position(records.position() + length);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package zk9500scanner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A recorded sequence of sensor captures used by {@link SimulatedSensorDriver} to replay real traffic without hardware.
+ * <p>
+ * File layout (big-endian): the magic {@code ZKCP}, format version, image width, image height, followed by records of inter-arrival delay in milliseconds, raw fake finger
+ * status, template length, template bytes and {@code width * height} grayscale image bytes. Records are appended until end of file.
+ * </p>
+ */
+public class CaptureFile {
+	/** Magic number identifying a capture file ("ZKCP"). */
+	public static final int MAGIC = 0x5A4B4350;
+
+	/** Current format version. */
+	public static final int VERSION = 1;
+
+	private final int imgWidth;
+	private final int imgHeight;
+	private final List<Record> records;
+
+	/**
+	 * A single recorded capture.
+	 */
+	public static class Record {
+		public final int delayMillis;
+		public final int fakeStatus;
+		public final byte[] template;
+		public final byte[] image;
+
+		public Record(int delayMillis, int fakeStatus, byte[] template, byte[] image) {
+			this.delayMillis = delayMillis;
+			this.fakeStatus = fakeStatus;
+			this.template = template;
+			this.image = image;
+		}
+	}
+
+	public CaptureFile(int imgWidth, int imgHeight, List<Record> records) {
+		this.imgWidth = imgWidth;
+		this.imgHeight = imgHeight;
+		this.records = Collections.unmodifiableList(new ArrayList<>(records));
+	}
+
+	public int getImageWidth() {
+		return imgWidth;
+	}
+
+	public int getImageHeight() {
+		return imgHeight;
+	}
+
+	public List<Record> getRecords() {
+		return records;
+	}
+
+	/**
+	 * Reads a capture file into memory.
+	 *
+	 * @param path The file to read.
+	 * @return The parsed capture file.
+	 * @throws IOException If the file cannot be read or is not a capture file.
+	 */
+	public static CaptureFile read(Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a capture file: " + path);
+			}
+
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported capture file version " + version);
+			}
+
+			int width = in.readInt();
+			int height = in.readInt();
+			if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+				throw new IOException("Invalid capture image size " + width + "x" + height);
+			}
+
+			List<Record> records = new ArrayList<>();
+			int delay;
+
+			while (true) {
+				// the file ends cleanly only between records
+				try {
+					delay = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+
+				try {
+					int fakeStatus = in.readInt();
+					int length = in.readInt();
+					if (length < 0 || length > Library.TEMPLATE_SIZE) {
+						throw new IOException("Invalid template length " + length + " in record " + records.size());
+					}
+
+					byte[] template = new byte[length];
+					in.readFully(template);
+					byte[] image = new byte[width * height];
+					in.readFully(image);
+					records.add(new Record(delay, fakeStatus, template, image));
+				} catch (EOFException e) {
+					throw new IOException("Truncated capture file after " + records.size() + " records: " + path);
+				}
+			}
+
+			return new CaptureFile(width, height, records);
+		}
+	}
+
+	/**
+	 * Appends capture records to a new capture file.
+	 */
+	public static class Writer implements Closeable {
+		private final DataOutputStream out;
+		private final int imageSize;
+
+		/**
+		 * Creates the file and writes its header.
+		 *
+		 * @param path      The file to create; an existing file is overwritten.
+		 * @param imgWidth  The image width of every record.
+		 * @param imgHeight The image height of every record.
+		 * @throws IOException If the file cannot be written.
+		 */
+		public Writer(Path path, int imgWidth, int imgHeight) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+			imageSize = imgWidth * imgHeight;
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(imgWidth);
+			out.writeInt(imgHeight);
+		}
+
+		/**
+		 * Writes one capture.
+		 *
+		 * @throws IOException If the record cannot be written.
+		 */
+		public synchronized void append(int delayMillis, int fakeStatus, byte[] template, int templateLength, byte[] image) throws IOException {
+			out.writeInt(delayMillis);
+			out.writeInt(fakeStatus);
+			out.writeInt(templateLength);
+			out.write(template, 0, templateLength);
+			out.write(image, 0, imageSize);
+			out.flush();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package zk9500scanner;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * Runs client commands on worker threads, away from the WebSocket selector thread.
+ * <p>
+ * Commands are grouped into lanes, each with its own threads and bounded queue, so a long `library-init` does not hold up `metrics` or registration requests. The
+ * `library` lane has a single thread, which keeps the begin, chunk and commit messages of an initialization, and the in-place library changes, in order. A command
+ * offered to a lane whose queue is full is rejected at once rather than waiting.
+ * </p>
+ * <p>
+ * Each lane is configured by the `command.<lane>.threads` and `command.<lane>.queue` system properties.
+ * </p>
+ */
+public class CommandExecutor {
+	/** Lane of every command that is not listed in {@link #LANES}. */
+	public static final String DEFAULT_LANE = "default";
+
+	/** Lane of each command. */
+	public static final Map<String, String> LANES = new HashMap<>();
+
+	static {
+		LANES.put(Event.LIBRARY_INIT, "library");
+		LANES.put(Event.LIBRARY_INIT_BEGIN, "library");
+		LANES.put(Event.LIBRARY_INIT_CHUNK, "library");
+		LANES.put(Event.LIBRARY_INIT_COMMIT, "library");
+		LANES.put(Event.LIBRARY_ADD, "library");
+		LANES.put(Event.LIBRARY_UPDATE, "library");
+		LANES.put(Event.LIBRARY_REMOVE, "library");
+		LANES.put(Event.REGISTRATION_START, "registration");
+		LANES.put(Event.METRICS, "metrics");
+		LANES.put(Event.BATCH_IDENTIFY, "batch");
+		LANES.put(Event.BATCH_AUDIT, "batch");
+		LANES.put(Event.BATCH_CANCEL, "batch");
+	}
+
+	/**
+	 * The threads and queue of one lane.
+	 */
+	private static class Lane {
+		final ThreadPoolExecutor executor;
+		final AtomicLong rejected = new AtomicLong();
+
+		Lane(String name, int threads, int capacity) {
+			AtomicInteger count = new AtomicInteger();
+
+			executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(capacity), runnable -> {
+				Thread thread = new Thread(runnable, "command-" + name + "-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	private final Map<String, Lane> lanes = new LinkedHashMap<>();
+
+	/**
+	 * Creates the lanes from the system properties.
+	 */
+	public CommandExecutor() {
+		lane("library", 1, 64);
+		lane("registration", 1, 4);
+		lane("metrics", 1, 4);
+		lane("batch", 1, 4);
+		lane(DEFAULT_LANE, 1, 16);
+	}
+
+	private void lane(String name, int defaultThreads, int defaultCapacity) {
+		int threads = Integer.getInteger("command." + name + ".threads", defaultThreads);
+		int capacity = Integer.getInteger("command." + name + ".queue", defaultCapacity);
+
+		lanes.put(name, new Lane(name, threads, capacity));
+	}
+
+	/**
+	 * Queues a command on its lane.
+	 *
+	 * @param command The command name, i.e. the `event` of the client message.
+	 * @param task    Runs the command.
+	 * @throws RejectedExecutionException If the lane's queue is full or the executor is closed.
+	 */
+	public void execute(String command, Runnable task) throws RejectedExecutionException {
+		Lane lane = lanes.get(LANES.getOrDefault(command, DEFAULT_LANE));
+
+		try {
+			lane.executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			lane.rejected.incrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Summarizes every lane.
+	 *
+	 * @return An object keyed by lane name, with the number of threads, commands running, queued, completed and rejected.
+	 */
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+
+		lanes.forEach((name, lane) -> {
+			JSONObject stats = new JSONObject();
+			stats.put("threads", lane.executor.getMaximumPoolSize());
+			stats.put("active", lane.executor.getActiveCount());
+			stats.put("queued", lane.executor.getQueue().size());
+			stats.put("completed", lane.executor.getCompletedTaskCount());
+			stats.put("rejected", lane.rejected.get());
+			json.put(name, stats);
+		});
+
+		return json;
+	}
+
+	/**
+	 * Stops accepting commands. Commands already queued still run.
+	 */
+	public void close() {
+		lanes.values().forEach(lane -> lane.executor.shutdown());
+	}
+}
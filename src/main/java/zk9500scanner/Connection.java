@@ -0,0 +1,382 @@
+package zk9500scanner;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.json.JSONObject;
+
+/**
+ * Per-connection state, attached to each {@link WebSocket} when it opens.
+ * <p>
+ * Events for the client wait in a bounded outbound queue and are handed to the socket by {@link #pump()} only while the socket's own write buffer is nearly empty, so a
+ * client that reads slowly holds at most {@code capacity} events in memory. What happens when the queue is full depends on the {@link Policy}.
+ * </p>
+ * <p>
+ * The {@link #PRESERVED} events, such as `biometric` and `registration-success`, are never dropped: when a full queue holds nothing else to drop, the connection
+ * is closed instead, and the client catches up from the {@link EventJournal} once it reconnects.
+ * </p>
+ */
+public class Connection {
+	/**
+	 * What to do when a client falls behind.
+	 */
+	public enum Policy {
+		/** Discard the oldest queued event that is not {@link Connection#PRESERVED}. */
+		DROP_OLDEST,
+		/** Replace a queued event of the same kind when it only reports a state, such as progress or metrics; otherwise discard as {@link #DROP_OLDEST}. */
+		COALESCE,
+		/** Close the connection once it is full or its oldest event has waited longer than the maximum lag. */
+		DISCONNECT;
+
+		/**
+		 * Parses a policy name such as `drop-oldest`.
+		 *
+		 * @param name The name, case-insensitive, with `-` or `_`.
+		 * @return The policy.
+		 */
+		public static Policy parse(String name) {
+			return valueOf(name.trim().toUpperCase().replace('-', '_'));
+		}
+	}
+
+	/** Events that only report the latest state, so a newer one makes a queued one obsolete. */
+	public static final Set<String> COALESCABLE = new HashSet<>(Arrays.asList(Event.LIBRARY_INIT_PROGRESS, Event.METRICS));
+
+	/** Events that report what happened to a person or a command, so they are delivered or the connection is closed, but never dropped. */
+	public static final Set<String> PRESERVED = new HashSet<>(Arrays.asList(Event.BIOMETRIC, Event.VERIFY, Event.REGISTRATION_ONGOING, Event.REGISTRATION_SUCCESS,
+			Event.REGISTRATION_ERROR, Event.JOURNAL_REPLAY));
+
+	/** Events dropped from full queues, across all connections since the start. */
+	private static final AtomicLong totalDropped = new AtomicLong();
+
+	/** Connections closed for falling behind, since the start. */
+	private static final AtomicLong totalEvicted = new AtomicLong();
+
+	/** Frames handed to the socket but not yet written, above which the queue is held back. */
+	private static final int WIRE_LIMIT = 8;
+
+	/**
+	 * An event encoded for the client, waiting to be sent.
+	 */
+	public static class Outbound {
+		final String name;
+		final boolean coalescable;
+		final boolean preserved;
+		final Collection<Framedata> frames;
+		final ImageStream.Frame image;
+		final long queuedAt;
+
+		/**
+		 * @param event  The event.
+		 * @param frames The encoded frames, shared by every connection receiving the event.
+		 */
+		public Outbound(Event event, Collection<Framedata> frames) {
+			this.name = event.getName();
+			// a response to a particular request is never replaced
+			this.coalescable = COALESCABLE.contains(name) && (event.getExtra() == null || !event.getExtra().has(SocketServer.REQUEST_ID));
+			this.preserved = PRESERVED.contains(name);
+			this.frames = frames;
+			this.image = null;
+			this.queuedAt = System.nanoTime();
+		}
+
+		/**
+		 * @param image A capture's image, retained for this connection and released once sent or dropped.
+		 */
+		public Outbound(ImageStream.Frame image) {
+			this.name = Event.IMAGE_FRAME;
+			this.coalescable = false;
+			this.preserved = false;
+			this.frames = Collections.<Framedata>singletonList(image.frame);
+			this.image = image;
+			this.queuedAt = System.nanoTime();
+		}
+
+		/**
+		 * Lets go of the event once it has been handed to the socket or dropped.
+		 */
+		void done() {
+			if (image != null) {
+				image.release();
+			}
+		}
+	}
+
+	private final WebSocket socket;
+	private final boolean binary;
+	private final Policy policy;
+	private final int capacity;
+	private final long maxLag;
+	private final ArrayDeque<Outbound> queue = new ArrayDeque<>();
+	private long sent = 0;
+	private long dropped = 0;
+	private long coalesced = 0;
+	private boolean evicted = false;
+
+	/**
+	 * @param socket   The connection.
+	 * @param binary   Whether the client negotiated {@link BinaryProtocol} frames.
+	 * @param policy   What to do when the client falls behind.
+	 * @param capacity The number of events queued at most.
+	 * @param maxLag   How long, in milliseconds, an event may wait under {@link Policy#DISCONNECT}.
+	 */
+	public Connection(WebSocket socket, boolean binary, Policy policy, int capacity, long maxLag) {
+		this.socket = socket;
+		this.binary = binary;
+		this.policy = policy;
+		this.capacity = capacity;
+		this.maxLag = TimeUnit.MILLISECONDS.toNanos(maxLag);
+	}
+
+	public WebSocket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Returns whether the client negotiated {@link BinaryProtocol} frames.
+	 *
+	 * @return `true` for binary frames, `false` for JSON text.
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * Queues an event, applying the policy if the queue is full.
+	 *
+	 * @param outbound The encoded event.
+	 */
+	public synchronized void enqueue(Outbound outbound) {
+		if (evicted) {
+			outbound.done();
+			return;
+		}
+
+		// a preview only needs the latest image of each device, whatever the policy
+		if (outbound.image != null) {
+			Iterator<Outbound> iterator = queue.iterator();
+
+			while (iterator.hasNext()) {
+				Outbound queued = iterator.next();
+
+				if (queued.image != null && queued.image.device == outbound.image.device) {
+					iterator.remove();
+					queued.done();
+					coalesced++;
+				}
+			}
+		}
+
+		if (policy == Policy.COALESCE && outbound.coalescable) {
+			Iterator<Outbound> iterator = queue.iterator();
+
+			while (iterator.hasNext()) {
+				Outbound queued = iterator.next();
+
+				if (queued.coalescable && queued.name.equals(outbound.name)) {
+					iterator.remove();
+					queued.done();
+					coalesced++;
+				}
+			}
+		}
+
+		if (queue.size() >= capacity) {
+			if (policy == Policy.DISCONNECT) {
+				outbound.done();
+				evict();
+				return;
+			}
+
+			Outbound oldest = pollDroppable();
+
+			if (oldest != null) {
+				oldest.done();
+				drop();
+			} else if (!outbound.preserved) {
+				outbound.done();
+				drop();
+				return;
+			} else {
+				// the queue only holds events that must not be lost; the client replays them from the journal after reconnecting
+				outbound.done();
+				evict();
+				return;
+			}
+		}
+
+		queue.addLast(outbound);
+	}
+
+	/**
+	 * Removes the oldest queued event that is not {@link #PRESERVED}. Called with the lock held.
+	 *
+	 * @return The event, or {@code null} if every queued event is preserved.
+	 */
+	private Outbound pollDroppable() {
+		Iterator<Outbound> iterator = queue.iterator();
+
+		while (iterator.hasNext()) {
+			Outbound queued = iterator.next();
+
+			if (!queued.preserved) {
+				iterator.remove();
+				return queued;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Counts a dropped event. Called with the lock held.
+	 */
+	private void drop() {
+		dropped++;
+		totalDropped.incrementAndGet();
+	}
+
+	/**
+	 * Hands queued events to the socket while its write buffer has room. Must be called from a single thread, since the frames are shared between connections.
+	 */
+	public void pump() {
+		while (true) {
+			Outbound next;
+
+			synchronized (this) {
+				next = queue.peekFirst();
+
+				if (next == null || evicted) {
+					return;
+				}
+
+				if (policy == Policy.DISCONNECT && System.nanoTime() - next.queuedAt > maxLag) {
+					evict();
+					return;
+				}
+
+				if (getWireBacklog() >= WIRE_LIMIT) {
+					return;
+				}
+
+				queue.pollFirst();
+			}
+
+			try {
+				socket.sendFrame(next.frames);
+			} catch (WebsocketNotConnectedException e) {
+				synchronized (this) {
+					clear();
+				}
+				return;
+			} finally {
+				// the socket has copied the frames into its own buffers
+				next.done();
+			}
+
+			synchronized (this) {
+				sent++;
+			}
+			Metrics.SEND_LAG.recordSince(next.queuedAt);
+		}
+	}
+
+	/**
+	 * Closes a connection that fell too far behind. A client that is not reading at all would never answer the close frame, so its socket is dropped at once. Called
+	 * with the lock held.
+	 */
+	private void evict() {
+		evicted = true;
+		totalEvicted.incrementAndGet();
+		clear();
+		Main.log.warning(socket.getRemoteSocketAddress() + " is too slow and was disconnected");
+
+		if (getWireBacklog() < WIRE_LIMIT) {
+			socket.close(CloseFrame.POLICY_VALIDATION, "Client is too slow");
+		} else {
+			socket.closeConnection(CloseFrame.POLICY_VALIDATION, "Client is too slow");
+		}
+	}
+
+	/**
+	 * Drops every queued event. Called with the lock held.
+	 */
+	private void clear() {
+		for (Outbound outbound = queue.pollFirst(); outbound != null; outbound = queue.pollFirst()) {
+			outbound.done();
+		}
+	}
+
+	/**
+	 * Drops every queued event once the connection has closed.
+	 */
+	public synchronized void close() {
+		clear();
+	}
+
+	/**
+	 * @return The number of frames handed to the socket and not yet written.
+	 */
+	private int getWireBacklog() {
+		return socket instanceof WebSocketImpl ? ((WebSocketImpl) socket).outQueue.size() : 0;
+	}
+
+	/**
+	 * @return The number of events waiting in the queue.
+	 */
+	public synchronized int getDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return How long the oldest queued event has been waiting, in milliseconds.
+	 */
+	public synchronized long getLag() {
+		Outbound oldest = queue.peekFirst();
+		return oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.queuedAt);
+	}
+
+	/**
+	 * @return The number of events dropped from full queues, across all connections since the start.
+	 */
+	public static long getTotalDropped() {
+		return totalDropped.get();
+	}
+
+	/**
+	 * @return The number of connections closed for falling behind, since the start.
+	 */
+	public static long getTotalEvicted() {
+		return totalEvicted.get();
+	}
+
+	/**
+	 * Summarizes the connection's queue.
+	 *
+	 * @return The client address, format, queue depth and lag, and counts of events sent, dropped and coalesced.
+	 */
+	public synchronized JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		json.put("address", String.valueOf(socket.getRemoteSocketAddress()));
+		json.put("binary", binary);
+		json.put("depth", queue.size());
+		json.put("lag", getLag());
+		json.put("wire", getWireBacklog());
+		json.put("sent", sent);
+		json.put("dropped", dropped);
+		json.put("coalesced", coalesced);
+		return json;
+	}
+}
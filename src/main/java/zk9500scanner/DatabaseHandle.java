@@ -0,0 +1,262 @@
+package zk9500scanner;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted algorithm database, partitioned into shards.
+ * <p>
+ * Each shard is a separate native database holding the templates whose ID maps to it ({@code floorMod(id, shards)}), so that identification can search every shard in
+ * parallel. The shard count is taken from the `library.shards` system property and defaults to the number of cores.
+ * </p>
+ * <p>
+ * The owner holds one reference from creation. Users take a reference with {@link #retain()} for the duration of a call and give it back with {@link #release()}. The
+ * native handles are freed by whichever release drops the count to zero, so a database that has been replaced can still serve calls that started before the swap.
+ * </p>
+ * <p>
+ * The algorithm library cannot hand stored templates back, so the database keeps its own copy of each one, without the zero padding after the template data. 1:1
+ * verification and batch jobs read them from here without any lock.
+ * </p>
+ */
+public class DatabaseHandle {
+	private final SensorDriver driver;
+	private final long[] handles;
+	private final AtomicInteger references = new AtomicInteger(1);
+	private final Map<Integer, byte[]> templates = new ConcurrentHashMap<>(); // Stored templates by ID, trailing zeros cut off
+
+	/**
+	 * Allocates a new, empty database with the configured number of shards.
+	 *
+	 * @param driver The driver providing the algorithm library.
+	 * @throws Exception If the algorithm library cannot be initialized.
+	 */
+	public DatabaseHandle(SensorDriver driver) throws Exception {
+		this(driver, defaultShards());
+	}
+
+	/**
+	 * Allocates a new, empty database.
+	 *
+	 * @param driver The driver providing the algorithm library.
+	 * @param shards The number of shards.
+	 * @throws Exception If the algorithm library cannot be initialized.
+	 */
+	public DatabaseHandle(SensorDriver driver, int shards) throws Exception {
+		this.driver = driver;
+		this.handles = new long[Math.max(1, shards)];
+
+		for (int i = 0; i < handles.length; i++) {
+			handles[i] = driver.dbInit();
+
+			if (handles[i] == 0) {
+				for (int j = 0; j < i; j++) {
+					driver.dbFree(handles[j]);
+				}
+				throw new Exception("Failed to initialize algorithm library");
+			}
+		}
+	}
+
+	/**
+	 * Returns the configured shard count: the `library.shards` system property, or the number of cores.
+	 *
+	 * @return The shard count.
+	 */
+	public static int defaultShards() {
+		return Integer.getInteger("library.shards", Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Takes a reference unless the database has already been freed.
+	 *
+	 * @return `true` if a reference was taken, `false` if the database is gone.
+	 */
+	public boolean retain() {
+		while (true) {
+			int count = references.get();
+
+			if (count == 0) {
+				return false;
+			}
+
+			if (references.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Gives back a reference, freeing the native databases when it was the last one.
+	 */
+	public void release() {
+		if (references.decrementAndGet() == 0) {
+			for (long handle : handles) {
+				driver.dbFree(handle);
+			}
+		}
+	}
+
+	/**
+	 * Returns the native handle of the first shard, for calls that do not depend on the stored templates such as {@code DBMatch} and {@code DBMerge}. Only valid while
+	 * holding a reference.
+	 *
+	 * @return A native database handle.
+	 */
+	public long get() {
+		return handles[0];
+	}
+
+	/**
+	 * Returns the native handle of a shard. Only valid while holding a reference.
+	 *
+	 * @param shard The shard index.
+	 * @return The native database handle.
+	 */
+	public long getShard(int shard) {
+		return handles[shard];
+	}
+
+	/**
+	 * @return The number of shards.
+	 */
+	public int getShardCount() {
+		return handles.length;
+	}
+
+	/**
+	 * Returns the native handle of the shard holding a fingerprint ID.
+	 *
+	 * @param id The fingerprint ID.
+	 * @return The native database handle.
+	 */
+	public long shardOf(int id) {
+		return handles[Math.floorMod(id, handles.length)];
+	}
+
+	/**
+	 * Adds a template to the shard of its ID.
+	 *
+	 * @param id       The fingerprint ID.
+	 * @param template The template.
+	 * @return The SDK result code, 0 on success.
+	 */
+	public int add(int id, byte[] template) {
+		int result = driver.dbAdd(shardOf(id), id, template);
+
+		if (result == 0) {
+			int length = Math.min(template.length, Library.TEMPLATE_SIZE);
+			while (length > 0 && template[length - 1] == 0) {
+				length--;
+			}
+			templates.put(id, Arrays.copyOf(template, length));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Removes a template from the shard of its ID.
+	 *
+	 * @param id The fingerprint ID.
+	 * @return The SDK result code, 0 on success.
+	 */
+	public int remove(int id) {
+		int result = driver.dbDel(shardOf(id), id);
+
+		if (result == 0) {
+			templates.remove(id);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Copies the stored template of a fingerprint.
+	 *
+	 * @param id  The fingerprint ID.
+	 * @param out Receives the template, zero-padded; at least {@link Library#TEMPLATE_SIZE} bytes.
+	 * @return false if the ID is not in the database.
+	 */
+	public boolean getTemplate(int id, byte[] out) {
+		byte[] template = templates.get(id);
+
+		if (template == null) {
+			return false;
+		}
+
+		System.arraycopy(template, 0, out, 0, template.length);
+		Arrays.fill(out, template.length, Library.TEMPLATE_SIZE, (byte) 0);
+		return true;
+	}
+
+	/**
+	 * Adds every stored template to another database.
+	 *
+	 * @param database The database to fill.
+	 * @return The number of templates added.
+	 */
+	public int copyTo(DatabaseHandle database) {
+		byte[] padded = new byte[Library.TEMPLATE_SIZE];
+		int added = 0;
+
+		for (Map.Entry<Integer, byte[]> entry : templates.entrySet()) {
+			byte[] template = entry.getValue();
+			System.arraycopy(template, 0, padded, 0, template.length);
+			Arrays.fill(padded, template.length, Library.TEMPLATE_SIZE, (byte) 0);
+
+			if (database.add(entry.getKey(), padded) == 0) {
+				added++;
+			}
+		}
+
+		return added;
+	}
+
+	/**
+	 * @return The IDs of every stored template, in no particular order.
+	 */
+	public int[] getIds() {
+		return templates.keySet().stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * Identifies a template against every shard, one after the other. Live identification searches the shards in parallel through {@link Library#identify(byte[], int[])}
+	 * instead; this is for databases private to one thread.
+	 *
+	 * @param template The template.
+	 * @param result   Receives the ID at index 0 and the score at index 1 of the best match.
+	 * @return false if no shard matched.
+	 */
+	public boolean identify(byte[] template, int[] result) {
+		return identify(template, result, 0);
+	}
+
+	/**
+	 * Identifies a template against every shard, one after the other, starting with a given shard. Threads sharing a database start on different shards, so they
+	 * seldom wait for each other on the same native database.
+	 *
+	 * @param template The template.
+	 * @param result   Receives the ID at index 0 and the score at index 1 of the best match.
+	 * @param first    The shard searched first.
+	 * @return false if no shard matched.
+	 */
+	public boolean identify(byte[] template, int[] result, int first) {
+		int[] id = new int[1];
+		int[] score = new int[1];
+		boolean found = false;
+
+		for (int i = 0; i < handles.length; i++) {
+			long handle = handles[Math.floorMod(first + i, handles.length)];
+
+			if (driver.dbIdentify(handle, template, id, score) == 0 && (!found || score[0] > result[1])) {
+				result[0] = id[0];
+				result[1] = score[0];
+				found = true;
+			}
+		}
+
+		return found;
+	}
+}
@@ -0,0 +1,249 @@
+package zk9500scanner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.zkteco.biometric.FingerprintSensorErrorCode;
+
+/**
+ * Owns the SDK lifecycle and one {@link Scanner} per connected sensor. Every scanner runs its own acquisition thread and image buffer and hands its captures to the
+ * same consumer, so several lanes share one process and one {@link Library}.
+ */
+public class DeviceManager {
+	private final SensorDriver driver;
+	private volatile List<Scanner> scanners = Collections.emptyList();
+	private boolean initialized = false;
+	private volatile int enumerated = 0;
+
+	/** Receives the captures of every device. */
+	public Consumer<Scan> onScanEvent = null;
+
+	/** Receives the capture images of every device, on its acquisition thread. */
+	public Scanner.ImageListener onImage = null;
+
+	/** Receives every device whose sensor was lost, on its acquisition thread. */
+	public Scanner.LostListener onLost = null;
+
+	/**
+	 * @param driver The sensor driver.
+	 */
+	public DeviceManager(SensorDriver driver) {
+		this.driver = driver;
+	}
+
+	/**
+	 * Initializes the SDK, opens every connected device and starts scanning on each.
+	 *
+	 * @return true if at least one device is scanning.
+	 */
+	public synchronized boolean open() {
+		close();
+
+		int ret = driver.init();
+		if (ret != FingerprintSensorErrorCode.ZKFP_ERR_OK && ret != FingerprintSensorErrorCode.ZKFP_ERR_ALREADY_INIT) {
+			Main.log.severe("Scanner initialization failed: Unable to initialize scanner resources.");
+			return false;
+		}
+		initialized = true;
+
+		int deviceCount = driver.getDeviceCount();
+		if (deviceCount < 1) {
+			Main.log.severe("Scanner initialization failed: No device(s) connected");
+			close();
+			return false;
+		}
+
+		List<Scanner> opened = new ArrayList<>();
+
+		for (int i = 0; i < deviceCount; i++) {
+			Scanner scanner = openScanner(i);
+
+			if (scanner != null) {
+				opened.add(scanner);
+			}
+		}
+
+		scanners = Collections.unmodifiableList(opened);
+		enumerated = deviceCount;
+		Main.log.info("Scanning on " + opened.size() + " of " + deviceCount + " device(s).");
+
+		if (opened.isEmpty()) {
+			close();
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Opens a device and starts scanning on it.
+	 *
+	 * @param index The device index.
+	 * @return The scanner, or {@code null} if the device could not be opened.
+	 */
+	private Scanner openScanner(int index) {
+		Scanner scanner = new Scanner(driver, index, AcquisitionScheduler.fromSystemProperties());
+		scanner.onScanEvent = scan -> {
+			Consumer<Scan> consumer = onScanEvent;
+
+			if (consumer != null) {
+				consumer.accept(scan);
+			} else {
+				scan.recycle();
+			}
+		};
+		scanner.onImage = (device, sequence, image, width, height) -> {
+			Scanner.ImageListener listener = onImage;
+
+			if (listener != null) {
+				listener.accept(device, sequence, image, width, height);
+			}
+		};
+		scanner.onLost = (lost, code) -> {
+			Scanner.LostListener listener = onLost;
+
+			if (listener != null) {
+				listener.accept(lost, code);
+			}
+		};
+
+		scanner.init();
+		if (!scanner.isOpen()) {
+			return null;
+		}
+
+		scanner.startScanning();
+		return scanner;
+	}
+
+	/**
+	 * Checks if any device is open.
+	 *
+	 * @return true if at least one scanner is open.
+	 */
+	public boolean isOpen() {
+		for (Scanner scanner : scanners) {
+			if (scanner.isOpen()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Opens a lost device again and restarts its acquisition task. A connected device without a scanner, because it failed to open or was plugged in after the SDK was
+	 * initialized, is opened and added to the scanners. The SDK is not reinitialized, so the other devices keep scanning.
+	 *
+	 * @param device The device index.
+	 * @return true if the device is scanning again.
+	 */
+	public synchronized boolean reopen(int device) {
+		for (Scanner scanner : scanners) {
+			if (scanner.getDeviceIndex() == device) {
+				if (!scanner.isOpen()) {
+					scanner.init();
+
+					if (!scanner.isOpen()) {
+						return false;
+					}
+
+					scanner.startScanning();
+				}
+				return true;
+			}
+		}
+
+		if (!initialized || device < 0 || device >= driver.getDeviceCount()) {
+			return false;
+		}
+
+		Scanner scanner = openScanner(device);
+		if (scanner == null) {
+			return false;
+		}
+
+		List<Scanner> opened = new ArrayList<>(scanners);
+		opened.add(scanner);
+		scanners = Collections.unmodifiableList(opened);
+		return true;
+	}
+
+	/**
+	 * Lists the connected devices that have no scanner: devices that failed to open when the SDK was initialized, and devices plugged in since.
+	 *
+	 * @return The device indices, empty while the SDK is not initialized.
+	 */
+	public synchronized List<Integer> getMissing() {
+		if (!initialized) {
+			return Collections.emptyList();
+		}
+
+		int deviceCount = driver.getDeviceCount();
+		List<Integer> missing = new ArrayList<>();
+		for (int i = 0; i < deviceCount; i++) {
+			if (getScanner(i) == null) {
+				missing.add(i);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Returns the number of devices connected when the SDK was last initialized. A device with a higher index was not enumerated.
+	 *
+	 * @return The device count, 0 while the SDK is not initialized.
+	 */
+	public int getDeviceCount() {
+		return enumerated;
+	}
+
+	/**
+	 * Stops every scanner, closes the devices and terminates the SDK.
+	 */
+	public synchronized void close() {
+		for (Scanner scanner : scanners) {
+			scanner.stopScanning();
+			scanner.releaseScanner();
+		}
+		scanners = Collections.emptyList();
+		enumerated = 0;
+
+		if (initialized) {
+			driver.terminate();
+			initialized = false;
+		}
+	}
+
+	/**
+	 * @return The scanners of the open devices.
+	 */
+	public List<Scanner> getScanners() {
+		return scanners;
+	}
+
+	/**
+	 * Returns the acquisition scheduler of a device, which collects the scan-to-event latency of its scans.
+	 *
+	 * @param device The device index.
+	 * @return The scheduler, or {@code null} if the device is not open.
+	 */
+	public AcquisitionScheduler getScheduler(int device) {
+		Scanner scanner = getScanner(device);
+		return scanner != null ? scanner.getScheduler() : null;
+	}
+
+	/**
+	 * @param device The device index.
+	 * @return The scanner of the device, or {@code null} if it has none.
+	 */
+	public Scanner getScanner(int device) {
+		for (Scanner scanner : scanners) {
+			if (scanner.getDeviceIndex() == device) {
+				return scanner;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,298 @@
+package zk9500scanner;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import com.zkteco.biometric.FingerprintSensorErrorCode;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Keeps the WebSocket server and the sensors in service for as long as the application runs.
+ * <p>
+ * Until a sensor is found, the supervisor initializes the SDK and opens every connected device, retrying with exponential backoff from `device.backoff.min`
+ * milliseconds (default 50) up to `device.backoff.max` (default 2000). A sensor lost while scanning (see {@link Scanner}) wakes the supervisor at once, and it reopens
+ * that device alone with the same backoff while the other devices keep scanning. When every device is lost and reopening has failed `device.reinit.after` times in a
+ * row (default 3), the SDK is reinitialized instead, since a replugged sensor may only be enumerated again by a new initialization. The outages of devices that the
+ * new initialization no longer enumerates are dropped. A connected device without a scanner, because it failed to open or was plugged in later, is reported lost and
+ * opened with the same backoff.
+ * </p>
+ * <p>
+ * The WebSocket server is watched the same way: when it stops listening, a new listening socket is started with the same backoff.
+ * </p>
+ * <p>
+ * Clients receive a `device-lost` event with the `device` and the SDK error `code`, and a `device-restored` event with the `device`, its `downtime` in milliseconds
+ * and the number of `attempts`. The downtime is also recorded in the `device-recovery` histogram.
+ * </p>
+ */
+public class DeviceSupervisor {
+	/** How often the supervisor checks on the server when nothing is waiting to be reopened, in nanoseconds. */
+	private static final long IDLE_INTERVAL = TimeUnit.SECONDS.toNanos(2);
+
+	private final SocketServer socket;
+	private final DeviceManager devices;
+	private final long minBackoff = TimeUnit.MILLISECONDS.toNanos(Long.getLong("device.backoff.min", 50));
+	private final long maxBackoff = TimeUnit.MILLISECONDS.toNanos(Long.getLong("device.backoff.max", 2000));
+	private final int reinitAfter = Integer.getInteger("device.reinit.after", 3);
+	private final Map<Integer, Outage> outages = new ConcurrentHashMap<>();
+	private volatile boolean running = false;
+	private volatile Thread thread = null;
+	private long socketBackoff = minBackoff;
+	private long nextSocketAt = 0;
+	private long openBackoff = minBackoff;
+	private long nextOpenAt = 0;
+
+	/** Receives the `device-lost` and `device-restored` events. */
+	public Consumer<Event> onEvent = null;
+
+	/**
+	 * A lost device waiting to be reopened.
+	 */
+	private static final class Outage {
+		final int device;
+		final int code;
+		final long lostAt = System.nanoTime();
+		int attempts = 0;
+		long backoff;
+		long nextAttemptAt = 0;
+
+		Outage(int device, int code, long backoff) {
+			this.device = device;
+			this.code = code;
+			this.backoff = backoff;
+		}
+	}
+
+	/**
+	 * @param socket  The WebSocket server, started and kept listening by the supervisor.
+	 * @param devices The devices kept in service.
+	 */
+	public DeviceSupervisor(SocketServer socket, DeviceManager devices) {
+		this.socket = socket;
+		this.devices = devices;
+	}
+
+	/**
+	 * Starts the supervisor thread.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+
+		running = true;
+		thread = new Thread(this::run, "device-supervisor");
+		thread.start();
+	}
+
+	/**
+	 * Stops the supervisor thread. The devices are left as they are.
+	 */
+	public void stop() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Reports a lost sensor and wakes the supervisor to reopen it. Called on the scanner's acquisition thread.
+	 *
+	 * @param scanner The scanner whose sensor was lost.
+	 * @param code    The SDK error code of its last poll.
+	 */
+	public void lost(Scanner scanner, int code) {
+		lost(scanner.getDeviceIndex(), code, "Fingerprint sensor disconnected");
+		LockSupport.unpark(thread);
+	}
+
+	private void lost(int device, int code, String message) {
+		if (outages.putIfAbsent(device, new Outage(device, code, minBackoff)) == null) {
+			publish(new Event(Event.DEVICE_LOST).put("device", device).put("code", code).put("message", message));
+		}
+	}
+
+	private void run() {
+		while (running) {
+			long delay;
+
+			try {
+				delay = supervise(System.nanoTime());
+			} catch (Exception e) {
+				Main.log.log(Level.SEVERE, "Supervisor error", e);
+				delay = IDLE_INTERVAL;
+			}
+
+			LockSupport.parkNanos(this, delay);
+		}
+
+		Main.log.info("Scanner detection stopped.");
+	}
+
+	/**
+	 * Makes one round of checks.
+	 *
+	 * @param now The current {@link System#nanoTime()}.
+	 * @return How long to wait before the next round, in nanoseconds, unless a lost sensor wakes the supervisor earlier.
+	 */
+	private long supervise(long now) {
+		long socketDelay = superviseSocket(now);
+		return Math.min(socketDelay, superviseDevices(now));
+	}
+
+	/**
+	 * Starts the WebSocket server, and starts it again whenever it has stopped listening.
+	 *
+	 * @return How long to wait before checking the server again, in nanoseconds.
+	 */
+	private long superviseSocket(long now) {
+		if (socket.isRunning()) {
+			socketBackoff = minBackoff;
+			return IDLE_INTERVAL;
+		}
+
+		if (now < nextSocketAt) {
+			return nextSocketAt - now;
+		}
+
+		if (nextSocketAt != 0) {
+			Main.log.warning("WebSocket server is not listening, starting it again");
+		}
+
+		socket.start();
+		nextSocketAt = now + socketBackoff;
+		socketBackoff = Math.min(socketBackoff * 2, maxBackoff);
+		return nextSocketAt - now;
+	}
+
+	/**
+	 * Opens the devices, reopens lost ones and reinitializes the SDK when needed.
+	 *
+	 * @return How long to wait before the next round, in nanoseconds.
+	 */
+	private long superviseDevices(long now) {
+		// nothing is open: the first start, or a reinitialization that found no sensor
+		if (devices.getScanners().isEmpty()) {
+			if (now < nextOpenAt) {
+				return nextOpenAt - now;
+			}
+
+			if (devices.open()) {
+				openBackoff = minBackoff;
+				restoreOpened();
+				dropUnenumerated();
+				return 0;
+			}
+
+			nextOpenAt = now + openBackoff;
+			openBackoff = Math.min(openBackoff * 2, maxBackoff);
+			return nextOpenAt - now;
+		}
+
+		for (int device : devices.getMissing()) {
+			lost(device, FingerprintSensorErrorCode.ZKFP_ERR_OPEN, "Fingerprint sensor could not be opened");
+		}
+
+		long next = IDLE_INTERVAL;
+		boolean allLost = true;
+
+		for (Scanner scanner : devices.getScanners()) {
+			allLost &= outages.containsKey(scanner.getDeviceIndex());
+		}
+
+		for (Outage outage : outages.values()) {
+			if (now < outage.nextAttemptAt) {
+				next = Math.min(next, outage.nextAttemptAt - now);
+				continue;
+			}
+
+			outage.attempts++;
+
+			// closing every device sends the next round to the initialization above
+			if (allLost && outage.attempts > reinitAfter) {
+				Main.log.info("Reinitializing the fingerprint SDK after " + reinitAfter + " failed attempts to reopen every device");
+				devices.close();
+				openBackoff = outage.backoff;
+				nextOpenAt = 0;
+				return 0;
+			}
+
+			if (devices.reopen(outage.device)) {
+				restore(outage);
+			} else {
+				outage.nextAttemptAt = now + outage.backoff;
+				outage.backoff = Math.min(outage.backoff * 2, maxBackoff);
+				next = Math.min(next, outage.nextAttemptAt - now);
+			}
+		}
+
+		return next;
+	}
+
+	/**
+	 * Ends the outages of the devices that are open again after the SDK was initialized.
+	 */
+	private void restoreOpened() {
+		for (Scanner scanner : devices.getScanners()) {
+			Outage outage = outages.get(scanner.getDeviceIndex());
+
+			if (outage != null && scanner.isOpen()) {
+				outage.attempts++;
+				restore(outage);
+			}
+		}
+	}
+
+	/**
+	 * Ends the outages of the devices that are no longer connected after the SDK was initialized, since their indices now belong to other devices or to none.
+	 */
+	private void dropUnenumerated() {
+		int count = devices.getDeviceCount();
+
+		for (Outage outage : outages.values()) {
+			if (outage.device >= count) {
+				outages.remove(outage.device);
+				Main.log.info("Scanner " + outage.device + " is no longer connected");
+			}
+		}
+	}
+
+	private void restore(Outage outage) {
+		long downtime = System.nanoTime() - outage.lostAt;
+		long millis = TimeUnit.NANOSECONDS.toMillis(downtime);
+
+		outages.remove(outage.device);
+		Metrics.DEVICE_RECOVERY.record(downtime);
+
+		Main.log.info("Scanner " + outage.device + " back in service after " + millis + " ms (" + outage.attempts + " attempts)");
+		publish(new Event(Event.DEVICE_RESTORED).put("device", outage.device).put("downtime", millis).put("attempts", outage.attempts));
+	}
+
+	private void publish(Event event) {
+		Consumer<Event> consumer = onEvent;
+
+		if (consumer != null) {
+			consumer.accept(event);
+		}
+	}
+
+	/**
+	 * Summarizes the devices waiting to be reopened.
+	 *
+	 * @return One entry per lost device with its `device` index, the SDK error `code`, how long it has been `down` in milliseconds and the reopen `attempts` so far.
+	 */
+	public JSONArray toJSON() {
+		JSONArray json = new JSONArray();
+		long now = System.nanoTime();
+
+		for (Outage outage : outages.values()) {
+			json.put(new JSONObject().put("device", outage.device).put("code", outage.code).put("down", TimeUnit.NANOSECONDS.toMillis(now - outage.lostAt))
+					.put("attempts", outage.attempts));
+		}
+
+		return json;
+	}
+}
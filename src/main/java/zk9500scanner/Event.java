@@ -0,0 +1,231 @@
+package zk9500scanner;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+
+import org.json.JSONObject;
+
+/**
+ * A message exchanged with clients. Events are encoded on demand, either as JSON text or as a {@link BinaryProtocol} frame, and each encoding is computed at most once
+ * however many connections receive it.
+ */
+public class Event {
+	public static final String BIOMETRIC = "biometric";
+	public static final String BIOMETRIC_ERROR = "biometric-error";
+	public static final String BIOMETRIC_HOLD = "biometric-hold";
+	public static final String REGISTRATION_START = "registration-start";
+	public static final String REGISTRATION_ONGOING = "registration-ongoing";
+	public static final String REGISTRATION_SUCCESS = "registration-success";
+	public static final String REGISTRATION_ERROR = "registration-error";
+	public static final String LIBRARY_INIT = "library-init";
+	public static final String LIBRARY_INIT_BEGIN = "library-init-begin";
+	public static final String LIBRARY_INIT_CHUNK = "library-init-chunk";
+	public static final String LIBRARY_INIT_COMMIT = "library-init-commit";
+	public static final String LIBRARY_INIT_PROGRESS = "library-init-progress";
+	public static final String LIBRARY_INIT_OK = "library-init-ok";
+	public static final String METRICS = "metrics";
+	public static final String COMMAND_REJECTED = "command-rejected";
+	public static final String LIBRARY_ADD = "library-add";
+	public static final String LIBRARY_UPDATE = "library-update";
+	public static final String LIBRARY_REMOVE = "library-remove";
+	public static final String LIBRARY_ACK = "library-ack";
+	public static final String VERIFY_START = "verify-start";
+	public static final String VERIFY = "verify";
+	public static final String VERIFY_ERROR = "verify-error";
+	public static final String BATCH_IDENTIFY = "batch-identify";
+	public static final String BATCH_AUDIT = "batch-audit";
+	public static final String BATCH_CANCEL = "batch-cancel";
+	public static final String BATCH_PROGRESS = "batch-progress";
+	public static final String BATCH_DONE = "batch-done";
+	public static final String CAPTURE_QUALITY = "capture-quality";
+	public static final String IMAGE_STREAM = "image-stream";
+	public static final String IMAGE_FRAME = "image-frame";
+	public static final String DEVICE_LOST = "device-lost";
+	public static final String DEVICE_RESTORED = "device-restored";
+	public static final String JOURNAL_REPLAY = "journal-replay";
+	public static final String JOURNAL_ACK = "journal-ack";
+
+	private static final ZoneId ZONE = ZoneId.of("Asia/Manila");
+	private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+	private final String name;
+	private Integer id = null;
+	private Integer score = null;
+	private long timestamp = 0;
+	private byte[] template = null;
+	private JSONObject extra = null;
+	private String text = null;
+	private ByteBuffer binary = null;
+
+	public Event(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Wraps a JSON message whose `event` field names the event.
+	 *
+	 * @param json The message.
+	 * @return The event carrying every field of the message.
+	 */
+	public static Event fromJSON(JSONObject json) {
+		Event event = new Event(json.optString("event"));
+
+		for (String key : json.keySet()) {
+			if (!key.equals("event")) {
+				event.put(key, json.get(key));
+			}
+		}
+
+		return event;
+	}
+
+	public Event id(int id) {
+		this.id = id;
+		return this;
+	}
+
+	public Event score(int score) {
+		this.score = score;
+		return this;
+	}
+
+	/**
+	 * Sets the time the event refers to, in epoch milliseconds. JSON clients receive it as a local `yyyy-MM-dd HH:mm:ss` string.
+	 */
+	public Event timestamp(long timestamp) {
+		this.timestamp = timestamp;
+		return this;
+	}
+
+	/**
+	 * Attaches a fingerprint template, sent raw in binary frames and as base64 `fingerprint` in JSON.
+	 */
+	public Event template(byte[] template) {
+		this.template = template;
+		return this;
+	}
+
+	/**
+	 * Adds any other field. A {@code null} value is ignored.
+	 */
+	public Event put(String key, Object value) {
+		if (value == null) {
+			return this;
+		}
+
+		if (extra == null) {
+			extra = new JSONObject();
+		}
+
+		extra.put(key, value);
+		return this;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Integer getId() {
+		return id;
+	}
+
+	public Integer getScore() {
+		return score;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public byte[] getTemplate() {
+		return template;
+	}
+
+	public JSONObject getExtra() {
+		return extra;
+	}
+
+	/**
+	 * Returns the JSON form of the event, including the template.
+	 *
+	 * @return The JSON object.
+	 */
+	public JSONObject toJSON() {
+		JSONObject json = toHeader();
+
+		if (template != null) {
+			json.put("fingerprint", Base64.getEncoder().encodeToString(template));
+		}
+
+		return json;
+	}
+
+	/**
+	 * Returns the JSON form of the event without the template.
+	 *
+	 * @return The JSON object.
+	 */
+	public JSONObject toHeader() {
+		JSONObject json = new JSONObject();
+		json.put("event", name);
+
+		if (id != null) {
+			json.put("id", id.intValue());
+		}
+		if (score != null) {
+			json.put("score", score.intValue());
+		}
+		if (timestamp != 0) {
+			json.put("timestamp", formatTimestamp(timestamp));
+		}
+		if (extra != null) {
+			for (String key : extra.keySet()) {
+				json.put(key, extra.get(key));
+			}
+		}
+
+		return json;
+	}
+
+	/**
+	 * Returns the JSON text sent to JSON clients, encoding it on first use.
+	 *
+	 * @return The JSON text.
+	 */
+	public synchronized String toText() {
+		if (text == null) {
+			long start = System.nanoTime();
+			text = toJSON().toString();
+			Metrics.SERIALIZE.recordSince(start);
+		}
+		return text;
+	}
+
+	/**
+	 * Returns the frame sent to binary clients, encoding it on first use.
+	 *
+	 * @return A read-only view of the frame.
+	 */
+	public synchronized ByteBuffer toBinary() {
+		if (binary == null) {
+			long start = System.nanoTime();
+			binary = BinaryProtocol.encode(this);
+			Metrics.SERIALIZE.recordSince(start);
+		}
+		return binary.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Formats epoch milliseconds the way clients expect timestamps: local time in a MySQL-compatible format.
+	 *
+	 * @param millis Epoch milliseconds.
+	 * @return The formatted timestamp.
+	 */
+	public static String formatTimestamp(long millis) {
+		return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZONE).format(TIMESTAMP_FORMAT);
+	}
+}
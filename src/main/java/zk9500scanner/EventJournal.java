@@ -0,0 +1,530 @@
+package zk9500scanner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.json.JSONObject;
+
+/**
+ * Durable, numbered log of the events clients must not miss, such as `biometric` clock-ins, so that a client that was disconnected when they were sent can replay them.
+ * <p>
+ * Each journaled event gets the next `sequence` number, starting from 1, and is appended in its {@link BinaryProtocol} encoding to a memory-mapped segment file
+ * {@code events-<first sequence>.journal}. A segment is made of a 32-byte header (magic, version, first sequence and the header's CRC32) followed by records of
+ * length, CRC32, sequence and frame; a zero length ends the segment. A record is written before its length, so after a crash the journal resumes after the last
+ * intact record. A segment that is full is left as it is and a new one is started.
+ * </p>
+ * <p>
+ * Appending only copies the record into the mapped segment. {@link #flush()} forces every record appended so far to disk at once, so a single flush commits a group of
+ * events, on a thread of the caller's choosing rather than the one appending. Reads take a consistent view of the segments and then read them without the lock that
+ * appends need.
+ * </p>
+ * <p>
+ * A consumer, named by the client, acknowledges the sequence it has safely stored with `journal-ack`, and asks for everything after it with `journal-replay`; the
+ * acknowledgements are kept in {@code journal-consumers.json}. A segment is deleted once every known consumer has acknowledged its last event, or when there are more
+ * than `journal.segments` segments, oldest first. Like library snapshots, segments that cannot be deleted yet are left for a later attempt.
+ * </p>
+ */
+public class EventJournal {
+	/** Magic number identifying a segment file ("ZKEJ"). */
+	public static final int MAGIC = 0x5A4B454A;
+
+	/** Current format version. */
+	public static final int VERSION = 1;
+
+	/** Field carrying the sequence number of a journaled event. */
+	public static final String SEQUENCE = "sequence";
+
+	private static final int HEADER_SIZE = 32;
+	private static final int RECORD_HEADER = 16;
+	private static final String PREFIX = "events-";
+	private static final String SUFFIX = ".journal";
+	private static final String CONSUMERS = "journal-consumers.json";
+
+	private final Path dir;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final boolean sync;
+	private final Set<String> events;
+	private final TreeMap<Long, Path> segments = new TreeMap<>(); // First sequence of every segment, the active one last
+	private final Map<String, Long> consumers = new HashMap<>(); // Last sequence acknowledged by each consumer
+	private final CRC32 crc = new CRC32();
+	private MappedByteBuffer buffer; // The active segment
+	private long activeFirst;
+	private int position;
+	private long nextSequence;
+
+	private EventJournal(Path dir, int segmentSize, int maxSegments, boolean sync, Set<String> events) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+		this.sync = sync;
+		this.events = events;
+	}
+
+	/**
+	 * Opens the journal configured by the system properties: the directory `journal.dir` (default `data`, empty to disable), the segment size `journal.segment` in
+	 * megabytes (default 4), the number of segments kept at most `journal.segments` (default 64), whether {@link #flush()} forces records to disk `journal.sync` (default true) and
+	 * the comma-separated names of the events journaled `journal.events` (default `biometric,verify,registration-success`).
+	 *
+	 * @return The journal, or {@code null} if it is disabled or cannot be opened.
+	 */
+	public static EventJournal fromSystemProperties() {
+		String dir = System.getProperty("journal.dir", "data");
+
+		if (dir.isEmpty()) {
+			return null;
+		}
+
+		int segmentSize = (int) Math.min(Integer.MAX_VALUE, Long.getLong("journal.segment", 4) * 1024 * 1024);
+		int maxSegments = Math.max(1, Integer.getInteger("journal.segments", 64));
+		boolean sync = Boolean.parseBoolean(System.getProperty("journal.sync", "true"));
+		Set<String> events = new HashSet<>(Arrays.asList(System.getProperty("journal.events", "biometric,verify,registration-success").split("\\s*,\\s*")));
+
+		try {
+			return open(Paths.get(dir), segmentSize, maxSegments, sync, events);
+		} catch (IOException e) {
+			Main.log.warning("Event journal unavailable: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Opens the journal in a directory, resuming after its last intact record.
+	 *
+	 * @param dir         The journal directory.
+	 * @param segmentSize The size of a segment in bytes.
+	 * @param maxSegments The number of segments kept at most, acknowledged or not.
+	 * @param sync        Whether {@link #flush()} forces the segment to disk.
+	 * @param events      The names of the events journaled.
+	 * @return The journal.
+	 * @throws IOException If the directory or the active segment cannot be opened.
+	 */
+	public static EventJournal open(Path dir, int segmentSize, int maxSegments, boolean sync, Set<String> events) throws IOException {
+		EventJournal journal = new EventJournal(dir, Math.max(segmentSize, HEADER_SIZE + RECORD_HEADER), maxSegments, sync, events);
+		Files.createDirectories(dir);
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+			for (Path file : files) {
+				Long first = firstSequenceOf(file);
+				if (first != null && first > 0) {
+					journal.segments.put(first, file);
+				}
+			}
+		}
+
+		journal.loadConsumers();
+		journal.recover();
+		return journal;
+	}
+
+	private static Long firstSequenceOf(Path file) {
+		String name = file.getFileName().toString();
+
+		try {
+			return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Maps the newest segment and finds the end of its intact records, or starts the first segment.
+	 */
+	private void recover() throws IOException {
+		if (segments.isEmpty()) {
+			create(1, segmentSize);
+			nextSequence = 1;
+			return;
+		}
+
+		long first = segments.lastKey();
+		Path path = segments.get(first);
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, channel.size()));
+		}
+
+		if (!validHeader(buffer, first, crc)) {
+			Main.log.warning("Discarding invalid event journal segment " + path);
+			create(first, segmentSize);
+			nextSequence = first;
+			return;
+		}
+
+		activeFirst = first;
+		position = HEADER_SIZE;
+		nextSequence = first;
+
+		for (int next = next(buffer, position, nextSequence, crc); next > 0; next = next(buffer, position, nextSequence, crc)) {
+			position = next;
+			nextSequence++;
+		}
+
+		// whatever follows the last intact record, such as a torn write, is ignored from now on
+		endSegment();
+		Main.log.info("Event journal resumed at sequence " + nextSequence + " with " + segments.size() + " segments");
+	}
+
+	/**
+	 * Starts a new active segment whose first event will have the given sequence number.
+	 */
+	private void create(long first, int size) throws IOException {
+		Path path = dir.resolve(PREFIX + first + SUFFIX);
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putLong(8, first);
+
+		crc.reset();
+		crc.update(range(buffer, 0, 16));
+		buffer.putInt(16, (int) crc.getValue());
+		buffer.force();
+
+		segments.put(first, path);
+		activeFirst = first;
+		position = HEADER_SIZE;
+	}
+
+	private static boolean validHeader(ByteBuffer segment, long first, CRC32 crc) {
+		if (segment.limit() < HEADER_SIZE || segment.getInt(0) != MAGIC || segment.getInt(4) != VERSION || segment.getLong(8) != first) {
+			return false;
+		}
+
+		crc.reset();
+		crc.update(range(segment, 0, 16));
+		return segment.getInt(16) == (int) crc.getValue();
+	}
+
+	/**
+	 * Checks the record at a position of a segment. Its CRC32 is only verified when a checksum is given: the records of the active segment were checked when the
+	 * journal was opened or written since, and the records skipped on the way to a replay's first event only need to be walked over.
+	 *
+	 * @param crc The checksum to verify the record with, or {@code null} to skip the check.
+	 * @return The position of the following record, or -1 if there is no intact record with that sequence number at the position.
+	 */
+	private static int next(ByteBuffer segment, int position, long sequence, CRC32 crc) {
+		if (position > segment.limit() - RECORD_HEADER) {
+			return -1;
+		}
+
+		int length = segment.getInt(position);
+
+		if (length <= 0 || length > segment.limit() - position - RECORD_HEADER || segment.getLong(position + 8) != sequence) {
+			return -1;
+		}
+
+		if (crc == null) {
+			return position + RECORD_HEADER + length;
+		}
+
+		crc.reset();
+		crc.update(range(segment, position + 8, position + RECORD_HEADER + length));
+		return segment.getInt(position + 4) == (int) crc.getValue() ? position + RECORD_HEADER + length : -1;
+	}
+
+	/**
+	 * Returns a view of a range of bytes, leaving the buffer's own position and limit alone.
+	 */
+	private static ByteBuffer range(ByteBuffer buffer, int from, int to) {
+		ByteBuffer range = buffer.duplicate();
+		range.limit(to);
+		range.position(from);
+		return range;
+	}
+
+	/**
+	 * Marks the end of the records of the active segment.
+	 */
+	private void endSegment() {
+		if (position <= buffer.limit() - 4) {
+			buffer.putInt(position, 0);
+		}
+	}
+
+	/**
+	 * Tells whether an event is journaled.
+	 *
+	 * @param event The event.
+	 * @return true if the event is one of the `journal.events`.
+	 */
+	public boolean accepts(Event event) {
+		return events.contains(event.getName());
+	}
+
+	/**
+	 * Gives an event the next sequence number and appends it. The record is only durable once a following {@link #flush()} has returned. The event must not have been
+	 * encoded yet.
+	 *
+	 * @param event The event, which receives its `sequence` field.
+	 * @return The sequence number.
+	 * @throws IOException If a new segment cannot be created; the sequence number is then skipped.
+	 */
+	public synchronized long append(Event event) throws IOException {
+		long start = System.nanoTime();
+		long sequence = nextSequence++;
+		ByteBuffer frame = event.put(SEQUENCE, sequence).toBinary();
+		int length = frame.remaining();
+
+		// a full segment is left as it is; an event larger than a segment gets a segment of its own
+		if (position + RECORD_HEADER + length > buffer.limit()) {
+			buffer.force();
+			create(sequence, Math.max(segmentSize, HEADER_SIZE + RECORD_HEADER + length + 4));
+			compact();
+		}
+
+		ByteBuffer target = buffer.duplicate();
+		target.position(position + 8);
+		target.putLong(sequence);
+		target.put(frame);
+
+		crc.reset();
+		crc.update(range(buffer, position + 8, position + RECORD_HEADER + length));
+		buffer.putInt(position + 4, (int) crc.getValue());
+		buffer.putInt(position, length);
+		position += RECORD_HEADER + length;
+		endSegment();
+
+		Metrics.JOURNAL_APPEND.recordSince(start);
+		return sequence;
+	}
+
+	/**
+	 * Forces every record appended so far to disk, without holding up appends meanwhile. Segments that filled up were already forced when they were left.
+	 *
+	 * @return The sequence number of the last event that is durable.
+	 */
+	public long flush() {
+		MappedByteBuffer active;
+		long durable;
+
+		synchronized (this) {
+			active = buffer;
+			durable = nextSequence - 1;
+		}
+
+		if (sync) {
+			long start = System.nanoTime();
+			active.force();
+			Metrics.JOURNAL_FLUSH.recordSince(start);
+		}
+
+		return durable;
+	}
+
+	/**
+	 * Reads journaled events in order. Only the segment list is looked up under the journal's lock; the records are read without it, so appends go on meanwhile. The
+	 * frames are read-only views of the journal and stay valid after segments are deleted.
+	 *
+	 * @param from The first sequence number wanted; older events that were already deleted are skipped.
+	 * @param to   The last sequence number wanted.
+	 * @param max  The number of events read at most.
+	 * @param out  Receives the {@link BinaryProtocol} frame of each event.
+	 * @return The sequence number of the last event read, or {@code from - 1} if there was none.
+	 */
+	public long read(long from, long to, int max, List<ByteBuffer> out) {
+		long start = System.nanoTime();
+		long last = from - 1;
+		TreeMap<Long, Path> tail;
+		long active;
+		ByteBuffer appended;
+
+		synchronized (this) {
+			tail = new TreeMap<>(segments.tailMap(segments.floorKey(Math.max(from, segments.firstKey())), true));
+			active = activeFirst;
+			// the records before the current position are never written again
+			appended = range(buffer.asReadOnlyBuffer(), 0, position);
+		}
+
+		CRC32 crc = new CRC32();
+		int wanted = out.size() + max;
+
+		for (Map.Entry<Long, Path> entry : tail.entrySet()) {
+			boolean isActive = entry.getKey() == active;
+			ByteBuffer segment = isActive ? appended : readSegment(entry.getKey(), entry.getValue(), crc);
+
+			if (segment == null) {
+				continue;
+			}
+
+			long sequence = entry.getKey();
+			int position = HEADER_SIZE;
+
+			while (out.size() < wanted && sequence <= to) {
+				int next = next(segment, position, sequence, !isActive && sequence >= from ? crc : null);
+
+				if (next < 0) {
+					break;
+				}
+
+				if (sequence >= from) {
+					out.add(range(segment, position + RECORD_HEADER, next).slice());
+					last = sequence;
+				}
+
+				position = next;
+				sequence++;
+			}
+
+			if (out.size() >= wanted || sequence > to) {
+				break;
+			}
+		}
+
+		Metrics.JOURNAL_REPLAY.recordSince(start);
+		return last;
+	}
+
+	/**
+	 * Reads the file of a segment that is no longer active.
+	 *
+	 * @return The segment, or {@code null} if it cannot be read.
+	 */
+	private static ByteBuffer readSegment(long first, Path path, CRC32 crc) {
+		try {
+			ByteBuffer segment = ByteBuffer.wrap(Files.readAllBytes(path)).asReadOnlyBuffer();
+
+			if (validHeader(segment, first, crc)) {
+				return segment;
+			}
+
+			Main.log.warning("Skipping invalid event journal segment " + path);
+		} catch (IOException e) {
+			Main.log.warning("Unable to read event journal segment " + path + ": " + e.getMessage());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Records that a consumer has stored every event up to a sequence number, and deletes the segments every consumer has acknowledged.
+	 *
+	 * @param consumer The consumer name.
+	 * @param sequence The last sequence number stored by the consumer.
+	 * @return The consumer's acknowledged sequence number, which never goes back.
+	 * @throws Exception If the consumer name is missing or the acknowledgement cannot be saved.
+	 */
+	public synchronized long acknowledge(String consumer, long sequence) throws Exception {
+		if (consumer == null || consumer.isEmpty()) {
+			throw new Exception("Missing consumer name");
+		}
+
+		long acknowledged = Math.max(getAcknowledged(consumer), Math.min(sequence, nextSequence - 1));
+
+		if (!consumers.containsKey(consumer) || acknowledged > consumers.get(consumer)) {
+			consumers.put(consumer, acknowledged);
+			saveConsumers();
+			compact();
+		}
+
+		return acknowledged;
+	}
+
+	/**
+	 * Returns the last sequence number a consumer acknowledged.
+	 *
+	 * @param consumer The consumer name.
+	 * @return The sequence number, or the one before the oldest event kept if the consumer is unknown.
+	 */
+	public synchronized long getAcknowledged(String consumer) {
+		Long acknowledged = consumer != null ? consumers.get(consumer) : null;
+		return acknowledged != null ? acknowledged : getFirst() - 1;
+	}
+
+	/**
+	 * Deletes the oldest segments while every known consumer has acknowledged all of their events, or while there are too many segments. The active segment is kept.
+	 */
+	private void compact() {
+		long acknowledged = consumers.isEmpty() ? 0 : consumers.values().stream().mapToLong(Long::longValue).min().getAsLong();
+
+		while (segments.size() > 1) {
+			Map.Entry<Long, Path> oldest = segments.firstEntry();
+			long last = segments.higherKey(oldest.getKey()) - 1;
+
+			if (last > acknowledged && segments.size() <= maxSegments) {
+				return;
+			}
+
+			if (last > acknowledged) {
+				Main.log.warning("Deleting event journal segment " + oldest.getValue() + " before every consumer acknowledged it (events " + oldest.getKey() + " to "
+						+ last + ")");
+			}
+
+			try {
+				Files.deleteIfExists(oldest.getValue());
+			} catch (IOException e) {
+				Main.log.fine("Event journal segment " + oldest.getValue() + " not deleted yet: " + e.getMessage());
+				return;
+			}
+
+			segments.remove(oldest.getKey());
+		}
+	}
+
+	private void loadConsumers() throws IOException {
+		Path file = dir.resolve(CONSUMERS);
+
+		if (Files.exists(file)) {
+			JSONObject json = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+
+			for (String consumer : json.keySet()) {
+				consumers.put(consumer, json.getLong(consumer));
+			}
+		}
+	}
+
+	/**
+	 * Saves the acknowledgements, replacing the file atomically.
+	 */
+	private void saveConsumers() throws IOException {
+		Path file = dir.resolve(CONSUMERS);
+		Path temp = dir.resolve(CONSUMERS + ".tmp");
+
+		Files.write(temp, new JSONObject(consumers).toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return The sequence number of the oldest event kept.
+	 */
+	public synchronized long getFirst() {
+		return segments.firstKey();
+	}
+
+	/**
+	 * @return The sequence number of the newest event, 0 if none was ever journaled.
+	 */
+	public synchronized long getLast() {
+		return nextSequence - 1;
+	}
+
+	/**
+	 * Summarizes the journal.
+	 *
+	 * @return The `first` and `last` sequence numbers kept, the number of `segments` and the sequence number each of the `consumers` acknowledged.
+	 */
+	public synchronized JSONObject toJSON() {
+		return new JSONObject().put("first", getFirst()).put("last", getLast()).put("segments", segments.size()).put("consumers", new JSONObject(consumers));
+	}
+}
@@ -1,41 +1,219 @@
 package zk9500scanner;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.logging.FileHandler;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
+import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.SimpleFormatter;
 
+/**
+ * Writes log records to rotating files without blocking the threads that log.
+ * <p>
+ * {@link #publish} only puts the record on a lock-free {@link RingBuffer}. A single `log-writer` thread formats the records and writes them in batches, flushing once
+ * per batch. A new file named after the current time is started when the day changes or the file reaches its size limit, and the oldest files beyond the retention
+ * count are deleted. When the buffer is full, records are dropped and counted, or the logging thread waits, depending on the overflow policy.
+ * </p>
+ * <p>
+ * Configured by the system properties `log.file.size` (megabytes per file, default 10), `log.files` (files kept, default 30), `log.buffer` (records buffered, default
+ * 8192) and `log.overflow` (`drop` or `block`, default `drop`).
+ * </p>
+ */
 public class FileLogger extends Handler {
-	private final FileHandler fileHandler;
+	private static final String PREFIX = "zk9500_";
+	private static final String SUFFIX = ".log";
+	private static final int BATCH_SIZE = 256;
+	private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(20);
 
-	public FileLogger(String logFilePath) throws IOException {
-		// Initialize FileHandler with append mode
-		fileHandler = new FileHandler(logFilePath, true);
+	private final File directory;
+	private final SimpleDateFormat dateFormat;
+	private final long maxFileSize;
+	private final int maxFiles;
+	private final boolean block;
+	private final RingBuffer<LogRecord> buffer;
+	private final Thread writerThread;
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean running = true;
 
-		// Set custom formatter for FileHandler
-		fileHandler.setFormatter(new CustomFormatter());
+	private Writer writer = null;
+	private long fileSize = 0;
+	private LocalDate fileDate = null;
 
-		// Set the same custom formatter for this handler
+	/**
+	 * Opens the first log file and starts the writer thread.
+	 *
+	 * @param directory  The directory of the log files.
+	 * @param dateFormat The format of the time in file names.
+	 * @throws IOException If the first file cannot be created.
+	 */
+	public FileLogger(File directory, SimpleDateFormat dateFormat) throws IOException {
+		this.directory = directory;
+		this.dateFormat = dateFormat;
+		this.maxFileSize = Long.parseLong(System.getProperty("log.file.size", "10")) * 1024 * 1024;
+		this.maxFiles = Integer.parseInt(System.getProperty("log.files", "30"));
+		this.block = System.getProperty("log.overflow", "drop").equalsIgnoreCase("block");
+		this.buffer = new RingBuffer<>(Integer.parseInt(System.getProperty("log.buffer", "8192")));
+
+		// Set custom formatter for this handler
 		setFormatter(new CustomFormatter());
+		rotate();
+
+		writerThread = new Thread(this::write, "log-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
 	}
 
 	@Override
 	public void publish(LogRecord record) {
-		if (isLoggable(record)) {
-			fileHandler.publish(record); // Directly publish the original record
+		if (!isLoggable(record) || !running) {
+			return;
+		}
+
+		// the record is formatted later on another thread, so capture the caller now
+		record.getSourceClassName();
+
+		while (!buffer.offer(record)) {
+			if (!block || !running) {
+				dropped.incrementAndGet();
+				return;
+			}
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
 		}
+
+		published.incrementAndGet();
 	}
 
+	/**
+	 * Waits until every record published so far has been written, for up to two seconds.
+	 */
 	@Override
 	public void flush() {
-		fileHandler.flush();
+		long target = published.get();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+
+		while (written.get() < target && writerThread.isAlive() && System.nanoTime() < deadline) {
+			LockSupport.unpark(writerThread);
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
 	}
 
+	/**
+	 * Writes the remaining records and closes the file.
+	 */
 	@Override
 	public void close() throws SecurityException {
-		fileHandler.close();
+		running = false;
+		LockSupport.unpark(writerThread);
+
+		try {
+			writerThread.join(TimeUnit.SECONDS.toMillis(2));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return The number of records dropped because the buffer was full.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	private void write() {
+		long reportedDrops = 0;
+
+		while (running || !buffer.isEmpty()) {
+			int count = 0;
+			LogRecord record;
+
+			try {
+				while (count < BATCH_SIZE && (record = buffer.poll()) != null) {
+					append(getFormatter().format(record));
+					count++;
+				}
+
+				long drops = dropped.get();
+				if (drops != reportedDrops) {
+					append(getFormatter().format(new LogRecord(Level.WARNING, (drops - reportedDrops) + " log records dropped, log buffer full")));
+					reportedDrops = drops;
+					writer.flush();
+				}
+
+				if (count > 0) {
+					writer.flush();
+				}
+			} catch (IOException e) {
+				reportError("Unable to write log file", e, ErrorManager.WRITE_FAILURE);
+			}
+
+			written.addAndGet(count);
+
+			if (count == 0) {
+				LockSupport.parkNanos(IDLE_WAIT);
+			}
+		}
+
+		try {
+			writer.close();
+		} catch (IOException e) {
+			reportError("Unable to close log file", e, ErrorManager.CLOSE_FAILURE);
+		}
+	}
+
+	private void append(String text) throws IOException {
+		if (fileSize >= maxFileSize || !LocalDate.now().equals(fileDate)) {
+			rotate();
+		}
+
+		writer.write(text);
+		fileSize += text.length();
+	}
+
+	/**
+	 * Starts a new file and deletes the oldest ones beyond the retention count.
+	 */
+	private void rotate() throws IOException {
+		if (writer != null) {
+			writer.close();
+		}
+
+		String name = PREFIX + dateFormat.format(new Date());
+		Path path = new File(directory, name + SUFFIX).toPath();
+
+		for (int i = 1; Files.exists(path) && Files.size(path) >= maxFileSize; i++) {
+			path = new File(directory, name + "_" + i + SUFFIX).toPath();
+		}
+
+		writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		fileSize = Files.size(path);
+		fileDate = LocalDate.now();
+
+		File[] files = directory.listFiles((dir, file) -> file.startsWith(PREFIX) && file.endsWith(SUFFIX));
+		if (files != null && files.length > maxFiles) {
+			Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+
+			for (int i = 0; i < files.length - maxFiles; i++) {
+				if (!files[i].toPath().equals(path)) {
+					files[i].delete();
+				}
+			}
+		}
 	}
 
 	/**
@@ -52,4 +230,4 @@ public class FileLogger extends Handler {
 			return defaultFormatted + System.lineSeparator();
 		}
 	}
-}
\ No newline at end of file
+}
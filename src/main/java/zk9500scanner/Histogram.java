@@ -0,0 +1,180 @@
+package zk9500scanner;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONObject;
+
+/**
+ * A lock-free histogram of non-negative values with bounded relative error, in the style of HdrHistogram.
+ * <p>
+ * Values below 32 have a bucket each. Above that every power of two is split into 32 equal buckets, so a recorded value is known to within about 3% over the whole
+ * {@code long} range. Recording is a few atomic increments and never allocates, so it is safe on the scan path.
+ * </p>
+ */
+public class Histogram implements HistogramMXBean {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+
+	private final String name;
+	private final String unit;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param name The name of what is measured.
+	 * @param unit The unit of the recorded values, e.g. `ns`.
+	 */
+	public Histogram(String name, String unit) {
+		this.name = name;
+		this.unit = unit;
+	}
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value The value.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+		}
+	}
+
+	/**
+	 * Records the time elapsed since {@code startNanos}.
+	 *
+	 * @param startNanos A {@link System#nanoTime()} reading.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * Returns the value in the middle of a bucket.
+	 */
+	private static long valueOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		long low = (long) (SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+		return low + ((1L << shift) >>> 1);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String getUnit() {
+		return unit;
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	@Override
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the value below which the given fraction of the recorded values fall.
+	 *
+	 * @param quantile The fraction, between 0 and 1.
+	 * @return The value, or 0 if nothing was recorded.
+	 */
+	public long getValueAtQuantile(double quantile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+
+			if (seen >= rank) {
+				return Math.min(valueOf(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	@Override
+	public long getP50() {
+		return getValueAtQuantile(0.50);
+	}
+
+	@Override
+	public long getP90() {
+		return getValueAtQuantile(0.90);
+	}
+
+	@Override
+	public long getP99() {
+		return getValueAtQuantile(0.99);
+	}
+
+	@Override
+	public long getP999() {
+		return getValueAtQuantile(0.999);
+	}
+
+	/**
+	 * Summarizes the histogram.
+	 *
+	 * @return The count, mean, max and percentiles, in the unit of the histogram.
+	 */
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		json.put("unit", unit);
+		json.put("count", getCount());
+		json.put("mean", Math.round(getMean()));
+		json.put("p50", getP50());
+		json.put("p90", getP90());
+		json.put("p99", getP99());
+		json.put("p999", getP999());
+		json.put("max", getMax());
+		return json;
+	}
+}
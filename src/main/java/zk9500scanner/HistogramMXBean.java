@@ -0,0 +1,24 @@
+package zk9500scanner;
+
+/**
+ * JMX view of a {@link Histogram}, registered by {@link Metrics} as `zk9500scanner:type=Histogram,name=<name>`. Values are in the unit reported by {@link #getUnit()}.
+ */
+public interface HistogramMXBean {
+	String getName();
+
+	String getUnit();
+
+	long getCount();
+
+	double getMean();
+
+	long getMax();
+
+	long getP50();
+
+	long getP90();
+
+	long getP99();
+
+	long getP999();
+}
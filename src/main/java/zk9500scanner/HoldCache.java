@@ -0,0 +1,263 @@
+package zk9500scanner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Recognizes a finger left on a sensor, so that it is identified once rather than on every capture.
+ * <p>
+ * The cache keeps the last few captures of each device together with their identification result. A new capture is compared 1:1 against the unexpired captures of
+ * its device before any 1:N search; a match is a repeat of the same touch and is suppressed. Each repeat keeps the touch alive for another TTL. When a touch with
+ * repeats expires, a single `biometric-hold` event reports how long the finger was held.
+ * </p>
+ * <p>
+ * A capture that could not be identified is kept apart: later captures matching it are still identified, since the finger may have been moved into a better position
+ * without being lifted, but a repeated failure of the same touch is reported only once.
+ * </p>
+ * <p>
+ * The TTL and the number of captures kept are set with the `hold.ttl` (milliseconds, default 1000) and `hold.size` (default 8) system properties; a TTL or size of 0
+ * disables the cache. Touches live in a fixed set of slots with their own template buffers, so checking and recording captures does not allocate.
+ * </p>
+ */
+public class HoldCache {
+	/**
+	 * A slot holding a touch in progress, reused once the touch ends.
+	 */
+	private static class Touch {
+		final byte[] template = new byte[Library.TEMPLATE_SIZE];
+		boolean active = false;
+		boolean failed;
+		int device;
+		Integer id;
+		Integer score;
+		long firstSeen;
+		long lastSeen;
+		int repeats;
+
+		void start(Scan scan, Event event, boolean failed) {
+			System.arraycopy(scan.getTemplate(), 0, template, 0, Library.TEMPLATE_SIZE);
+			active = true;
+			this.failed = failed;
+			device = scan.getDevice();
+			id = event != null ? event.getId() : null;
+			score = event != null ? event.getScore() : null;
+			firstSeen = scan.getCapturedMillis();
+			lastSeen = scan.getCapturedMillis();
+			repeats = 0;
+		}
+	}
+
+	private final Library library;
+	private final long ttl;
+	private final int size;
+	private final Touch[] touches;
+	private final ScheduledExecutorService sweeper;
+
+	private final AtomicLong suppressed = new AtomicLong();
+	private final AtomicLong holds = new AtomicLong();
+
+	/** Receives the `biometric-hold` event of every identified touch that was held. */
+	public Consumer<Event> onHoldEnd = null;
+
+	/**
+	 * @param library The library providing 1:1 matching.
+	 * @param ttl     How long a touch lasts after its last capture, in milliseconds.
+	 * @param size    The number of touches kept.
+	 */
+	public HoldCache(Library library, long ttl, int size) {
+		this.library = library;
+		this.ttl = ttl;
+		this.size = size;
+		this.touches = new Touch[Math.max(0, size)];
+
+		for (int i = 0; i < touches.length; i++) {
+			touches[i] = new Touch();
+		}
+
+		if (isEnabled()) {
+			sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "hold-cache");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+			long period = Math.max(10, ttl / 4);
+			sweeper.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.MILLISECONDS);
+		} else {
+			sweeper = null;
+		}
+	}
+
+	/**
+	 * Creates a cache configured by the `hold.ttl` and `hold.size` system properties.
+	 *
+	 * @param library The library providing 1:1 matching.
+	 * @return The cache.
+	 */
+	public static HoldCache fromSystemProperties(Library library) {
+		long ttl = Long.parseLong(System.getProperty("hold.ttl", "1000"));
+		int size = Integer.parseInt(System.getProperty("hold.size", "8"));
+
+		return new HoldCache(library, ttl, size);
+	}
+
+	/**
+	 * @return false if the cache was configured with a TTL or size of 0.
+	 */
+	public boolean isEnabled() {
+		return ttl > 0 && size > 0;
+	}
+
+	/**
+	 * Checks whether a capture repeats an unexpired touch on the same device, and if so extends that touch.
+	 *
+	 * @param scan The capture.
+	 * @return true if the capture is a repeat and need not be identified.
+	 */
+	public synchronized boolean isRepeat(Scan scan) {
+		return isEnabled() && extend(scan, false);
+	}
+
+	/**
+	 * Extends the unexpired touch of the same device that a capture matches, among the failed or the other touches.
+	 *
+	 * @return true if a touch matched.
+	 */
+	private boolean extend(Scan scan, boolean failed) {
+		long now = scan.getCapturedMillis();
+
+		for (Touch touch : touches) {
+			if (!touch.active || touch.failed != failed || touch.device != scan.getDevice() || now - touch.lastSeen > ttl) {
+				continue;
+			}
+
+			try {
+				if (library.match(touch.template, scan.getTemplate()) > 0) {
+					touch.lastSeen = now;
+					touch.repeats++;
+					suppressed.incrementAndGet();
+					return true;
+				}
+			} catch (Exception e) {
+				return false;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Starts a touch for a handled capture, so that the same finger left on the sensor is not handled again.
+	 *
+	 * @param scan  The capture.
+	 * @param event The `biometric` event sent for it, or {@code null} if it was handled otherwise, by a registration or a verification.
+	 */
+	public synchronized void add(Scan scan, Event event) {
+		if (isEnabled()) {
+			start(scan, event, false);
+		}
+	}
+
+	/**
+	 * Records a capture that could not be identified. It does not suppress later captures of the same touch, which are identified again, but it tells whether the
+	 * failure of this touch was already reported.
+	 *
+	 * @param scan The capture.
+	 * @return true if the capture repeats an unexpired failed touch, whose error need not be reported again.
+	 */
+	public synchronized boolean addFailure(Scan scan) {
+		if (!isEnabled()) {
+			return false;
+		}
+
+		if (extend(scan, true)) {
+			return true;
+		}
+
+		start(scan, null, true);
+		return false;
+	}
+
+	private void start(Scan scan, Event event, boolean failed) {
+		// an idle slot, or else the touch seen least recently
+		Touch slot = touches[0];
+		for (Touch touch : touches) {
+			if (!touch.active) {
+				slot = touch;
+				break;
+			}
+			if (touch.lastSeen < slot.lastSeen) {
+				slot = touch;
+			}
+		}
+
+		slot.start(scan, event, failed);
+	}
+
+	/**
+	 * Ends the touches whose TTL has passed.
+	 */
+	private void sweep() {
+		List<Event> ended = null;
+		long now = System.currentTimeMillis();
+
+		synchronized (this) {
+			for (Touch touch : touches) {
+				if (!touch.active || now - touch.lastSeen <= ttl) {
+					continue;
+				}
+
+				touch.active = false;
+
+				if (touch.repeats > 0 && touch.id != null) {
+					if (ended == null) {
+						ended = new ArrayList<>();
+					}
+					ended.add(new Event(Event.BIOMETRIC_HOLD).id(touch.id).score(touch.score).timestamp(touch.firstSeen).put("device", touch.device)
+							.put("hold", touch.lastSeen - touch.firstSeen).put("repeats", touch.repeats));
+				}
+			}
+		}
+
+		if (ended == null) {
+			return;
+		}
+
+		for (Event event : ended) {
+			holds.incrementAndGet();
+
+			Consumer<Event> consumer = onHoldEnd;
+			if (consumer != null) {
+				consumer.accept(event);
+			}
+		}
+	}
+
+	/**
+	 * Stops the sweeper. Touches in progress are not reported.
+	 */
+	public void close() {
+		if (sweeper != null) {
+			sweeper.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return The number of captures recognized as repeats and not identified.
+	 */
+	public long getSuppressed() {
+		return suppressed.get();
+	}
+
+	/**
+	 * @return The number of held touches reported.
+	 */
+	public long getHolds() {
+		return holds.get();
+	}
+}
@@ -0,0 +1,182 @@
+package zk9500scanner;
+
+import java.util.Arrays;
+
+/**
+ * Scores the quality of a fingerprint image, so that unusable captures can be rejected before the 1:N search.
+ * <p>
+ * The image is divided into square blocks and read in a single pass that accumulates, per block, the sum and sum of squares of the pixels and of their horizontal and
+ * vertical gradients. From these:
+ * </p>
+ * <ul>
+ * <li>a block is foreground when its gray levels vary enough to hold ridges, and the <em>coverage</em> is the share of foreground blocks;</li>
+ * <li>the <em>contrast</em> is the mean standard deviation of the foreground blocks;</li>
+ * <li>the <em>clarity</em> is the mean orientation coherence of the foreground blocks: close to 1 where ridges run in one clear direction, close to 0 where they are
+ * smudged or noisy.</li>
+ * </ul>
+ * <p>
+ * Each foreground block is worth its normalized contrast times its coherence, and the score, from 0 to 100, is the mean worth of all blocks: a small, faint or smudged
+ * print scores low, and so does noise, whose gradients point every way. An instance keeps its block accumulators from one image to the next, so assessing does not
+ * allocate; it is meant for a single acquisition thread.
+ * </p>
+ */
+public class ImageQuality {
+	/** Side of a block in pixels. */
+	public static final int BLOCK = 16;
+
+	/** Lowest standard deviation of a foreground block. */
+	private static final double FOREGROUND_DEVIATION = 10;
+
+	/** Standard deviation of a block considered fully contrasted. */
+	private static final double FULL_CONTRAST = 40;
+
+	private final int width;
+	private final int height;
+	private final int columns;
+	private final long[] sum;
+	private final long[] squares;
+	private final long[] gxx;
+	private final long[] gyy;
+	private final long[] gxy;
+
+	private int score;
+	private int coverage;
+	private int contrast;
+	private int clarity;
+
+	/**
+	 * @param width  The image width in pixels.
+	 * @param height The image height in pixels.
+	 */
+	public ImageQuality(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.columns = (width + BLOCK - 1) / BLOCK;
+
+		int blocks = columns * ((height + BLOCK - 1) / BLOCK);
+		sum = new long[blocks];
+		squares = new long[blocks];
+		gxx = new long[blocks];
+		gyy = new long[blocks];
+		gxy = new long[blocks];
+	}
+
+	/**
+	 * Scores an image. The results are read with {@link #getScore()} and the other getters until the next call.
+	 *
+	 * @param image The grayscale image, one byte per pixel, row by row.
+	 * @return The score, from 0 to 100.
+	 */
+	public int assess(byte[] image) {
+		long start = System.nanoTime();
+
+		Arrays.fill(sum, 0);
+		Arrays.fill(squares, 0);
+		Arrays.fill(gxx, 0);
+		Arrays.fill(gyy, 0);
+		Arrays.fill(gxy, 0);
+
+		for (int y = 0; y < height; y++) {
+			int row = y * width;
+			int above = y > 0 ? row - width : row;
+			int below = y + 1 < height ? row + width : row;
+			int blockRow = (y / BLOCK) * columns;
+
+			for (int x0 = 0; x0 < width; x0 += BLOCK) {
+				int end = Math.min(x0 + BLOCK, width);
+				long s = 0, ss = 0, xx = 0, yy = 0, xy = 0;
+
+				// central differences, repeating the edge pixels
+				for (int x = x0; x < end; x++) {
+					int p = image[row + x] & 0xFF;
+					int gx = (image[row + Math.min(x + 1, width - 1)] & 0xFF) - (image[row + Math.max(x - 1, 0)] & 0xFF);
+					int gy = (image[below + x] & 0xFF) - (image[above + x] & 0xFF);
+
+					s += p;
+					ss += p * p;
+					xx += gx * gx;
+					yy += gy * gy;
+					xy += gx * gy;
+				}
+
+				int block = blockRow + x0 / BLOCK;
+				sum[block] += s;
+				squares[block] += ss;
+				gxx[block] += xx;
+				gyy[block] += yy;
+				gxy[block] += xy;
+			}
+		}
+
+		int foreground = 0;
+		double deviations = 0;
+		double coherences = 0;
+		double worth = 0;
+
+		for (int block = 0; block < sum.length; block++) {
+			int pixels = pixelsIn(block);
+			double mean = (double) sum[block] / pixels;
+			double deviation = Math.sqrt(Math.max(0, (double) squares[block] / pixels - mean * mean));
+
+			if (deviation < FOREGROUND_DEVIATION) {
+				continue;
+			}
+
+			double energy = gxx[block] + gyy[block];
+			double difference = gxx[block] - gyy[block];
+			double coherence = energy > 0 ? Math.sqrt(difference * difference + 4.0 * gxy[block] * gxy[block]) / energy : 0;
+
+			foreground++;
+			deviations += deviation;
+			coherences += coherence;
+			worth += Math.min(1, deviation / FULL_CONTRAST) * coherence;
+		}
+
+		if (foreground == 0) {
+			score = coverage = contrast = clarity = 0;
+		} else {
+			coverage = (int) Math.round(100.0 * foreground / sum.length);
+			contrast = (int) Math.round(deviations / foreground);
+			clarity = (int) Math.round(100 * coherences / foreground);
+			score = (int) Math.round(100 * worth / sum.length);
+		}
+
+		Metrics.QUALITY_CHECK.recordSince(start);
+		Metrics.CAPTURE_QUALITY.record(score);
+		return score;
+	}
+
+	private int pixelsIn(int block) {
+		int x = (block % columns) * BLOCK;
+		int y = (block / columns) * BLOCK;
+		return Math.min(BLOCK, width - x) * Math.min(BLOCK, height - y);
+	}
+
+	/**
+	 * @return The score of the last image, from 0 to 100.
+	 */
+	public int getScore() {
+		return score;
+	}
+
+	/**
+	 * @return The percentage of the last image covered by ridges.
+	 */
+	public int getCoverage() {
+		return coverage;
+	}
+
+	/**
+	 * @return The mean standard deviation of the gray levels of the last image's foreground blocks.
+	 */
+	public int getContrast() {
+		return contrast;
+	}
+
+	/**
+	 * @return The mean orientation coherence of the last image's foreground blocks, as a percentage.
+	 */
+	public int getClarity() {
+		return clarity;
+	}
+}
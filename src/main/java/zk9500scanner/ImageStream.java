@@ -0,0 +1,292 @@
+package zk9500scanner;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.java_websocket.framing.BinaryFrame;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Streams the image of every capture to the connections that subscribed with an `image-stream` command, for live previews in enrollment screens.
+ * <p>
+ * Each image is sent as one binary WebSocket frame, whatever format the connection negotiated for events (big-endian):
+ * </p>
+ *
+ * <pre>
+ * u8  version ({@value BinaryProtocol#VERSION})
+ * u8  type of `image-frame` in {@link BinaryProtocol#TYPES}
+ * u16 device
+ * u16 width
+ * u16 height
+ * u32 sequence number of the capture on its device
+ * width &times; height bytes of 8-bit grayscale pixels, row by row
+ * </pre>
+ * <p>
+ * A subscription may ask for a `device`, a downscaling factor (`scale`, each pixel the mean of a square of pixels) and a frame-rate cap (`fps`, default and maximum
+ * `image.fps`). The pixels are copied once, while downscaling, from the sensor's image buffer into a direct buffer taken from a pool of `image.pool` buffers; the
+ * frame is shared by every subscription with the same scale and returns to the pool once the last of them has sent or dropped it. A connection queues at most one
+ * frame per device: a newer one replaces a frame still waiting. Nothing is done for a capture that no subscription wants, so clients that only identify pay nothing.
+ * </p>
+ */
+public class ImageStream {
+	/** Size of the frame header. */
+	public static final int HEADER_SIZE = 12;
+
+	/** Largest downscaling factor. */
+	public static final int MAX_SCALE = 8;
+
+	private static final int TYPE = BinaryProtocol.getType(Event.IMAGE_FRAME);
+
+	private final int maxFps = Integer.getInteger("image.fps", 15);
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+	private volatile int frameSize = HEADER_SIZE; // Largest frame encoded so far, the size of new pooled buffers
+	private final ObjectPool<ByteBuffer> buffers = new ObjectPool<>(Integer.getInteger("image.pool", 8), () -> ByteBuffer.allocateDirect(frameSize));
+
+	/**
+	 * The images one connection asked for.
+	 */
+	public static final class Subscription {
+		private final Connection connection;
+		private final int device;
+		private final int scale;
+		private final int fps;
+		private final long interval;
+		private final Map<Integer, AtomicLong> lastFrames = new ConcurrentHashMap<>();
+		private final AtomicLong sent = new AtomicLong();
+
+		Subscription(Connection connection, int device, int scale, int fps) {
+			this.connection = connection;
+			this.device = device;
+			this.scale = scale;
+			this.fps = fps;
+			this.interval = TimeUnit.SECONDS.toNanos(1) / fps;
+		}
+
+		/**
+		 * Tells whether a capture is due under the frame-rate cap, and if so takes its slot. Each device is only published from its own acquisition thread.
+		 */
+		private boolean isDue(int device, long now) {
+			if (this.device != RegistrationManager.ANY_DEVICE && this.device != device) {
+				return false;
+			}
+
+			AtomicLong last = lastFrames.computeIfAbsent(device, d -> new AtomicLong(now - interval));
+
+			if (now - last.get() < interval) {
+				return false;
+			}
+
+			last.set(now);
+			return true;
+		}
+
+		public int getDevice() {
+			return device;
+		}
+
+		public int getScale() {
+			return scale;
+		}
+
+		public int getFps() {
+			return fps;
+		}
+	}
+
+	/**
+	 * One encoded image, shared by the connections it is queued on.
+	 */
+	public final class Frame {
+		final int device;
+		final BinaryFrame frame = new BinaryFrame();
+		private final ByteBuffer buffer;
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		private Frame(int device, ByteBuffer buffer) {
+			this.device = device;
+			this.buffer = buffer;
+			frame.setPayload(buffer);
+			frame.setFin(true);
+		}
+
+		void retain() {
+			references.incrementAndGet();
+		}
+
+		/**
+		 * Called by each connection once the frame has been handed to its socket or dropped; the last call returns the buffer to the pool.
+		 */
+		void release() {
+			if (references.decrementAndGet() == 0) {
+				buffers.release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Subscribes a connection, replacing its previous subscription.
+	 *
+	 * @param connection The connection.
+	 * @param command    The `image-stream` command: `device` (default every device), `scale` (1 to {@value #MAX_SCALE}, default 1) and `fps`.
+	 * @return The subscription.
+	 * @throws Exception If `scale` or `fps` is out of range.
+	 */
+	public Subscription subscribe(Connection connection, JSONObject command) throws Exception {
+		int scale = command.optInt("scale", 1);
+		int fps = command.optInt("fps", maxFps);
+
+		if (scale < 1 || scale > MAX_SCALE) {
+			throw new Exception("Invalid scale " + scale + ", expected 1 to " + MAX_SCALE);
+		}
+
+		if (fps < 1) {
+			throw new Exception("Invalid fps " + fps);
+		}
+
+		Subscription subscription = new Subscription(connection, command.optInt("device", RegistrationManager.ANY_DEVICE), scale, Math.min(fps, maxFps));
+		unsubscribe(connection);
+		subscriptions.add(subscription);
+
+		Main.log.info(connection.getSocket().getRemoteSocketAddress() + " subscribed to images at 1/" + scale + " scale, " + subscription.fps + " fps");
+		return subscription;
+	}
+
+	/**
+	 * Ends the subscription of a connection, if any.
+	 *
+	 * @param connection The connection.
+	 */
+	public void unsubscribe(Connection connection) {
+		subscriptions.removeIf(subscription -> subscription.connection == connection);
+	}
+
+	/**
+	 * Queues the image of a capture for every subscription it is due for. Called on the acquisition thread, before the image buffer is reused.
+	 *
+	 * @param device   The device index.
+	 * @param sequence The sequence number of the capture on its device.
+	 * @param image    The grayscale image, one byte per pixel, row by row.
+	 * @param width    The image width in pixels.
+	 * @param height   The image height in pixels.
+	 * @return true if the image was queued on any connection.
+	 */
+	public boolean publish(int device, int sequence, byte[] image, int width, int height) {
+		if (subscriptions.isEmpty()) {
+			return false;
+		}
+
+		long now = System.nanoTime();
+		Frame[] frames = null;
+		boolean queued = false;
+
+		for (Subscription subscription : subscriptions) {
+			if (!subscription.isDue(device, now)) {
+				continue;
+			}
+
+			// one frame per scale, shared by the subscriptions that asked for it
+			if (frames == null) {
+				frames = new Frame[MAX_SCALE + 1];
+			}
+
+			Frame frame = frames[subscription.scale];
+
+			if (frame == null) {
+				frame = frames[subscription.scale] = encode(device, sequence, image, width, height, subscription.scale);
+			}
+
+			frame.retain();
+			subscription.connection.enqueue(new Connection.Outbound(frame));
+			subscription.sent.incrementAndGet();
+			queued = true;
+		}
+
+		if (frames != null) {
+			for (Frame frame : frames) {
+				if (frame != null) {
+					frame.release();
+				}
+			}
+		}
+
+		return queued;
+	}
+
+	/**
+	 * Copies an image into a pooled direct buffer, downscaling it by averaging each square of `scale` &times; `scale` pixels.
+	 */
+	private Frame encode(int device, int sequence, byte[] image, int width, int height, int scale) {
+		long start = System.nanoTime();
+		int columns = width / scale;
+		int rows = height / scale;
+		int size = HEADER_SIZE + columns * rows;
+
+		if (size > frameSize) {
+			frameSize = size;
+		}
+
+		// a buffer pooled before a larger image was seen is left to the garbage collector
+		ByteBuffer buffer = buffers.acquire();
+		if (buffer.capacity() < size) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+
+		buffer.clear();
+		buffer.put((byte) BinaryProtocol.VERSION).put((byte) TYPE);
+		buffer.putShort((short) device).putShort((short) columns).putShort((short) rows).putInt(sequence);
+
+		if (scale == 1) {
+			buffer.put(image, 0, width * height);
+		} else {
+			int area = scale * scale;
+
+			for (int row = 0; row < rows; row++) {
+				for (int column = 0; column < columns; column++) {
+					int sum = 0;
+
+					for (int y = row * scale, end = y + scale; y < end; y++) {
+						for (int x = y * width + column * scale, last = x + scale; x < last; x++) {
+							sum += image[x] & 0xFF;
+						}
+					}
+
+					buffer.put((byte) (sum / area));
+				}
+			}
+		}
+
+		buffer.flip();
+		Metrics.IMAGE_FRAME.recordSince(start);
+		return new Frame(device, buffer);
+	}
+
+	/**
+	 * Summarizes the subscriptions.
+	 *
+	 * @return One entry per subscription with the client `address`, `device` (absent for every device), `scale`, `fps` and the number of frames `sent`.
+	 */
+	public JSONArray toJSON() {
+		JSONArray json = new JSONArray();
+
+		for (Subscription subscription : subscriptions) {
+			JSONObject entry = new JSONObject();
+			entry.put("address", String.valueOf(subscription.connection.getSocket().getRemoteSocketAddress()));
+			if (subscription.device != RegistrationManager.ANY_DEVICE) {
+				entry.put("device", subscription.device);
+			}
+			entry.put("scale", subscription.scale);
+			entry.put("fps", subscription.fps);
+			entry.put("sent", subscription.sent.get());
+			json.put(entry);
+		}
+
+		return json;
+	}
+}
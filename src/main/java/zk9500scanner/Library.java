@@ -1,15 +1,30 @@
 package zk9500scanner;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import com.zkteco.biometric.FingerprintSensorEx;
-
 /**
  * The `Library` class provides functionality for managing fingerprint templates, including registration, identification, and database management. It interfaces with the ZKTeco
- * biometric library to perform fingerprint operations.
+ * biometric library through a {@link SensorDriver} to perform fingerprint operations.
+ * <p>
+ * The library is mirrored to a {@link TemplateSnapshot} in the directory given by the `library.snapshot` system property (default `data`, empty to disable), which is
+ * replayed at startup so that identification works before a client sends a `library-init`.
+ * </p>
  */
 public class Library {
 	/** The size of a fingerprint template in bytes. */
@@ -18,6 +33,9 @@ public class Library {
 	/** The number of templates required for registration. */
 	public static final int REG_TEMPLATE_COUNT = 3;
 
+	/** How often the identifying thread checks whether the other shards are done, in nanoseconds. */
+	private static final long JOIN_POLL = TimeUnit.MICROSECONDS.toNanos(20);
+
 	/** Error code indicating that the maximum number of registration attempts has been exceeded. */
 	public static final int ERR_EXCEED = -1;
 
@@ -30,254 +48,701 @@ public class Library {
 	/** Error code indicating that the fingerprint does not match. */
 	public static final int ERR_NOT_MATCH = -4;
 
-	private long dbHandle = 0; // Handle to the fingerprint database
-	private byte[][] registrationTemplates = new byte[REG_TEMPLATE_COUNT][TEMPLATE_SIZE]; // Templates for registration
-	private boolean isRegisterMode = false; // Indicates if registration mode is active
-	private int registerIndex = -1; // Current index during registration
-	private int registrationID = 0; // ID for the fingerprint being registered
-	private byte[] lastFaultyTemplate = new byte[TEMPLATE_SIZE]; // Stores the last faulty template
+	private final SensorDriver driver;
+	private final AtomicReference<DatabaseHandle> database = new AtomicReference<>(); // The fingerprint database serving identification
+	private LibraryLoader loader = null; // Loader of the initialization in progress
+	private DatabaseHandle staging = null; // Database being filled by the loader
+	private final Path snapshotDir; // Directory of the library snapshots, null if disabled
+	private TemplateSnapshot snapshot = null; // Snapshot of the database serving identification
+	private TemplateSnapshot stagingSnapshot = null; // Snapshot being written by the loader
+	private long lastGeneration = 0; // Newest snapshot generation created
+	private final Set<LibraryLoader> building = new HashSet<>(); // Loaders whose database has not been swapped in yet
+	private final int threshold = Integer.getInteger("library.threshold", 0); // Lowest score accepted by identify, on top of the algorithm's own threshold
+	private final ForkJoinPool identifier = new ForkJoinPool(DatabaseHandle.defaultShards()); // Searches the shards of a database in parallel
+	private final ThreadLocal<ShardSearch[]> searches = ThreadLocal.withInitial(() -> new ShardSearch[0]); // Search state of each identifying thread
+	private final ThreadLocal<byte[]> claimed = ThreadLocal.withInitial(() -> new byte[TEMPLATE_SIZE]); // Stored template of a claim, for each verifying thread
+	private final ExecutorService builder = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "library-builder");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	/**
 	 * Constructs a new `Library` instance and initializes the fingerprint database. If initialization fails, an error is logged.
+	 *
+	 * @param driver The driver providing the algorithm library.
+	 */
+	public Library(SensorDriver driver) {
+		this.driver = driver;
+
+		String dir = System.getProperty("library.snapshot", "data");
+		snapshotDir = dir.isEmpty() ? null : Paths.get(dir);
+
+		try {
+			database.set(new DatabaseHandle(driver));
+			restoreSnapshot();
+		} catch (Exception e) {
+			Main.log.severe(e.getMessage());
+		}
+	}
+
+	/**
+	 * Loads the newest library snapshot into the database, or starts an empty one if there is none.
 	 */
-	public Library() {
-		if ((dbHandle = FingerprintSensorEx.DBInit()) == 0) {
-			Main.log.severe("Failed to initialize algorithm library");
+	private synchronized void restoreSnapshot() {
+		if (snapshotDir == null) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		TemplateSnapshot latest = TemplateSnapshot.openLatest(snapshotDir);
+
+		try {
+			if (latest == null) {
+				latest = TemplateSnapshot.create(snapshotDir, 1, 1024);
+				latest.seal();
+			} else {
+				int restored = latest.replay(database.get());
+				Main.log.info("Restored " + restored + " fingerprints from library snapshot generation " + latest.getGeneration() + " in "
+						+ (System.nanoTime() - start) / 1_000_000 + " ms");
+			}
+
+			TemplateSnapshot.deleteOthers(snapshotDir, latest.getGeneration());
+			snapshot = latest;
+			lastGeneration = latest.getGeneration();
+		} catch (IOException e) {
+			Main.log.warning("Library snapshot unavailable: " + e.getMessage());
 		}
 	}
 
 	/**
-	 * Closes the fingerprint database and releases resources.
+	 * Closes the fingerprint database and releases resources. The database is freed once identifications still running against it have finished.
 	 */
 	public void close() {
-		if (dbHandle != 0) {
-			FingerprintSensorEx.DBFree(dbHandle);
-			dbHandle = 0;
+		DatabaseHandle handle = database.getAndSet(null);
+
+		if (handle != null) {
+			handle.release();
+		}
+
+		identifier.shutdown();
+
+		synchronized (this) {
+			if (snapshot != null) {
+				snapshot.close();
+				snapshot = null;
+			}
 		}
 	}
 
 	/**
-	 * Returns the handle to the fingerprint database.
+	 * Returns the handle to the first shard of the fingerprint database.
 	 *
 	 * @return The database handle.
 	 */
 	public long getDBHandle() {
-		return dbHandle;
+		DatabaseHandle handle = database.get();
+		return handle != null ? handle.get() : 0;
 	}
 
 	/**
-	 * Checks if the library is in registration mode.
+	 * Returns the database currently serving identification, without taking a reference. Only safe while no initialization is being committed.
 	 *
-	 * @return `true` if in registration mode, `false` otherwise.
+	 * @return The database, or {@code null} if the library is not initialized.
 	 */
-	public boolean isRegistrationMode() {
-		return isRegisterMode;
+	public DatabaseHandle getDatabase() {
+		return database.get();
 	}
 
 	/**
-	 * Returns the current registration index.
+	 * Takes a reference to the current database. The caller must {@link DatabaseHandle#release() release} it when done.
 	 *
-	 * @return The current index during registration.
+	 * @return The current database.
+	 * @throws Exception If the library has no database.
 	 */
-	public int getRegisterIndex() {
-		return registerIndex;
+	private DatabaseHandle acquire() throws Exception {
+		while (true) {
+			DatabaseHandle handle = database.get();
+
+			if (handle == null) {
+				throw new Exception("Algorithm library is not initialized");
+			}
+
+			// the handle may have been swapped out and freed since it was read
+			if (handle.retain()) {
+				return handle;
+			}
+		}
 	}
 
 	/**
-	 * Starts the registration process for a fingerprint with the specified ID. If `id` is 0, registration mode is disabled.
+	 * Compares two templates 1:1.
 	 *
-	 * @param id The ID for the fingerprint being registered.
+	 * @param template1 The first template.
+	 * @param template2 The second template.
+	 * @return The match score, or 0 or less if they do not match.
+	 * @throws Exception If the library has no database.
 	 */
-	public void startRegistration(int id) {
-		registrationID = id;
-		isRegisterMode = id != 0;
-		lastFaultyTemplate = new byte[TEMPLATE_SIZE];
-		resetRegistration();
+	public int match(byte[] template1, byte[] template2) throws Exception {
+		DatabaseHandle handle = acquire();
+
+		try {
+			return driver.dbMatch(handle.get(), template1, template2);
+		} finally {
+			handle.release();
+		}
 	}
 
 	/**
-	 * Verifies a fingerprint template during the registration process.
-	 * <p>
-	 * This method is responsible for processing and validating a fingerprint scan during registration. It ensures that:
-	 * <ul>
-	 * <li>The system is in registration mode.</li>
-	 * <li>The fingerprint scan does not exceed the allowed registration attempts.</li>
-	 * <li>The fingerprint matches previous scans for consistency.</li>
-	 * <li>The fingerprint is not already registered in the system.</li>
-	 * </ul>
-	 * </p>
+	 * Compares a template 1:1 against the stored template of a claimed fingerprint ID. The cost does not depend on the size of the library, no lock is taken, and the
+	 * stored template is copied into a buffer of the calling thread, so nothing is allocated.
 	 *
-	 * @param template The fingerprint template to verify and register.
-	 * @return An {@code Object} representing the verification result:
-	 *         <ul>
-	 *         <li>{@code 0} if registration is successful.</li>
-	 *         <li>{@code ERR_EXCEED} if the registration limit is exceeded.</li>
-	 *         <li>{@code ERR_NOT_MATCH} if the template does not match the previous scan.</li>
-	 *         <li>{@code ERR_DUPLICATE} if the fingerprint is already registered.</li>
-	 *         <li>Register index (integer) if the scan is accepted as part of registration.</li>
-	 *         </ul>
-	 * @throws Exception If registration mode is disabled or an error occurs during the process.
+	 * @param id       The claimed fingerprint ID.
+	 * @param template The template to verify.
+	 * @return The match score, or 0 or less if they do not match.
+	 * @throws Exception If the ID is not in the library, or the library has no database.
 	 */
-	public Object verifyTemplate(byte[] template) throws Exception {
-		if (!isRegisterMode) {
-			throw new Exception("Registration mode is disabled");
-		}
+	public int verify(int id, byte[] template) throws Exception {
+		byte[] stored = claimed.get();
+		DatabaseHandle handle = acquire();
 
-		registerIndex++;
+		try {
+			if (!handle.getTemplate(id, stored)) {
+				throw new Exception("Fingerprint ID " + id + " is not in the library");
+			}
 
-		if (registerIndex >= REG_TEMPLATE_COUNT) {
-			return ERR_EXCEED;
+			return driver.dbMatch(handle.get(), stored, template);
+		} finally {
+			handle.release();
 		}
+	}
 
-		boolean isFirstScan = registerIndex == 0;
-		boolean hasFault = !Arrays.equals(lastFaultyTemplate, new byte[TEMPLATE_SIZE]);
-
-		if (!isFirstScan || hasFault) {
-			byte[] previousTemplate = hasFault ? lastFaultyTemplate : registrationTemplates[registerIndex - 1];
+	/**
+	 * Copies the stored template of a fingerprint.
+	 *
+	 * @param id  The fingerprint ID.
+	 * @param out Receives the template; at least {@link #TEMPLATE_SIZE} bytes.
+	 * @return false if the ID is not in the library.
+	 * @throws Exception If the library has no database.
+	 */
+	public boolean getTemplate(int id, byte[] out) throws Exception {
+		DatabaseHandle handle = acquire();
 
-			int matchValue = FingerprintSensorEx.DBMatch(dbHandle, previousTemplate, template);
+		try {
+			return handle.getTemplate(id, out);
+		} finally {
+			handle.release();
+		}
+	}
 
-			if (matchValue <= 0) {
-				resetRegistration();
-				System.arraycopy(template, 0, lastFaultyTemplate, 0, TEMPLATE_SIZE);
-				return ERR_NOT_MATCH;
-			}
+	/**
+	 * Lists the fingerprints in the library.
+	 *
+	 * @return The fingerprint IDs.
+	 * @throws Exception If the library has no database.
+	 */
+	public int[] getIds() throws Exception {
+		DatabaseHandle handle = acquire();
 
-			if (hasFault) {
-				lastFaultyTemplate = new byte[TEMPLATE_SIZE];
-			}
+		try {
+			return handle.getIds();
+		} finally {
+			handle.release();
 		}
+	}
 
-		if (isFirstScan) {
-			try {
-				if (identify(template) instanceof JSONObject) {
-					resetRegistration();
-					return ERR_DUPLICATE;
-				}
-			} catch (Exception e) {
-				Main.log.warning("Error during fingerprint identification: " + e.getMessage());
-			}
+	/**
+	 * Allocates an empty single-shard database, for a thread that needs a database of its own. The caller owns it and must {@link DatabaseHandle#release() release} it.
+	 *
+	 * @return The database.
+	 * @throws Exception If the algorithm library cannot be initialized.
+	 */
+	public DatabaseHandle newDatabase() throws Exception {
+		return new DatabaseHandle(driver, 1);
+	}
+
+	/**
+	 * Builds a database holding every fingerprint of the library, for threads that need a database apart from live identification, such as the workers of a
+	 * {@link BatchJob}. The templates are read from the current database without taking the library's lock. The caller owns the copy and must
+	 * {@link DatabaseHandle#release() release} it.
+	 *
+	 * @param shards The number of shards of the copy.
+	 * @return The copy.
+	 * @throws Exception If the library has no database or the algorithm library cannot be initialized.
+	 */
+	public DatabaseHandle copyDatabase(int shards) throws Exception {
+		DatabaseHandle handle = acquire();
+
+		try {
+			DatabaseHandle copy = new DatabaseHandle(driver, shards);
+			handle.copyTo(copy);
+			return copy;
+		} finally {
+			handle.release();
 		}
+	}
 
-		System.arraycopy(template, 0, registrationTemplates[registerIndex], 0, TEMPLATE_SIZE);
-		return registerIndex;
+	/**
+	 * @return The lowest score accepted by identification and verification, on top of the algorithm's own threshold.
+	 */
+	public int getThreshold() {
+		return threshold;
 	}
 
 	/**
-	 * Saves the registered fingerprint template to the database.
+	 * Merges the scans of an enrollment into one template and saves it to the database and the snapshot.
 	 *
-	 * @throws Exception If the template is empty or saving fails.
+	 * @param id        The ID of the new fingerprint.
+	 * @param templates The {@link #REG_TEMPLATE_COUNT} accepted scans.
+	 * @return The merged template.
+	 * @throws Exception If there are too few scans, or merging or saving fails.
 	 */
-	public byte[] registerTemplates() throws Exception {
-		if (registerIndex != REG_TEMPLATE_COUNT - 1) {
+	public byte[] registerTemplates(int id, byte[][] templates) throws Exception {
+		long start = System.nanoTime();
+
+		try {
+			return register(id, templates);
+		} finally {
+			Metrics.REGISTER.recordSince(start);
+		}
+	}
+
+	private byte[] register(int id, byte[][] templates) throws Exception {
+		if (templates.length != REG_TEMPLATE_COUNT) {
 			throw new Exception("Insufficient registration requirements");
 		}
 
 		byte[] finalTemplate = new byte[TEMPLATE_SIZE];
 
 		int[] retLen = new int[] { TEMPLATE_SIZE };
-		int mergeValue = FingerprintSensorEx.DBMerge(dbHandle, registrationTemplates[0], registrationTemplates[1],
-				registrationTemplates[2], finalTemplate, retLen);
+		DatabaseHandle handle = acquire();
+		int mergeValue;
+
+		try {
+			mergeValue = driver.dbMerge(handle.get(), templates[0], templates[1], templates[2], finalTemplate, retLen);
+		} finally {
+			handle.release();
+		}
 
 		if (mergeValue != 0) {
 			throw new Exception("Unable to merge fingerprint templates");
 		}
 
-		int ret = FingerprintSensorEx.DBAdd(dbHandle, registrationID, finalTemplate);
+		synchronized (this) {
+			addTemplate(id, finalTemplate);
+			saveSnapshot();
+		}
+
+		return finalTemplate;
+	}
+
+	/**
+	 * Adds a template to the database in place, without a `library-init`. Databases still being built receive it too, and it is written to the snapshot, which is only
+	 * forced to disk by {@link #saveSnapshot()}.
+	 *
+	 * @param id       The fingerprint ID.
+	 * @param template The template, {@link #TEMPLATE_SIZE} bytes.
+	 * @throws Exception If the library has no database or the algorithm library refuses the template.
+	 */
+	public synchronized void addTemplate(int id, byte[] template) throws Exception {
+		DatabaseHandle handle = acquire();
 
-		if (ret != 0) {
-			throw new Exception("Failed to register new fingerprint");
+		try {
+			if (handle.add(id, template) != 0) {
+				throw new Exception("Failed to add fingerprint ID " + id + " to the algorithm database");
+			}
+		} finally {
+			handle.release();
 		}
 
-		byte[] temp = new byte[finalTemplate.length];
+		// databases still being built must not lose this change when they are swapped in
+		for (LibraryLoader pending : building) {
+			pending.addLate(id, template);
+		}
 
-		System.arraycopy(finalTemplate, 0, temp, 0, TEMPLATE_SIZE);
-		return temp;
+		if (snapshot != null) {
+			try {
+				snapshot.put(id, template);
+			} catch (IOException e) {
+				Main.log.warning("Unable to save fingerprint ID " + id + " to the library snapshot: " + e.getMessage());
+			}
+		}
 	}
 
 	/**
-	 * Resets the registration process, clearing all stored templates and resetting the index.
+	 * Replaces the template of a fingerprint already in the database. The new template is first added to a scratch database, so that a template the algorithm library
+	 * refuses leaves the previous enrollment in place; should the live database refuse it all the same, the previous template is put back.
+	 *
+	 * @param id       The fingerprint ID.
+	 * @param template The new template, {@link #TEMPLATE_SIZE} bytes.
+	 * @throws Exception If the ID is not in the database or the new template is refused.
 	 */
-	public void resetRegistration() {
-		registrationTemplates = new byte[REG_TEMPLATE_COUNT][TEMPLATE_SIZE];
-		registerIndex = -1;
+	public synchronized void updateTemplate(int id, byte[] template) throws Exception {
+		byte[] previous = new byte[TEMPLATE_SIZE];
+		DatabaseHandle handle = acquire();
+
+		try {
+			if (!handle.getTemplate(id, previous)) {
+				throw new Exception("Fingerprint ID " + id + " is not in the algorithm database");
+			}
+		} finally {
+			handle.release();
+		}
+
+		DatabaseHandle scratch = newDatabase();
+
+		try {
+			if (scratch.add(id, template) != 0) {
+				throw new Exception("Failed to add fingerprint ID " + id + " to the algorithm database");
+			}
+		} finally {
+			scratch.release();
+		}
+
+		// back to back, so that identification misses the ID for as short a time as possible
+		removeTemplate(id);
+
+		try {
+			addTemplate(id, template);
+		} catch (Exception e) {
+			addTemplate(id, previous);
+			throw e;
+		}
 	}
 
 	/**
-	 * Returns the ID of the fingerprint currently being registered.
+	 * Removes a template from the database in place, from databases still being built and from the snapshot.
 	 *
-	 * @return The registration ID.
+	 * @param id The fingerprint ID.
+	 * @throws Exception If the library has no database or the ID is not in it.
 	 */
-	public int getRegistrationID() {
-		return registrationID;
+	public synchronized void removeTemplate(int id) throws Exception {
+		DatabaseHandle handle = acquire();
+
+		try {
+			if (handle.remove(id) != 0) {
+				throw new Exception("Fingerprint ID " + id + " is not in the algorithm database");
+			}
+		} finally {
+			handle.release();
+		}
+
+		for (LibraryLoader pending : building) {
+			pending.removeLate(id);
+		}
+
+		if (snapshot != null) {
+			snapshot.remove(id);
+		}
 	}
 
 	/**
-	 * Initializes the fingerprint database with the provided fingerprint data.
+	 * Forces the changes made by {@link #addTemplate}, {@link #updateTemplate} and {@link #removeTemplate} to the snapshot file, once per batch of changes.
+	 */
+	public synchronized void saveSnapshot() {
+		if (snapshot != null) {
+			snapshot.force();
+		}
+	}
+
+	/**
+	 * Initializes the fingerprint database with the provided fingerprint data and waits until it is in service.
 	 *
-	 * @param fingerprintArr A JSON array containing fingerprint data in base64 format.
+	 * @param data A JSON array containing fingerprint data in base64 format.
 	 * @throws Exception If initialization fails or an error occurs while adding fingerprints.
 	 */
 	public void initialize(JSONArray data) throws Exception {
+		LibraryLoader loader = beginInitialize(data.length());
+
+		for (int i = 0; i < data.length(); i++) {
+			JSONObject fp = data.getJSONObject(i);
+			loader.accept(fp.getInt("id"), fp.getString("data"));
+		}
+
+		commitInitialize().join();
+	}
+
+	/**
+	 * Starts building a new database in the background. Identification keeps using the current database until the new one is committed. Any initialization still in
+	 * progress is abandoned.
+	 *
+	 * @param total The number of templates the client announced, or 0 if unknown.
+	 * @return The loader accepting the templates of the following chunks.
+	 * @throws Exception If the algorithm library cannot be initialized.
+	 */
+	public synchronized LibraryLoader beginInitialize(int total) throws Exception {
 		Main.log.info("Initializing database...");
-		close();
 
-		if ((dbHandle = FingerprintSensorEx.DBInit()) == 0) {
-			throw new Exception("Failed to initialize algorithm library");
+		if (loader != null) {
+			Main.log.warning("Abandoning unfinished library initialization");
+			loader.abort();
+			building.remove(loader);
+			staging.release();
+			loader = null;
+			staging = null;
+
+			if (stagingSnapshot != null) {
+				stagingSnapshot.discard();
+				stagingSnapshot = null;
+			}
 		}
 
-		for (int i = 0; i < data.length(); i++) {
-			JSONObject fp = data.getJSONObject(i);
-			int id = fp.getInt("id");
-			String base64 = fp.getString("data");
+		staging = new DatabaseHandle(driver);
 
+		if (snapshotDir != null) {
 			try {
-				byte[] blob = new byte[TEMPLATE_SIZE];
+				stagingSnapshot = TemplateSnapshot.create(snapshotDir, ++lastGeneration, Math.max(total, 1024));
+			} catch (IOException e) {
+				Main.log.warning("Library snapshot unavailable for this initialization: " + e.getMessage());
+			}
+		}
 
-				if (FingerprintSensorEx.Base64ToBlob(base64, blob, TEMPLATE_SIZE) == 0) {
-					throw new Exception("Unable to extract from ID " + id);
-				}
+		loader = new LibraryLoader(staging, stagingSnapshot, total);
+		building.add(loader);
+		return loader;
+	}
 
-				if (FingerprintSensorEx.DBAdd(dbHandle, id, blob) != 0) {
-					throw new Exception("Failed to register ID " + id + " to the algorithm database");
-				}
-			} catch (Exception e) {
-				Main.log.severe("Error initializing fingerprint ID " + id + ": " + e.getMessage());
+	/**
+	 * Returns the loader of the initialization in progress.
+	 *
+	 * @return The active loader.
+	 * @throws Exception If no initialization has been started.
+	 */
+	public synchronized LibraryLoader getLoader() throws Exception {
+		if (loader == null) {
+			throw new Exception("No library initialization in progress");
+		}
+		return loader;
+	}
+
+	/**
+	 * Completes the initialization in progress. On a background thread, waits until every template has been loaded, then atomically replaces the current database with
+	 * the new one. The old database is freed once identifications still running against it have finished.
+	 *
+	 * @return A future completing with the loader of the committed initialization, for its counters.
+	 */
+	public CompletableFuture<LibraryLoader> commitInitialize() {
+		final LibraryLoader completed;
+		final DatabaseHandle built;
+		final TemplateSnapshot builtSnapshot;
+
+		synchronized (this) {
+			if (loader == null) {
+				CompletableFuture<LibraryLoader> failed = new CompletableFuture<>();
+				failed.completeExceptionally(new Exception("No library initialization in progress"));
+				return failed;
 			}
+
+			completed = loader;
+			built = staging;
+			builtSnapshot = stagingSnapshot;
+			loader = null;
+			staging = null;
+			stagingSnapshot = null;
 		}
 
-		Main.log.info("Fingerprint database has been successfully updated.");
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				completed.finish();
+			} catch (InterruptedException e) {
+				throw new CompletionException(e);
+			}
+
+			DatabaseHandle previous;
+
+			synchronized (this) {
+				completed.addLateTo(built);
+				building.remove(completed);
+				previous = database.getAndSet(built);
+				swapSnapshot(completed, builtSnapshot);
+			}
+
+			if (previous != null) {
+				previous.release();
+			}
+
+			Metrics.LIBRARY_INIT.recordSince(completed.getStartedAt());
+			Metrics.LIBRARY_INIT_SIZE.record(completed.getLoaded());
+
+			Main.log.info("Fingerprint database has been successfully updated (" + completed.getLoaded() + " loaded, " + completed.getFailed() + " failed).");
+			return completed;
+		}, builder);
 	}
 
 	/**
-	 * Identifies a fingerprint template by comparing it against the database.
+	 * Makes the snapshot written by a committed initialization the current one, provided it holds every loaded template.
+	 */
+	private void swapSnapshot(LibraryLoader completed, TemplateSnapshot built) {
+		if (built == null) {
+			return;
+		}
+
+		if (!completed.isSnapshotComplete()) {
+			Main.log.warning("Library snapshot generation " + built.getGeneration() + " is incomplete and was discarded");
+			built.discard();
+			return;
+		}
+
+		built.seal();
+
+		if (snapshot != null) {
+			snapshot.close();
+		}
+
+		snapshot = built;
+		TemplateSnapshot.deleteOthers(snapshotDir, built.getGeneration());
+	}
+
+	/**
+	 * Identifies a fingerprint template by comparing it against the database. Every shard is searched in parallel and the best match wins, provided it reaches the
+	 * `library.threshold` score.
 	 *
 	 * @param template The fingerprint template to identify.
 	 * @return A JSON object containing the ID and match score of the identified fingerprint.
 	 * @throws Exception If identification fails.
 	 */
 	public JSONObject identify(byte[] template) throws Exception {
-		int[] id = new int[1];
-		int[] score = new int[1];
+		int[] match = new int[2];
 
-		if (FingerprintSensorEx.DBIdentify(dbHandle, template, id, score) != 0) {
+		if (!identify(template, match)) {
 			throw new Exception("Failed to identify the fingerprint");
 		}
 
 		JSONObject data = new JSONObject();
-		data.put("id", id[0]);
-		data.put("score", score[0]);
+		data.put("id", match[0]);
+		data.put("score", match[1]);
 
 		return data;
 	}
 
+	/**
+	 * Identifies a fingerprint template like {@link #identify(byte[])}, without allocating: the calling thread reuses its own search state from one call to the next.
+	 *
+	 * @param template The fingerprint template to identify.
+	 * @param result   Receives the ID at index 0 and the score at index 1 of the best match.
+	 * @return false if no fingerprint matched or the best score is below the threshold.
+	 * @throws Exception If the library has no database.
+	 */
+	public boolean identify(byte[] template, int[] result) throws Exception {
+		long start = System.nanoTime();
+		DatabaseHandle handle = acquire();
+		boolean found;
+
+		try {
+			found = identify(handle, template, result);
+		} finally {
+			handle.release();
+			Metrics.IDENTIFY.recordSince(start);
+		}
+
+		return found && result[1] >= threshold;
+	}
+
+	/**
+	 * Searches every shard of a database, the first on the calling thread and the others on the identify pool. Returns or throws only once every search has ended, as
+	 * the shards may be freed as soon as the handle is released.
+	 *
+	 * @return false if no shard matched.
+	 */
+	private boolean identify(DatabaseHandle handle, byte[] template, int[] result) {
+		int shards = handle.getShardCount();
+		ShardSearch[] tasks = searches.get();
+
+		if (tasks.length < shards) {
+			tasks = new ShardSearch[shards];
+			for (int i = 0; i < shards; i++) {
+				tasks[i] = new ShardSearch();
+			}
+			searches.set(tasks);
+		}
+
+		int submitted = 1;
+
+		try {
+			for (; submitted < shards; submitted++) {
+				tasks[submitted].prepare(handle.getShard(submitted), template);
+				identifier.execute(tasks[submitted]);
+			}
+
+			tasks[0].prepare(handle.getShard(0), template);
+			tasks[0].search();
+		} finally {
+			// polled rather than joined: a blocking join allocates a wait node
+			for (int i = 1; i < submitted; i++) {
+				while (!tasks[i].isDone()) {
+					LockSupport.parkNanos(JOIN_POLL);
+				}
+			}
+		}
+
+		boolean found = false;
+
+		for (int i = 0; i < shards; i++) {
+			ShardSearch task = tasks[i];
+
+			if (task.isCompletedAbnormally()) {
+				throw new IllegalStateException("Shard search failed", task.getException());
+			}
+
+			if (task.matched && (!found || task.score[0] > result[1])) {
+				result[0] = task.id[0];
+				result[1] = task.score[0];
+				found = true;
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * A search of one shard, reused by the thread that owns it for every identification.
+	 */
+	private final class ShardSearch extends ForkJoinTask<Void> {
+		private static final long serialVersionUID = 1L;
+
+		final int[] id = new int[1];
+		final int[] score = new int[1];
+		long shard;
+		byte[] template;
+		boolean matched;
+
+		void prepare(long shard, byte[] template) {
+			reinitialize();
+			this.shard = shard;
+			this.template = template;
+			this.matched = false;
+		}
+
+		void search() {
+			long start = System.nanoTime();
+			matched = driver.dbIdentify(shard, template, id, score) == 0;
+			Metrics.DB_IDENTIFY.recordSince(start);
+			template = null;
+		}
+
+		@Override
+		public Void getRawResult() {
+			return null;
+		}
+
+		@Override
+		protected void setRawResult(Void value) {
+		}
+
+		@Override
+		protected boolean exec() {
+			search();
+			return true;
+		}
+	}
+
 	/**
 	 * Converts a fingerprint template to a base64-encoded string.
 	 *
 	 * @param template The fingerprint template to convert.
 	 * @return The base64-encoded string representation of the template.
 	 */
-	public static String toBase64(byte[] template) {
-		return FingerprintSensorEx.BlobToBase64(template, TEMPLATE_SIZE);
+	public String toBase64(byte[] template) {
+		return driver.blobToBase64(template, TEMPLATE_SIZE);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,154 @@
+package zk9500scanner;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * One `library-add`, `library-update` or `library-remove` command: a change of one or more fingerprints applied to the library in place, without a `library-init`.
+ * <p>
+ * A command names a single fingerprint with `id` (and `data` for adds and updates), or a batch: adds and updates stream their templates in a `fingerprints` array like
+ * `library-init-chunk`, removals list them in `ids`. Every fingerprint is applied on its own, and the `library-ack` event reports the outcome of each one, so a bad
+ * template does not hold back the rest of the batch.
+ * </p>
+ */
+public class LibraryChange implements TemplateMessageReader.TemplateSink {
+	private final String command;
+	private final List<Item> items = new ArrayList<>();
+
+	/**
+	 * One fingerprint of the command, with the reason it was rejected before being applied, if any.
+	 */
+	private static class Item {
+		final int id;
+		final byte[] template;
+		final String error;
+
+		Item(int id, byte[] template, String error) {
+			this.id = id;
+			this.template = template;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * @param command {@link Event#LIBRARY_ADD}, {@link Event#LIBRARY_UPDATE} or {@link Event#LIBRARY_REMOVE}.
+	 */
+	public LibraryChange(String command) {
+		this.command = command;
+	}
+
+	/**
+	 * Tells whether a command changes the library in place.
+	 *
+	 * @param command The command name.
+	 * @return true for `library-add`, `library-update` and `library-remove`.
+	 */
+	public static boolean isChange(String command) {
+		return Event.LIBRARY_ADD.equals(command) || Event.LIBRARY_UPDATE.equals(command) || Event.LIBRARY_REMOVE.equals(command);
+	}
+
+	/**
+	 * Receives a template of the `fingerprints` array of a text command.
+	 */
+	@Override
+	public void accept(int id, String base64) {
+		try {
+			byte[] blob = Base64.getDecoder().decode(base64);
+			add(id, blob, 0, blob.length);
+		} catch (IllegalArgumentException e) {
+			items.add(new Item(id, null, "Unable to extract (" + e.getMessage() + ")"));
+		}
+	}
+
+	/**
+	 * Receives a template of the payload of a binary command.
+	 */
+	@Override
+	public void accept(int id, byte[] buffer, int offset, int length) {
+		add(id, buffer, offset, length);
+	}
+
+	private void add(int id, byte[] buffer, int offset, int length) {
+		if (length == 0 || length > Library.TEMPLATE_SIZE) {
+			items.add(new Item(id, null, "Invalid template length " + length));
+			return;
+		}
+
+		byte[] template = new byte[Library.TEMPLATE_SIZE];
+		System.arraycopy(buffer, offset, template, 0, length);
+		items.add(new Item(id, template, null));
+	}
+
+	/**
+	 * Adds the fingerprints given in the header of the command: `id` with `data`, or the `ids` or `id` of a removal.
+	 *
+	 * @param header The command without its `fingerprints` array.
+	 */
+	public void addFields(JSONObject header) {
+		if (command.equals(Event.LIBRARY_REMOVE)) {
+			JSONArray ids = header.optJSONArray("ids");
+
+			if (ids != null) {
+				for (int i = 0; i < ids.length(); i++) {
+					items.add(new Item(ids.getInt(i), null, null));
+				}
+			} else if (header.has("id")) {
+				items.add(new Item(header.getInt("id"), null, null));
+			}
+		} else if (header.has("id") && header.has("data")) {
+			accept(header.getInt("id"), header.getString("data"));
+		}
+	}
+
+	/**
+	 * Applies every fingerprint to the library in order and saves the snapshot once.
+	 *
+	 * @param library The library.
+	 * @return The `library-ack` event with the `command`, the number of fingerprints `applied` and `failed`, and the `results`: the `id` of each fingerprint with `ok`
+	 *         and, for failures, a `message`.
+	 */
+	public Event apply(Library library) {
+		JSONArray results = new JSONArray();
+		int applied = 0;
+
+		for (Item item : items) {
+			long start = System.nanoTime();
+			JSONObject result = new JSONObject().put("id", item.id);
+
+			try {
+				if (item.error != null) {
+					throw new Exception(item.error);
+				}
+
+				if (command.equals(Event.LIBRARY_ADD)) {
+					library.addTemplate(item.id, item.template);
+				} else if (command.equals(Event.LIBRARY_UPDATE)) {
+					library.updateTemplate(item.id, item.template);
+				} else {
+					library.removeTemplate(item.id);
+				}
+
+				result.put("ok", true);
+				applied++;
+			} catch (Exception e) {
+				Main.log.warning("Unable to apply " + command + " to fingerprint ID " + item.id + ": " + e.getMessage());
+				result.put("ok", false).put("message", e.getMessage());
+			} finally {
+				Metrics.LIBRARY_CHANGE.recordSince(start);
+			}
+
+			results.put(result);
+		}
+
+		if (applied > 0) {
+			library.saveSnapshot();
+		}
+
+		Main.log.info("Applied " + command + " to " + applied + " of " + items.size() + " fingerprints");
+		return new Event(Event.LIBRARY_ACK).put("command", command).put("applied", applied).put("failed", items.size() - applied).put("results", results);
+	}
+}
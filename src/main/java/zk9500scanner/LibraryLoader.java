@@ -0,0 +1,315 @@
+package zk9500scanner;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads templates into an algorithm database handle through a decode pipeline.
+ * <p>
+ * Base64 decoding runs on a pool sized to the number of cores, and a single loader thread feeds the decoded templates to {@code DBAdd} (a database handle must not be
+ * used from several threads at once). At most {@code library.init.inflight} templates (default 1024) are queued or being decoded at any time; {@link #accept} blocks
+ * once that limit is reached, so heap usage stays bounded however large the population is. Once the loader is aborted, a blocked or later {@link #accept} fails with a
+ * {@link CancellationException} instead of waiting for room that will never come.
+ * </p>
+ * <p>
+ * When given a {@link TemplateSnapshot}, the loader thread also writes every added template to it.
+ * </p>
+ */
+public class LibraryLoader implements TemplateMessageReader.TemplateSink {
+	private static final ExecutorService decoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+		Thread thread = new Thread(runnable, "library-decoder");
+		thread.setDaemon(true);
+		// leave headroom for identification while a library is rebuilt
+		thread.setPriority(Thread.NORM_PRIORITY - 1);
+		return thread;
+	});
+
+	private static final Decoded POISON = new Decoded(0, null);
+
+	private final DatabaseHandle database;
+	private final TemplateSnapshot snapshot;
+	private volatile boolean snapshotFailed = false;
+	private volatile boolean aborted = false;
+	private final Semaphore inFlight;
+	private final BlockingQueue<Decoded> decoded;
+	private final Thread loader;
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicInteger loaded = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final int total;
+	private final long startedAt = System.nanoTime();
+	private final Map<Integer, byte[]> late = new LinkedHashMap<>();
+
+	/**
+	 * A decoded template waiting to be added.
+	 */
+	private static class Decoded {
+		final int id;
+		final byte[] blob;
+
+		Decoded(int id, byte[] blob) {
+			this.id = id;
+			this.blob = blob;
+		}
+	}
+
+	/**
+	 * Starts a loader for the given database.
+	 *
+	 * @param database The database to add templates to.
+	 * @param snapshot The snapshot to write templates to, or {@code null}.
+	 * @param total    The number of templates the client announced, or 0 if unknown.
+	 */
+	public LibraryLoader(DatabaseHandle database, TemplateSnapshot snapshot, int total) {
+		int limit = Integer.parseInt(System.getProperty("library.init.inflight", "1024"));
+
+		this.database = database;
+		this.snapshot = snapshot;
+		this.total = total;
+		this.inFlight = new Semaphore(limit);
+		this.decoded = new ArrayBlockingQueue<>(limit + 1);
+		this.loader = new Thread(this::load, "library-loader");
+		this.loader.setDaemon(true);
+		this.loader.start();
+	}
+
+	/**
+	 * Queues a template for decoding and loading, blocking while the pipeline is full.
+	 *
+	 * @param id     The fingerprint ID.
+	 * @param base64 The template in base64 format.
+	 * @throws InterruptedException If interrupted while waiting for room in the pipeline.
+	 * @throws CancellationException If the loader was aborted.
+	 */
+	@Override
+	public void accept(int id, String base64) throws InterruptedException {
+		reserve();
+
+		decoders.execute(() -> {
+			try {
+				byte[] blob = Base64.getDecoder().decode(base64);
+
+				if (blob.length == 0 || blob.length > Library.TEMPLATE_SIZE) {
+					throw new IllegalArgumentException("invalid template length " + blob.length);
+				}
+
+				decoded.put(new Decoded(id, Arrays.copyOf(blob, Library.TEMPLATE_SIZE)));
+			} catch (Exception e) {
+				Main.log.severe("Error initializing fingerprint ID " + id + ": Unable to extract (" + e.getMessage() + ")");
+				failed.incrementAndGet();
+				done();
+			}
+		});
+	}
+
+	/**
+	 * Queues a raw template for loading, blocking while the pipeline is full. Raw templates skip the decode stage.
+	 *
+	 * @throws InterruptedException If interrupted while waiting for room in the pipeline.
+	 * @throws CancellationException If the loader was aborted.
+	 */
+	@Override
+	public void accept(int id, byte[] buffer, int offset, int length) throws InterruptedException {
+		reserve();
+
+		byte[] blob = new byte[Library.TEMPLATE_SIZE];
+		System.arraycopy(buffer, offset, blob, 0, Math.min(length, Library.TEMPLATE_SIZE));
+		decoded.put(new Decoded(id, blob));
+	}
+
+	/**
+	 * Takes a place in the pipeline for one template, waiting while it is full.
+	 */
+	private void reserve() throws InterruptedException {
+		inFlight.acquire();
+
+		// the permit released by abort is passed on, so every producer that was waiting gets out
+		if (aborted) {
+			inFlight.release();
+			throw new CancellationException("Library initialization aborted");
+		}
+
+		pending.incrementAndGet();
+	}
+
+	private void load() {
+		while (true) {
+			Decoded entry;
+
+			try {
+				entry = decoded.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			if (entry == POISON) {
+				return;
+			}
+
+			if (database.add(entry.id, entry.blob) == 0) {
+				loaded.incrementAndGet();
+				persist(entry.id, entry.blob);
+			} else {
+				Main.log.severe("Error initializing fingerprint ID " + entry.id + ": Failed to register ID " + entry.id + " to the algorithm database");
+				failed.incrementAndGet();
+			}
+
+			done();
+		}
+	}
+
+	private void persist(int id, byte[] template) {
+		if (snapshot == null || snapshotFailed) {
+			return;
+		}
+
+		try {
+			snapshot.put(id, template);
+		} catch (IOException e) {
+			Main.log.warning("Library snapshot disabled for this initialization: " + e.getMessage());
+			snapshotFailed = true;
+		}
+	}
+
+	private void done() {
+		inFlight.release();
+
+		if (pending.decrementAndGet() == 0) {
+			synchronized (pending) {
+				pending.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits until every submitted template has been added or has failed.
+	 *
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public void flush() throws InterruptedException {
+		synchronized (pending) {
+			while (pending.get() > 0) {
+				pending.wait();
+			}
+		}
+	}
+
+	/**
+	 * Waits for outstanding templates and stops the loader thread.
+	 *
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public void finish() throws InterruptedException {
+		flush();
+		decoded.put(POISON);
+		loader.join();
+	}
+
+	/**
+	 * Stops the loader thread without waiting for outstanding templates. Returns once the handle is no longer in use by the loader. Producers waiting in
+	 * {@link #accept} and {@link #flush()} are released.
+	 */
+	public void abort() {
+		aborted = true;
+		loader.interrupt();
+
+		try {
+			loader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		decoded.clear();
+		inFlight.release();
+
+		synchronized (pending) {
+			pending.set(0);
+			pending.notifyAll();
+		}
+	}
+
+	/**
+	 * Records a template registered against the live database while this one was being built, so it can be added before the swap.
+	 *
+	 * @param id       The fingerprint ID.
+	 * @param template The registered template.
+	 */
+	public synchronized void addLate(int id, byte[] template) {
+		late.put(id, template.clone());
+	}
+
+	/**
+	 * Records a template removed from the live database while this one was being built, so it can be removed before the swap even if the client sends it again.
+	 *
+	 * @param id The fingerprint ID.
+	 */
+	public synchronized void removeLate(int id) {
+		late.put(id, null);
+	}
+
+	/**
+	 * Applies the changes recorded with {@link #addLate} and {@link #removeLate} to the given database. Must be called after {@link #finish()}.
+	 *
+	 * @param database The database built by this loader.
+	 */
+	public synchronized void addLateTo(DatabaseHandle database) {
+		for (Map.Entry<Integer, byte[]> entry : late.entrySet()) {
+			if (entry.getValue() == null) {
+				if (database.remove(entry.getKey()) == 0) {
+					loaded.decrementAndGet();
+				}
+				if (snapshot != null) {
+					snapshot.remove(entry.getKey());
+				}
+			} else if (database.add(entry.getKey(), entry.getValue()) == 0) {
+				loaded.incrementAndGet();
+				persist(entry.getKey(), entry.getValue());
+			} else {
+				failed.incrementAndGet();
+			}
+		}
+		late.clear();
+	}
+
+	/**
+	 * Returns whether every loaded template was also written to the snapshot.
+	 *
+	 * @return `true` if the snapshot is complete, `false` if there is none or writing failed.
+	 */
+	public boolean isSnapshotComplete() {
+		return snapshot != null && !snapshotFailed;
+	}
+
+	public int getLoaded() {
+		return loaded.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} when the loader was created.
+	 */
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	public DatabaseHandle getDatabase() {
+		return database;
+	}
+}
@@ -4,12 +4,6 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.text.SimpleDateFormat;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.Date;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -22,22 +16,45 @@ import org.json.JSONObject;
 public class Main {
 	public static final int TEMPLATE_SIZE = 1024;
 	public static final Logger log = Logger.getLogger("");
-	public static final AtomicBoolean runner = new AtomicBoolean(false);
 	public static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy_MM_dd__HH_mm_ss");
 
 	private final SocketServer socket;
-	private final Scanner scanner;
+	private final DeviceManager devices;
+	private final DeviceSupervisor supervisor;
 	private final Library library;
+	private final ScanPipeline pipeline;
+	private final HoldCache holds;
+	private final RegistrationManager registrations;
+	private final VerificationManager verifications;
+	private final EventJournal journal;
+	private volatile BatchJob batch = null; // Latest batch job, only started on the batch command lane
+	private final int[] match = new int[2]; // Result of the identification in processScan, only used on the process stage thread
 
 	/**
 	 * Initializes the scanner application components. Sets up WebSocket event handlers and scanner events.
+	 *
+	 * @throws IOException If the configured sensor driver cannot be created.
 	 */
-	public Main() {
+	public Main() throws IOException {
 		int port = Integer.parseInt(System.getProperty("wsport", "1234")); // Default port if not set
+		SensorDriver driver = SensorDriver.fromSystemProperties();
 
 		socket = new SocketServer(new InetSocketAddress("0.0.0.0", port));
-		scanner = new Scanner();
-		library = new Library();
+		devices = new DeviceManager(driver);
+		supervisor = new DeviceSupervisor(socket, devices);
+		library = new Library(driver);
+		pipeline = new ScanPipeline(this::processScan, socket::send, devices::getScheduler);
+		holds = HoldCache.fromSystemProperties(library);
+		holds.onHoldEnd = pipeline::publish;
+		registrations = RegistrationManager.fromSystemProperties(library, holds);
+		registrations.onTimeout = pipeline::publish;
+		verifications = VerificationManager.fromSystemProperties(library);
+		verifications.onTimeout = pipeline::publish;
+		supervisor.onEvent = pipeline::publish;
+		devices.onLost = supervisor::lost;
+		journal = EventJournal.fromSystemProperties();
+		socket.setJournal(journal);
+		Metrics.register(pipeline);
 
 		setupSocketEvents();
 		setupScannerEvents();
@@ -47,143 +64,209 @@ public class Main {
 	 * Configures WebSocket event handlers for scanner interactions.
 	 */
 	private void setupSocketEvents() {
-		socket.onRegistrationStart = (Integer id) -> {
-			if (scanner.isOpen()) {
+		socket.onRegistrationStart = data -> {
+			int id = data.getInt("id");
+			int device = data.optInt("device", RegistrationManager.ANY_DEVICE);
+
+			// an ID of 0 cancels the registration of the device, or every registration
+			if (id == 0) {
+				if (data.has("device")) {
+					registrations.cancel(device);
+				} else {
+					registrations.cancelAll();
+				}
+				return;
+			}
+
+			if (devices.isOpen()) {
 				log.info("Initiating fingerprint registration process!");
-				library.startRegistration(id);
+				RegistrationSession session = registrations.start(device, id, data.opt(SocketServer.REQUEST_ID));
 
 				// Notify client that registration has started
-				JSONObject json = new JSONObject();
-				json.put("event", "registration-start");
-				socket.send(json);
+				Event event = RegistrationManager.toEvent(Event.REGISTRATION_START, session);
+				socket.send(data.has("device") ? event.put("device", device) : event);
+			}
+		};
+
+		socket.onVerifyStart = data -> {
+			int id = data.getInt("id");
+			int device = data.optInt("device", RegistrationManager.ANY_DEVICE);
+
+			// an ID of 0 disarms the device, or every device
+			if (id == 0) {
+				if (data.has("device")) {
+					verifications.cancel(device);
+				} else {
+					verifications.cancelAll();
+				}
+				return;
+			}
+
+			VerificationManager.Claim claim = verifications.arm(device, id, data.opt(SocketServer.REQUEST_ID));
+			Event event = VerificationManager.toEvent(Event.VERIFY_START, claim);
+			socket.send(data.has("device") ? event.put("device", device) : event);
+		};
+
+		socket.onInitializeBegin = data -> {
+			try {
+				library.beginInitialize(data.optInt("total"));
+			} catch (Exception e) {
+				log.severe("Library initialization error: " + e.getMessage());
+			}
+		};
+
+		socket.onTemplates = () -> {
+			try {
+				return library.getLoader();
+			} catch (Exception e) {
+				log.severe("Library initialization error: " + e.getMessage());
+				return null;
 			}
 		};
 
-		socket.onInitialize = data -> {
+		socket.onInitializeChunk = data -> {
 			try {
-				library.initialize(data);
-				socket.send(new JSONObject().put("event", "library-init-ok"));
+				LibraryLoader loader = library.getLoader();
+				loader.flush();
+
+				socket.reply(data, new Event(Event.LIBRARY_INIT_PROGRESS)
+						.put("chunk", data.optInt("seq"))
+						.put("loaded", loader.getLoaded())
+						.put("failed", loader.getFailed())
+						.put("total", loader.getTotal()));
 			} catch (Exception e) {
 				log.severe("Library initialization error: " + e.getMessage());
 			}
 		};
+
+		socket.onLibraryChange = (data, change) -> socket.reply(data, change.apply(library));
+
+		socket.onBatchIdentify = (data, probes) -> startBatch(data, BatchJob.identify(library, probes, data.opt(SocketServer.REQUEST_ID)));
+
+		socket.onBatchAudit = data -> {
+			try {
+				startBatch(data, BatchJob.audit(library, data.opt(SocketServer.REQUEST_ID)));
+			} catch (Exception e) {
+				log.warning("Batch audit error: " + e.getMessage());
+				socket.reply(data, new Event(Event.BATCH_DONE).put("command", Event.BATCH_AUDIT).put("message", e.getMessage()));
+			}
+		};
+
+		socket.onBatchCancel = data -> {
+			BatchJob job = batch;
+			if (job != null) {
+				job.cancel();
+			}
+		};
+
+		socket.onMetrics = data -> {
+			BatchJob job = batch;
+			socket.reply(data, Metrics.toEvent(pipeline, holds, socket).put("registrations", registrations.toJSON()).put("verifications", verifications.toJSON())
+					.put("batch", job != null ? job.toJSON() : null).put("images", socket.getImageMetrics()).put("devices", supervisor.toJSON())
+					.put("journal", journal != null ? journal.toJSON() : null));
+		};
+
+		socket.onInitializeCommit = data -> library.commitInitialize().whenComplete((loader, error) -> {
+			if (error != null) {
+				log.severe("Library initialization error: " + error.getMessage());
+				return;
+			}
+
+			// the new library is in service
+			socket.reply(data, new Event(Event.LIBRARY_INIT_OK).put("loaded", loader.getLoaded()).put("failed", loader.getFailed()));
+		});
 	}
 
 	/**
-	 * Sets up the fingerprint scanner event listener.
+	 * Starts a batch job unless one is still running. The job streams its events to every client and steps aside whenever live scans are waiting.
+	 *
+	 * @param data The `batch-identify` or `batch-audit` command.
+	 * @param job  The job.
 	 */
-	private void setupScannerEvents() {
-		scanner.onScanEvent = fingerprint -> {
-			if (library.isRegistrationMode()) {
-				try {
-					Object result = library.verifyTemplate(fingerprint);
-					handleRegistrationResult(result);
-				} catch (Exception e) {
-					log.severe("Fingerprint registration error: " + e.getLocalizedMessage());
-				}
-			} else {
-				// normal fingerprint detection
-				try {
-					JSONObject data = library.identify(fingerprint);
-					data.put("event", "biometric");
-					data.put("timestamp", getCurrentTimestamp());
-
-					int id = data.getInt("id");
-					int score = data.getInt("score");
-
-					log.info("Biometric detected [ID: " + id + ", SCORE: " + score + "]");
-					socket.send(data);
-				} catch (Exception e) {
-					JSONObject json = new JSONObject();
-					json.put("event", "biometric-error");
-					json.put("message", e.getMessage());
+	private void startBatch(JSONObject data, BatchJob job) {
+		BatchJob current = batch;
 
-					log.warning("Biometric error: " + e.getMessage());
-					// send error to client
-					socket.send(json);
-				}
-			}
-		};
+		if (current != null && current.isRunning()) {
+			socket.reply(data, new Event(Event.BATCH_DONE).put("command", data.optString("event")).put("message", "Batch job " + current.getJob() + " is still running"));
+			return;
+		}
+
+		batch = job;
+		job.start(socket::send, pipeline::isIdle);
 	}
 
-	private String getCurrentTimestamp() {
-		Instant now = Instant.now();
-		// Convert Instant to LocalDateTime in UTC (or use system default zone)
-		LocalDateTime dateTime = LocalDateTime.ofInstant(now, ZoneId.of("Asia/Manila"));
-		// Format it to a MySQL-compatible string
-		return dateTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+	/**
+	 * Sets up the fingerprint scanner event and image listeners for every device.
+	 */
+	private void setupScannerEvents() {
+		devices.onScanEvent = pipeline::submit;
+		devices.onImage = socket::sendImage;
 	}
 
 	/**
-	 * Processes the result of a fingerprint registration attempt.
+	 * Registers a scan if its device has a registration session, verifies it 1:1 if its device is armed with a claimed ID, and otherwise identifies it. Runs on the `process` stage of the {@link ScanPipeline}.
 	 *
-	 * @param result The result of the registration attempt, either an error code or a fingerprint template.
-	 * @throws Exception If an unexpected result type is encountered.
+	 * @param scan The scan.
+	 * @return The event for clients, tagged with the `device` that took the scan, or {@code null} if there is nothing to report.
 	 */
-	private void handleRegistrationResult(Object result) throws Exception {
-		if (result instanceof Integer) {
-			int code = (int) result;
-
-			if (code >= 0 && code < Library.REG_TEMPLATE_COUNT - 1) { // registration in progress
-				JSONObject json = new JSONObject();
-				json.put("event", "registration-ongoing");
-				json.put("step", code + 1);
-
-				// send status
-				socket.send(json);
-			} else if (code == Library.REG_TEMPLATE_COUNT - 1) {
-				// completed the regisration requirements...
-				byte[] template = library.registerTemplates();
-
-				// successfully verified and saved
-				if (template instanceof byte[]) {
-					JSONObject json = new JSONObject();
-					json.put("event", "registration-success");
-					json.put("fingerprint", Library.toBase64(template));
-					json.put("id", library.getRegistrationID());
-					socket.send(json); // send fingerprint data
-
-					// reset process
-					library.startRegistration(0);
-				}
-			} else // handle error
-				handleRegistrationError(code);
+	private Event processScan(Scan scan) {
+		byte[] fingerprint = scan.getTemplate();
+		Event event = null;
+
+		RegistrationSession session = registrations.get(scan.getDevice());
+
+		if (session != null) {
+			event = registrations.process(session, scan);
 		} else {
-			throw new Exception("Unexpected result type: " + result.getClass().getName());
+			// a finger left on the sensor was already identified
+			if (holds.isRepeat(scan)) {
+				return null;
+			}
+
+			VerificationManager.Claim claim = verifications.take(scan.getDevice());
+
+			if (claim != null) {
+				event = verifications.verify(claim, scan);
+				holds.add(scan, null);
+				return event.put("device", scan.getDevice());
+			}
+
+			// normal fingerprint detection
+			try {
+				if (library.identify(fingerprint, match)) {
+					event = toBiometricEvent(match[0], match[1], scan.getCapturedMillis());
+					holds.add(scan, event);
+
+					if (log.isLoggable(Level.INFO)) {
+						log.info("Biometric detected [ID: " + event.getId() + ", SCORE: " + event.getScore() + ", DEVICE: " + scan.getDevice() + "]");
+					}
+				} else if (!holds.addFailure(scan)) {
+					// one error per touch, although a finger left on the sensor is identified again on every capture
+					log.warning("Biometric error: Failed to identify the fingerprint");
+					event = new Event(Event.BIOMETRIC_ERROR).put("message", "Failed to identify the fingerprint");
+				}
+			} catch (Exception e) {
+				if (!holds.addFailure(scan)) {
+					log.warning("Biometric error: " + e.getMessage());
+					// send error to client
+					event = new Event(Event.BIOMETRIC_ERROR).put("message", e.getMessage());
+				}
+			}
 		}
+
+		return event != null ? event.put("device", scan.getDevice()) : null;
 	}
 
 	/**
-	 * Logs registration errors based on the provided error code.
+	 * Turns an identification result into the `biometric` event sent to clients.
 	 *
-	 * @param errorCode The error code received during fingerprint registration.
+	 * @param id        The identified fingerprint ID.
+	 * @param score     The match score.
+	 * @param timestamp The capture time in epoch milliseconds.
+	 * @return The event.
 	 */
-	private void handleRegistrationError(int errorCode) {
-		JSONObject json = new JSONObject();
-		json.put("event", "registration-error");
-
-		switch (errorCode) {
-		case Library.ERR_EXCEED:
-			log.warning("Fingerprint registration input exceeds the limit.");
-			break;
-		case Library.ERR_DUPLICATE:
-			json.put("message", "Fingerprint is already been registered.");
-			log.warning("Duplicate fingerprint detected.");
-			break;
-		case Library.ERR_NOT_MATCH:
-			json.put("message", "Fingerprint does not match with the previous data.");
-			log.warning("Fingerprint does not match expected data.");
-			break;
-		case Library.ERR_MERGE:
-			log.warning("Fingerprint merge failed.");
-			break;
-		default:
-			log.severe("Unknown fingerprint registration error: " + errorCode);
-			break;
-		}
-
-		// notify client
-		socket.send(json);
+	static Event toBiometricEvent(int id, int score, long timestamp) {
+		return new Event(Event.BIOMETRIC).id(id).score(score).timestamp(timestamp);
 	}
 
 	/**
@@ -198,22 +281,24 @@ public class Main {
 		try {
 			setupLogging();
 			Main main = new Main();
-			runner.set(true);
-			startBackgroundWorker(main);
+			main.supervisor.start();
 		} catch (IOException e) {
 			log.severe("Failed to initialize application: " + e.getMessage());
 		}
 	}
 
 	/**
-	 * Parses command-line arguments and sets system properties.
+	 * Parses command-line arguments of the form {@code --name=value} and sets them as system properties, e.g. {@code --wsport=51515}, {@code --driver=sim},
+	 * {@code --capture=scans.zkcap} or {@code --rate=10}.
 	 *
 	 * @param args Command-line arguments.
 	 */
 	private static void configureSystemProperties(String[] args) {
 		for (String arg : args) {
-			if (arg.startsWith("--wsport=")) {
-				System.setProperty("wsport", arg.substring("--wsport=".length()));
+			int separator = arg.indexOf('=');
+
+			if (arg.startsWith("--") && separator > 2) {
+				System.setProperty(arg.substring(2, separator), arg.substring(separator + 1));
 			}
 		}
 	}
@@ -234,7 +319,8 @@ public class Main {
 	}
 
 	/**
-	 * Configures logging and creates a logs directory if needed.
+	 * Configures logging and creates a logs directory if needed. Records are written asynchronously by {@link FileLogger}, at the level given by the `log.level` system
+	 * property (default `INFO`). The console handler is removed unless `log.console` is `true`, since it writes on the logging thread.
 	 *
 	 * @throws IOException If an error occurs while setting up logging.
 	 */
@@ -244,37 +330,13 @@ public class Main {
 			throw new IOException("Unable to create logs directory");
 		}
 
-		String timestamp = dateFormat.format(new Date());
-		log.addHandler(new FileLogger("logs/zk9500_" + timestamp + ".log"));
-		log.setLevel(Level.OFF); // Disable logging
-	}
-
-	/**
-	 * Starts a background worker to monitor scanner hardware and socket server.
-	 *
-	 * @param main The main application instance.
-	 */
-	private static void startBackgroundWorker(Main main) {
-		Thread worker = new Thread(() -> {
-			while (runner.get()) {
-				try {
-					if (!main.socket.isRunning()) {
-						main.socket.start();
-					}
-
-					if (!main.scanner.isOpen()) {
-						main.scanner.init();
-						main.scanner.startScanning(); // Start scanning after initialization
-						return;
-					}
-
-					Thread.sleep(2000);
-				} catch (Exception e) {
-					log.log(Level.SEVERE, "Worker thread error", e);
-				}
+		if (!Boolean.getBoolean("log.console")) {
+			for (Handler handler : log.getHandlers()) {
+				log.removeHandler(handler);
 			}
-			log.info("Scanner detection stopped.");
-		});
-		worker.start();
+		}
+
+		log.addHandler(new FileLogger(logDir, dateFormat));
+		log.setLevel(Level.parse(System.getProperty("log.level", "INFO")));
 	}
 }
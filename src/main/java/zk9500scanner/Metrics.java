@@ -0,0 +1,146 @@
+package zk9500scanner;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.json.JSONObject;
+
+/**
+ * Latency and size histograms of the hot paths, shared by the whole process.
+ * <p>
+ * The histograms are recorded without locks or allocation. They can be read through JMX once {@link #register} has been called, or as the `metrics` event sent in
+ * reply to a `metrics` request.
+ * </p>
+ */
+public class Metrics {
+	/** Duration of each {@code AcquireFingerprint} poll. */
+	public static final Histogram ACQUIRE = new Histogram("acquire", "ns");
+
+	/** Duration of reading the fake finger status of a capture. */
+	public static final Histogram FAKE_CHECK = new Histogram("fake-check", "ns");
+
+	/** Duration of scoring the image of a capture with {@link ImageQuality}. */
+	public static final Histogram QUALITY_CHECK = new Histogram("quality-check", "ns");
+
+	/** Image quality score of each capture, from 0 to 100. */
+	public static final Histogram CAPTURE_QUALITY = new Histogram("capture-quality", "score");
+
+	/** Duration of copying, and downscaling, a capture image into an `image-stream` frame. */
+	public static final Histogram IMAGE_FRAME = new Histogram("image-frame", "ns");
+
+	/** Time from losing a sensor to having it back in service. */
+	public static final Histogram DEVICE_RECOVERY = new Histogram("device-recovery", "ns");
+
+	/** Duration of appending an event to the {@link EventJournal}. */
+	public static final Histogram JOURNAL_APPEND = new Histogram("journal-append", "ns");
+
+	/** Duration of flushing a group of events appended to the {@link EventJournal} to disk. */
+	public static final Histogram JOURNAL_FLUSH = new Histogram("journal-flush", "ns");
+
+	/** Duration of reading the events of a `journal-replay` from the {@link EventJournal}. */
+	public static final Histogram JOURNAL_REPLAY = new Histogram("journal-replay", "ns");
+
+	/** Duration of {@link Library#identify(byte[])}, across all shards. */
+	public static final Histogram IDENTIFY = new Histogram("identify", "ns");
+
+	/** Duration of each {@code DBIdentify} call on one shard. */
+	public static final Histogram DB_IDENTIFY = new Histogram("db-identify", "ns");
+
+	/** Duration of each registration scan in {@link RegistrationManager#process(RegistrationSession, Scan)}, including the final registration. */
+	public static final Histogram VERIFY = new Histogram("verify", "ns");
+
+	/** Duration of each 1:1 verification against a claimed ID in {@link VerificationManager#verify(VerificationManager.Claim, Scan)}. */
+	public static final Histogram CLAIM_VERIFY = new Histogram("claim-verify", "ns");
+
+	/** Duration of {@link Library#registerTemplates(int, byte[][])}. */
+	public static final Histogram REGISTER = new Histogram("register", "ns");
+
+	/** Duration of encoding an event as JSON text or a binary frame. */
+	public static final Histogram SERIALIZE = new Histogram("serialize", "ns");
+
+	/** Duration of queueing an event for every client, including its encoding. */
+	public static final Histogram BROADCAST = new Histogram("broadcast", "ns");
+
+	/** Time an event waited in a client's outbound queue before being handed to the socket. */
+	public static final Histogram SEND_LAG = new Histogram("send-lag", "ns");
+
+	/** Time from the start of the poll that captured a finger until its event was sent. */
+	public static final Histogram SCAN_TO_EVENT = new Histogram("scan-to-event", "ns");
+
+	/** Duration of library initializations, from the first template until the new library is in service. */
+	public static final Histogram LIBRARY_INIT = new Histogram("library-init", "ns");
+
+	/** Number of templates loaded by each library initialization. */
+	public static final Histogram LIBRARY_INIT_SIZE = new Histogram("library-init-size", "templates");
+
+	/** Duration of applying one fingerprint of a `library-add`, `library-update` or `library-remove`. */
+	public static final Histogram LIBRARY_CHANGE = new Histogram("library-change", "ns");
+
+	private static final Histogram[] HISTOGRAMS = { ACQUIRE, FAKE_CHECK, QUALITY_CHECK, CAPTURE_QUALITY, IMAGE_FRAME, IDENTIFY, DB_IDENTIFY, VERIFY, CLAIM_VERIFY,
+			REGISTER, SERIALIZE, BROADCAST, SEND_LAG, SCAN_TO_EVENT, LIBRARY_INIT, LIBRARY_INIT_SIZE, LIBRARY_CHANGE,
+			DEVICE_RECOVERY, JOURNAL_APPEND, JOURNAL_FLUSH, JOURNAL_REPLAY };
+
+	private Metrics() {
+	}
+
+	/**
+	 * Registers the histograms and the stages of a pipeline with the platform MBean server, under the `zk9500scanner` domain.
+	 *
+	 * @param pipeline The scan pipeline.
+	 */
+	public static void register(ScanPipeline pipeline) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		try {
+			for (Histogram histogram : HISTOGRAMS) {
+				server.registerMBean(histogram, new ObjectName("zk9500scanner:type=Histogram,name=" + histogram.getName()));
+			}
+
+			for (PipelineStage<?> stage : pipeline.getStages()) {
+				server.registerMBean(stage, new ObjectName("zk9500scanner:type=PipelineStage,name=" + stage.getName()));
+			}
+		} catch (JMException e) {
+			Main.log.warning("Unable to register metrics with JMX: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Builds the `metrics` event.
+	 *
+	 * @param pipeline The scan pipeline.
+	 * @param holds    The finger-hold cache.
+	 * @param socket   The WebSocket server.
+	 * @return The event, with a `histograms` object keyed by histogram name, a `pipeline` object keyed by stage name, a `holds` object, a `connections` array, an `outbound` object and a `commands` object.
+	 */
+	public static Event toEvent(ScanPipeline pipeline, HoldCache holds, SocketServer socket) {
+		JSONObject histograms = new JSONObject();
+		for (Histogram histogram : HISTOGRAMS) {
+			histograms.put(histogram.getName(), histogram.toJSON());
+		}
+
+		JSONObject stages = new JSONObject();
+		for (PipelineStage<?> stage : pipeline.getStages()) {
+			JSONObject json = stage.getLatency().toJSON();
+			json.put("capacity", stage.getCapacity());
+			json.put("depth", stage.getDepth());
+			json.put("accepted", stage.getAccepted());
+			json.put("dropped", stage.getDropped());
+			json.put("failed", stage.getFailed());
+			stages.put(stage.getName(), json);
+		}
+
+		JSONObject hold = new JSONObject();
+		hold.put("suppressed", holds.getSuppressed());
+		hold.put("holds", holds.getHolds());
+
+		JSONObject outbound = new JSONObject();
+		outbound.put("dropped", Connection.getTotalDropped());
+		outbound.put("evicted", Connection.getTotalEvicted());
+
+		return new Event(Event.METRICS).put("histograms", histograms).put("pipeline", stages).put("holds", hold).put("connections", socket.getConnectionMetrics())
+				.put("outbound", outbound).put("commands", socket.getCommandMetrics());
+	}
+}
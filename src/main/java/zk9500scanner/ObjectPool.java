@@ -0,0 +1,75 @@
+package zk9500scanner;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of reusable objects, such as {@link Scan} buffers, so that a steady stream of captures does not allocate.
+ * <p>
+ * {@link #acquire()} takes an idle object or creates one when none is idle; {@link #release(Object)} returns it, and drops it if the pool is already full. Objects may
+ * be acquired and released on any thread. Neither call allocates once the pool has warmed up.
+ * </p>
+ *
+ * @param <T> The type of the pooled objects.
+ */
+public class ObjectPool<T> {
+	private final ArrayBlockingQueue<T> idle;
+	private final Supplier<T> factory;
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+
+	/**
+	 * @param capacity The number of idle objects kept at most.
+	 * @param factory  Creates an object when none is idle.
+	 */
+	public ObjectPool(int capacity, Supplier<T> factory) {
+		this.idle = new ArrayBlockingQueue<>(capacity);
+		this.factory = factory;
+	}
+
+	/**
+	 * @return An idle object, or a new one if none is idle.
+	 */
+	public T acquire() {
+		T object = idle.poll();
+
+		if (object == null) {
+			created.incrementAndGet();
+			return factory.get();
+		}
+
+		reused.incrementAndGet();
+		return object;
+	}
+
+	/**
+	 * Returns an object to the pool. The caller must not use it afterwards.
+	 *
+	 * @param object The object.
+	 */
+	public void release(T object) {
+		idle.offer(object);
+	}
+
+	/**
+	 * @return The number of objects created because none was idle.
+	 */
+	public long getCreated() {
+		return created.get();
+	}
+
+	/**
+	 * @return The number of acquisitions served by an idle object.
+	 */
+	public long getReused() {
+		return reused.get();
+	}
+
+	/**
+	 * @return The number of idle objects.
+	 */
+	public int getIdle() {
+		return idle.size();
+	}
+}
@@ -0,0 +1,311 @@
+package zk9500scanner;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * One stage of the {@link ScanPipeline}: a bounded input queue drained by a dedicated thread.
+ * <p>
+ * What happens when the queue is full is decided by the stage's {@link OverflowPolicy}. The stage counts what it accepted, processed and dropped, and records the
+ * time items spent in it, from being queued until handled, in a {@link Histogram}.
+ * </p>
+ * <p>
+ * Items travel in pooled queue slots, and the stage thread parks rather than waiting on the queue's condition, which would allocate a wait node every time the queue
+ * runs empty. Passing an item through a stage therefore does not allocate, unless a {@link OverflowPolicy#BLOCK} stage is full and the caller has to wait.
+ * </p>
+ *
+ * @param <T> The type of the items handled.
+ */
+public class PipelineStage<T> implements PipelineStageMXBean {
+	/**
+	 * What to do with an item offered to a full stage.
+	 */
+	public enum OverflowPolicy {
+		/** Wait for room, pushing back on the previous stage. */
+		BLOCK,
+		/** Discard the oldest queued item to make room. */
+		DROP_OLDEST,
+		/** Discard the offered item. */
+		DROP_NEWEST;
+
+		/**
+		 * Parses a policy name such as `drop-oldest`.
+		 *
+		 * @param name The name, case-insensitive, with `-` or `_`.
+		 * @return The policy.
+		 */
+		public static OverflowPolicy parse(String name) {
+			return valueOf(name.trim().toUpperCase().replace('-', '_'));
+		}
+	}
+
+	/**
+	 * Handles one item.
+	 *
+	 * @param <T> The type of the items handled.
+	 */
+	public interface Handler<T> {
+		void handle(T item) throws Exception;
+	}
+
+	/**
+	 * A queue slot, returned to the pool as soon as the stage thread has taken its item.
+	 */
+	private static class Entry<T> {
+		T item;
+		long queuedAt;
+	}
+
+	private final String name;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final ArrayBlockingQueue<Entry<T>> queue;
+	private final ObjectPool<Entry<T>> entries;
+	private final Thread worker;
+	private volatile boolean parked = false;
+
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final Histogram latency;
+
+	/** Receives every item discarded by the overflow policy, e.g. to recycle it. */
+	public Consumer<T> onDrop = null;
+
+	/**
+	 * Creates and starts a stage.
+	 *
+	 * @param name     The stage name, also used for its thread.
+	 * @param capacity The input queue capacity.
+	 * @param policy   What to do when the queue is full.
+	 * @param handler  Handles each item on the stage thread.
+	 */
+	public PipelineStage(String name, int capacity, OverflowPolicy policy, Handler<T> handler) {
+		this.name = name;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.entries = new ObjectPool<>(capacity + 2, Entry::new);
+		this.latency = new Histogram(name, "ns");
+
+		worker = new Thread(() -> run(handler), "pipeline-" + name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Creates a stage configured by the `pipeline.<name>.capacity` and `pipeline.<name>.overflow` system properties.
+	 *
+	 * @param name            The stage name.
+	 * @param defaultCapacity The capacity if not configured.
+	 * @param defaultPolicy   The policy if not configured.
+	 * @param handler         Handles each item on the stage thread.
+	 * @return The started stage.
+	 */
+	public static <T> PipelineStage<T> fromSystemProperties(String name, int defaultCapacity, OverflowPolicy defaultPolicy, Handler<T> handler) {
+		int capacity = Integer.parseInt(System.getProperty("pipeline." + name + ".capacity", String.valueOf(defaultCapacity)));
+		String policy = System.getProperty("pipeline." + name + ".overflow");
+
+		return new PipelineStage<>(name, capacity, policy != null ? OverflowPolicy.parse(policy) : defaultPolicy, handler);
+	}
+
+	/**
+	 * Queues an item, applying the overflow policy if the stage is full.
+	 *
+	 * @param item The item.
+	 * @return false if an item was dropped to honour the policy.
+	 * @throws InterruptedException If interrupted while waiting under {@link OverflowPolicy#BLOCK}.
+	 */
+	public boolean offer(T item) throws InterruptedException {
+		Entry<T> entry = entries.acquire();
+		entry.item = item;
+		entry.queuedAt = System.nanoTime();
+		accepted.incrementAndGet();
+
+		switch (policy) {
+		case BLOCK:
+			try {
+				queue.put(entry);
+			} catch (InterruptedException e) {
+				release(entry);
+				throw e;
+			}
+			wake();
+			return true;
+		case DROP_OLDEST:
+			boolean complete = true;
+			while (!queue.offer(entry)) {
+				Entry<T> oldest = queue.poll();
+				if (oldest != null) {
+					T dropped = oldest.item;
+					release(oldest);
+					drop(dropped);
+					complete = false;
+				}
+			}
+			wake();
+			return complete;
+		default:
+			if (queue.offer(entry)) {
+				wake();
+				return true;
+			}
+			release(entry);
+			drop(item);
+			return false;
+		}
+	}
+
+	private void wake() {
+		if (parked) {
+			LockSupport.unpark(worker);
+		}
+	}
+
+	private void release(Entry<T> entry) {
+		entry.item = null;
+		entries.release(entry);
+	}
+
+	private void drop(T item) {
+		dropped.incrementAndGet();
+
+		Consumer<T> consumer = onDrop;
+		if (consumer != null) {
+			consumer.accept(item);
+		}
+	}
+
+	private void run(Handler<T> handler) {
+		while (!Thread.currentThread().isInterrupted()) {
+			Entry<T> entry = queue.poll();
+
+			if (entry == null) {
+				// announced before the second look, so that an item queued in between either is seen or unparks the thread
+				parked = true;
+				entry = queue.poll();
+
+				if (entry == null) {
+					LockSupport.park(this);
+				}
+
+				parked = false;
+
+				if (entry == null) {
+					continue;
+				}
+			}
+
+			T item = entry.item;
+			long queuedAt = entry.queuedAt;
+			release(entry);
+
+			try {
+				handler.handle(item);
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				failed.incrementAndGet();
+				Main.log.severe("Pipeline stage " + name + " failed: " + e.getMessage());
+			}
+
+			processed.incrementAndGet();
+			latency.recordSince(queuedAt);
+		}
+	}
+
+	/**
+	 * Stops the stage thread. Queued items are discarded.
+	 */
+	public void close() {
+		worker.interrupt();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return The number of items waiting in the queue.
+	 */
+	@Override
+	public int getDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return true if no item is queued or being handled.
+	 */
+	public boolean isIdle() {
+		return accepted.get() - dropped.get() == processed.get();
+	}
+
+	/**
+	 * @return The number of items offered to the stage.
+	 */
+	@Override
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	/**
+	 * @return The number of items handled, including failed ones.
+	 */
+	@Override
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * @return The number of items discarded by the overflow policy.
+	 */
+	@Override
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return The number of items whose handler threw.
+	 */
+	@Override
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return The mean time from queueing to handled in nanoseconds, 0 before the first item.
+	 */
+	@Override
+	public long getAverageLatency() {
+		return Math.round(latency.getMean());
+	}
+
+	/**
+	 * @return The highest time from queueing to handled in nanoseconds.
+	 */
+	@Override
+	public long getMaxLatency() {
+		return latency.getMax();
+	}
+
+	/**
+	 * @return The distribution of the time from queueing to handled, in nanoseconds.
+	 */
+	public Histogram getLatency() {
+		return latency;
+	}
+}
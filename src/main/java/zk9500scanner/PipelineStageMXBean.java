@@ -0,0 +1,26 @@
+package zk9500scanner;
+
+/**
+ * JMX view of a {@link PipelineStage}, registered by {@link Metrics} as `zk9500scanner:type=PipelineStage,name=<name>`. Latencies are in nanoseconds.
+ */
+public interface PipelineStageMXBean {
+	String getName();
+
+	int getCapacity();
+
+	PipelineStage.OverflowPolicy getPolicy();
+
+	int getDepth();
+
+	long getAccepted();
+
+	long getProcessed();
+
+	long getDropped();
+
+	long getFailed();
+
+	long getAverageLatency();
+
+	long getMaxLatency();
+}
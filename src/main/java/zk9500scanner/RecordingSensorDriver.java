@@ -0,0 +1,159 @@
+package zk9500scanner;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * {@link SensorDriver} decorator that writes every successful acquisition of the wrapped driver to a {@link CaptureFile}, so real traffic can later be replayed by
+ * {@link SimulatedSensorDriver}.
+ * <p>
+ * The file is created at the first capture and stays open for the life of the driver, across SDK reinitializations, so a sensor that is reopened keeps adding to the
+ * same recording. Only writing a record is serialized; the sensors are still polled concurrently.
+ * </p>
+ */
+public class RecordingSensorDriver implements SensorDriver {
+	private final SensorDriver delegate;
+	private final Path path;
+	private final byte[] paramValue = new byte[4];
+	private final int[] paramSize = new int[1];
+	private final Object writeLock = new Object();
+	private CaptureFile.Writer writer = null; // Guarded by writeLock
+	private long lastCaptureNanos = 0; // Guarded by writeLock
+	private volatile int imgWidth = 0;
+	private volatile int imgHeight = 0;
+
+	public RecordingSensorDriver(SensorDriver delegate, Path path) {
+		this.delegate = delegate;
+		this.path = path;
+	}
+
+	@Override
+	public int init() {
+		return delegate.init();
+	}
+
+	/**
+	 * Terminates the wrapped driver. The recording is left open, since every record is flushed as it is written and the SDK may be initialized again.
+	 */
+	@Override
+	public int terminate() {
+		return delegate.terminate();
+	}
+
+	@Override
+	public int getDeviceCount() {
+		return delegate.getDeviceCount();
+	}
+
+	@Override
+	public long openDevice(int index) {
+		long handle = delegate.openDevice(index);
+
+		if (handle != 0) {
+			imgWidth = readParameter(handle, PARAM_IMAGE_WIDTH);
+			imgHeight = readParameter(handle, PARAM_IMAGE_HEIGHT);
+		}
+
+		return handle;
+	}
+
+	@Override
+	public int closeDevice(long deviceHandle) {
+		return delegate.closeDevice(deviceHandle);
+	}
+
+	@Override
+	public int getParameters(long deviceHandle, int code, byte[] paramValue, int[] size) {
+		return delegate.getParameters(deviceHandle, code, paramValue, size);
+	}
+
+	@Override
+	public int acquireFingerprint(long deviceHandle, byte[] imgBuffer, byte[] template, int[] templateLength) {
+		int ret = delegate.acquireFingerprint(deviceHandle, imgBuffer, template, templateLength);
+
+		if (ret == 0) {
+			int fakeStatus = readParameter(deviceHandle, PARAM_FAKE_STATUS);
+
+			synchronized (writeLock) {
+				try {
+					if (writer == null) {
+						writer = new CaptureFile.Writer(path, imgWidth, imgHeight);
+					}
+
+					long now = System.nanoTime();
+					int delay = lastCaptureNanos == 0 ? 0 : (int) ((now - lastCaptureNanos) / 1_000_000L);
+					lastCaptureNanos = now;
+
+					writer.append(delay, fakeStatus, template, templateLength[0], imgBuffer);
+				} catch (IOException e) {
+					Main.log.warning("Unable to record capture: " + e.getMessage());
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	@Override
+	public long dbInit() {
+		return delegate.dbInit();
+	}
+
+	@Override
+	public int dbFree(long dbHandle) {
+		return delegate.dbFree(dbHandle);
+	}
+
+	@Override
+	public int dbMerge(long dbHandle, byte[] temp1, byte[] temp2, byte[] temp3, byte[] regTemp, int[] regTempLength) {
+		return delegate.dbMerge(dbHandle, temp1, temp2, temp3, regTemp, regTempLength);
+	}
+
+	@Override
+	public int dbAdd(long dbHandle, int id, byte[] template) {
+		return delegate.dbAdd(dbHandle, id, template);
+	}
+
+	@Override
+	public int dbDel(long dbHandle, int id) {
+		return delegate.dbDel(dbHandle, id);
+	}
+
+	@Override
+	public int dbClear(long dbHandle) {
+		return delegate.dbClear(dbHandle);
+	}
+
+	@Override
+	public int dbCount(long dbHandle) {
+		return delegate.dbCount(dbHandle);
+	}
+
+	@Override
+	public int dbIdentify(long dbHandle, byte[] template, int[] id, int[] score) {
+		return delegate.dbIdentify(dbHandle, template, id, score);
+	}
+
+	@Override
+	public int dbMatch(long dbHandle, byte[] temp1, byte[] temp2) {
+		return delegate.dbMatch(dbHandle, temp1, temp2);
+	}
+
+	@Override
+	public String blobToBase64(byte[] blob, int length) {
+		return delegate.blobToBase64(blob, length);
+	}
+
+	@Override
+	public int base64ToBlob(String base64, byte[] blob, int length) {
+		return delegate.base64ToBlob(base64, blob, length);
+	}
+
+	private int readParameter(long deviceHandle, int code) {
+		synchronized (paramValue) {
+			paramSize[0] = 4;
+			delegate.getParameters(deviceHandle, code, paramValue, paramSize);
+			return (paramValue[0] & 0xFF) | ((paramValue[1] & 0xFF) << 8) | ((paramValue[2] & 0xFF) << 16) | ((paramValue[3] & 0xFF) << 24);
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package zk9500scanner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Runs fingerprint enrollments, one {@link RegistrationSession} per device, while the other devices keep identifying.
+ * <p>
+ * Sessions are keyed by device index; a session started without a device ({@link #ANY_DEVICE}) takes scans from every device that has no session of its own. Each
+ * scan derives a new immutable session from the current one, and the result is only applied if the current session is still the same, so a session cancelled,
+ * restarted or timed out meanwhile is never overwritten. A session without a scan for `registration.timeout` milliseconds (default 60000) is dropped, its device
+ * returns to identification and a `registration-error` event reports the timeout.
+ * </p>
+ * <p>
+ * Scans go through the {@link HoldCache} like identifications do: a finger left on the sensor counts as one sample, and the next sample needs a new touch.
+ * </p>
+ */
+public class RegistrationManager {
+	/** Key of a session that takes scans from any device. */
+	public static final int ANY_DEVICE = -1;
+
+	private final Library library;
+	private final HoldCache holds;
+	private final long timeout;
+	private final Map<Integer, RegistrationSession> sessions = new ConcurrentHashMap<>();
+	private final AtomicLong nextSession = new AtomicLong(1);
+	private final ScheduledExecutorService sweeper;
+
+	/** Receives the `registration-error` event of every session that timed out. */
+	public Consumer<Event> onTimeout = null;
+
+	/**
+	 * @param library The library to check duplicates against and register into.
+	 * @param holds   The cache recognizing a finger left on the sensor.
+	 * @param timeout How long a session may wait for a scan, in milliseconds.
+	 */
+	public RegistrationManager(Library library, HoldCache holds, long timeout) {
+		this.library = library;
+		this.holds = holds;
+		this.timeout = timeout;
+
+		sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "registration-timeout");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		long period = Math.max(100, timeout / 10);
+		sweeper.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates a manager configured by the `registration.timeout` system property.
+	 *
+	 * @param library The library to check duplicates against and register into.
+	 * @param holds   The cache recognizing a finger left on the sensor.
+	 * @return The manager.
+	 */
+	public static RegistrationManager fromSystemProperties(Library library, HoldCache holds) {
+		return new RegistrationManager(library, holds, Long.parseLong(System.getProperty("registration.timeout", "60000")));
+	}
+
+	/**
+	 * Starts a session, replacing any session of the same device.
+	 *
+	 * @param device    The device index, or {@link #ANY_DEVICE}.
+	 * @param id        The ID of the fingerprint to register.
+	 * @param requestId The `requestId` of the command, echoed in the session's events, or {@code null}.
+	 * @return The new session.
+	 */
+	public RegistrationSession start(int device, int id, Object requestId) {
+		RegistrationSession session = RegistrationSession.start(nextSession.getAndIncrement(), id, device, requestId);
+		sessions.put(device, session);
+		return session;
+	}
+
+	/**
+	 * Cancels the session of a device.
+	 *
+	 * @param device The device index, or {@link #ANY_DEVICE}.
+	 * @return The cancelled session, or {@code null} if there was none.
+	 */
+	public RegistrationSession cancel(int device) {
+		return sessions.remove(device);
+	}
+
+	/**
+	 * Cancels every session.
+	 */
+	public void cancelAll() {
+		sessions.clear();
+	}
+
+	/**
+	 * Returns the session that takes the scans of a device.
+	 *
+	 * @param device The device index.
+	 * @return The device's own session, or else the session for any device, or {@code null} if the device is identifying.
+	 */
+	public RegistrationSession get(int device) {
+		RegistrationSession session = sessions.get(device);
+		return session != null ? session : sessions.get(ANY_DEVICE);
+	}
+
+	/**
+	 * Advances a session with a scan. Runs the duplicate check on the first scan and registers the fingerprint once enough scans are accepted.
+	 *
+	 * @param session The session returned by {@link #get(int)} for the scan's device.
+	 * @param scan    The scan.
+	 * @return The `registration-ongoing`, `registration-success` or `registration-error` event, or {@code null} if the scan repeats a touch already taken or the
+	 *         session was replaced meanwhile.
+	 */
+	public Event process(RegistrationSession session, Scan scan) {
+		// a finger left on the sensor was already taken as a sample
+		if (holds.isRepeat(scan)) {
+			return null;
+		}
+
+		holds.add(scan, null);
+		long start = System.nanoTime();
+		byte[] template = Arrays.copyOf(scan.getTemplate(), Library.TEMPLATE_SIZE);
+
+		try {
+			byte[] previous = session.getPrevious();
+
+			if (previous != null && library.match(previous, template) <= 0) {
+				return transition(session, session.fault(template)) ? error(session, Library.ERR_NOT_MATCH) : null;
+			}
+
+			if (session.getStep() == 0 && isRegistered(template)) {
+				return transition(session, session.restart()) ? error(session, Library.ERR_DUPLICATE) : null;
+			}
+
+			RegistrationSession next = session.accept(template);
+
+			if (!transition(session, next)) {
+				return null;
+			}
+
+			if (!next.isComplete()) {
+				return toEvent(Event.REGISTRATION_ONGOING, next).put("step", next.getStep());
+			}
+
+			// the session is done whether or not the fingerprint can be saved
+			sessions.remove(next.getDevice(), next);
+			byte[] merged = library.registerTemplates(next.getId(), next.getTemplates());
+
+			Main.log.info("Fingerprint ID " + next.getId() + " registered");
+			return toEvent(Event.REGISTRATION_SUCCESS, next).template(merged);
+		} catch (Exception e) {
+			Main.log.severe("Fingerprint registration error: " + e.getLocalizedMessage());
+			sessions.remove(session.getDevice(), session);
+			return toEvent(Event.REGISTRATION_ERROR, session).put("message", e.getMessage());
+		} finally {
+			Metrics.VERIFY.recordSince(start);
+		}
+	}
+
+	/**
+	 * Replaces a session only if it is still current.
+	 */
+	private boolean transition(RegistrationSession current, RegistrationSession next) {
+		return sessions.replace(current.getDevice(), current, next);
+	}
+
+	private boolean isRegistered(byte[] template) {
+		try {
+			library.identify(template);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Builds a registration event for a session.
+	 *
+	 * @param name    The event name.
+	 * @param session The session.
+	 * @return The event with the fingerprint `id`, the `session` number and the `requestId` of the command that started it.
+	 */
+	public static Event toEvent(String name, RegistrationSession session) {
+		return new Event(name).id(session.getId()).put("session", session.getSession()).put(SocketServer.REQUEST_ID, session.getRequestId());
+	}
+
+	/**
+	 * Logs a registration error.
+	 *
+	 * @param session   The session.
+	 * @param errorCode The error code.
+	 * @return The `registration-error` event.
+	 */
+	private Event error(RegistrationSession session, int errorCode) {
+		Event event = toEvent(Event.REGISTRATION_ERROR, session);
+
+		switch (errorCode) {
+		case Library.ERR_EXCEED:
+			Main.log.warning("Fingerprint registration input exceeds the limit.");
+			break;
+		case Library.ERR_DUPLICATE:
+			event.put("message", "Fingerprint is already been registered.");
+			Main.log.warning("Duplicate fingerprint detected.");
+			break;
+		case Library.ERR_NOT_MATCH:
+			event.put("message", "Fingerprint does not match with the previous data.");
+			Main.log.warning("Fingerprint does not match expected data.");
+			break;
+		case Library.ERR_MERGE:
+			Main.log.warning("Fingerprint merge failed.");
+			break;
+		default:
+			Main.log.severe("Unknown fingerprint registration error: " + errorCode);
+			break;
+		}
+
+		return event;
+	}
+
+	/**
+	 * Drops the sessions that have waited too long for a scan.
+	 */
+	private void sweep() {
+		List<RegistrationSession> expired = new ArrayList<>();
+		long now = System.currentTimeMillis();
+
+		for (RegistrationSession session : sessions.values()) {
+			if (session.isExpired(now, timeout) && sessions.remove(session.getDevice(), session)) {
+				expired.add(session);
+			}
+		}
+
+		for (RegistrationSession session : expired) {
+			Main.log.warning("Registration of fingerprint ID " + session.getId() + " timed out");
+
+			Consumer<Event> consumer = onTimeout;
+			if (consumer != null) {
+				Event event = toEvent(Event.REGISTRATION_ERROR, session).put("message", "Registration timed out.");
+				consumer.accept(session.getDevice() != ANY_DEVICE ? event.put("device", session.getDevice()) : event);
+			}
+		}
+	}
+
+	/**
+	 * Summarizes the sessions in progress.
+	 *
+	 * @return One entry per session with its `session` number, `id`, `device` (absent for any device), `step` and `age` in milliseconds.
+	 */
+	public JSONArray toJSON() {
+		JSONArray json = new JSONArray();
+		long now = System.currentTimeMillis();
+
+		for (RegistrationSession session : sessions.values()) {
+			JSONObject entry = new JSONObject();
+			entry.put("session", session.getSession());
+			entry.put("id", session.getId());
+			if (session.getDevice() != ANY_DEVICE) {
+				entry.put("device", session.getDevice());
+			}
+			entry.put("step", session.getStep());
+			entry.put("age", now - session.getStartedAt());
+			json.put(entry);
+		}
+
+		return json;
+	}
+
+	/**
+	 * Stops the timeout sweeper.
+	 */
+	public void close() {
+		sweeper.shutdownNow();
+	}
+}
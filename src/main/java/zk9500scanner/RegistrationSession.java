@@ -0,0 +1,138 @@
+package zk9500scanner;
+
+import java.util.Arrays;
+
+/**
+ * The state of one fingerprint enrollment. Sessions are immutable: every step returns a new session, which {@link RegistrationManager} swaps in only if the session
+ * it was derived from is still current.
+ */
+public final class RegistrationSession {
+	private final long session;
+	private final int id;
+	private final int device;
+	private final Object requestId;
+	private final byte[][] templates;
+	private final byte[] faulty;
+	private final long startedAt;
+	private final long updatedAt;
+
+	private RegistrationSession(long session, int id, int device, Object requestId, byte[][] templates, byte[] faulty, long startedAt, long updatedAt) {
+		this.session = session;
+		this.id = id;
+		this.device = device;
+		this.requestId = requestId;
+		this.templates = templates;
+		this.faulty = faulty;
+		this.startedAt = startedAt;
+		this.updatedAt = updatedAt;
+	}
+
+	/**
+	 * Starts a session with no scan accepted yet.
+	 *
+	 * @param session   The session number.
+	 * @param id        The ID of the fingerprint being registered.
+	 * @param device    The device index, or {@link RegistrationManager#ANY_DEVICE}.
+	 * @param requestId The `requestId` of the `registration-start` command, or {@code null}.
+	 * @return The session.
+	 */
+	public static RegistrationSession start(long session, int id, int device, Object requestId) {
+		long now = System.currentTimeMillis();
+		return new RegistrationSession(session, id, device, requestId, new byte[0][], null, now, now);
+	}
+
+	/**
+	 * Adds an accepted scan.
+	 *
+	 * @param template The scan's template, not modified afterwards.
+	 * @return The next session.
+	 */
+	public RegistrationSession accept(byte[] template) {
+		byte[][] next = Arrays.copyOf(templates, templates.length + 1);
+		next[templates.length] = template;
+		return new RegistrationSession(session, id, device, requestId, next, null, startedAt, System.currentTimeMillis());
+	}
+
+	/**
+	 * Starts over after a scan that did not match the previous one. The next scan must match the rejected one.
+	 *
+	 * @param template The rejected template, not modified afterwards.
+	 * @return The next session.
+	 */
+	public RegistrationSession fault(byte[] template) {
+		return new RegistrationSession(session, id, device, requestId, new byte[0][], template, startedAt, System.currentTimeMillis());
+	}
+
+	/**
+	 * Starts over, forgetting every scan.
+	 *
+	 * @return The next session.
+	 */
+	public RegistrationSession restart() {
+		return new RegistrationSession(session, id, device, requestId, new byte[0][], null, startedAt, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return The template a new scan must match: the last rejected one, or else the last accepted one, or {@code null} for the first scan.
+	 */
+	public byte[] getPrevious() {
+		if (faulty != null) {
+			return faulty;
+		}
+		return templates.length > 0 ? templates[templates.length - 1] : null;
+	}
+
+	/**
+	 * @return The number of scans accepted.
+	 */
+	public int getStep() {
+		return templates.length;
+	}
+
+	/**
+	 * @return true once {@link Library#REG_TEMPLATE_COUNT} scans have been accepted.
+	 */
+	public boolean isComplete() {
+		return templates.length >= Library.REG_TEMPLATE_COUNT;
+	}
+
+	/**
+	 * @param now     The current time in epoch milliseconds.
+	 * @param timeout The longest time without a scan, in milliseconds.
+	 * @return true if the session had no activity for longer than the timeout.
+	 */
+	public boolean isExpired(long now, long timeout) {
+		return now - updatedAt > timeout;
+	}
+
+	/**
+	 * @return A copy of the accepted templates.
+	 */
+	public byte[][] getTemplates() {
+		return templates.clone();
+	}
+
+	public long getSession() {
+		return session;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public int getDevice() {
+		return device;
+	}
+
+	public Object getRequestId() {
+		return requestId;
+	}
+
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	public long getUpdatedAt() {
+		return updatedAt;
+	}
+}
@@ -0,0 +1,102 @@
+package zk9500scanner;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue for many producers and a single consumer.
+ * <p>
+ * Every slot carries a sequence number telling whether it is free for the producer claiming that position or holds an element for the consumer, so producers only
+ * contend on one compare-and-set and never block each other or the consumer. {@link #offer} fails instead of waiting when the buffer is full.
+ * </p>
+ *
+ * @param <T> The element type.
+ */
+public class RingBuffer<T> {
+	private final int mask;
+	private final AtomicReferenceArray<T> slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * @param capacity The minimum capacity; rounded up to a power of two.
+	 */
+	public RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+		mask = size - 1;
+		slots = new AtomicReferenceArray<>(size);
+		sequences = new AtomicLongArray(size);
+
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds an element unless the buffer is full. Safe to call from any thread.
+	 *
+	 * @param element The element, not {@code null}.
+	 * @return false if the buffer is full.
+	 */
+	public boolean offer(T element) {
+		while (true) {
+			long position = tail.get();
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots.set(index, element);
+					sequences.lazySet(index, position + 1);
+					return true;
+				}
+			} else if (difference < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Removes the oldest element. Must only be called from the consumer thread.
+	 *
+	 * @return The element, or {@code null} if the buffer is empty.
+	 */
+	public T poll() {
+		long position = head.get();
+		int index = (int) position & mask;
+
+		if (sequences.get(index) != position + 1) {
+			return null;
+		}
+
+		T element = slots.get(index);
+		slots.set(index, null);
+		sequences.lazySet(index, position + mask + 1);
+		head.lazySet(position + 1);
+		return element;
+	}
+
+	/**
+	 * @return The number of elements in the buffer, approximate while producers are active.
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	/**
+	 * @return true if the buffer holds no element.
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return The number of elements the buffer can hold.
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+}
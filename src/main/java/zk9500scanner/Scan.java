@@ -0,0 +1,171 @@
+package zk9500scanner;
+
+import java.util.Arrays;
+
+/**
+ * One capture handed from the acquisition thread to the {@link ScanPipeline}. The scan owns a copy of the template, so the sensor buffers can be reused for the next
+ * capture while it is being processed.
+ * <p>
+ * Scans taken by a {@link Scanner} come from its {@link ObjectPool} and go back to it through {@link #recycle()} once the pipeline is done with them, so their
+ * template must not be kept beyond that; copy it instead.
+ * </p>
+ */
+public class Scan {
+	/** Fake finger status of scans taken with fake finger detection off. */
+	public static final int FAKE_STATUS_UNCHECKED = -1;
+
+	/** Quality score of scans whose image was not assessed. */
+	public static final int QUALITY_UNCHECKED = -1;
+
+	private final byte[] template = new byte[Library.TEMPLATE_SIZE];
+	private ObjectPool<Scan> pool = null;
+	private int device;
+	private int fakeStatus;
+	private long capturedAt;
+	private long capturedMillis;
+	private int quality;
+	private int coverage;
+	private int contrast;
+	private int clarity;
+
+	Scan() {
+	}
+
+	/**
+	 * Copies a capture into a scan that is not pooled.
+	 *
+	 * @param device     The index of the capturing device.
+	 * @param template   The sensor's template buffer.
+	 * @param length     The template length reported by the sensor.
+	 * @param fakeStatus The fake finger status read right after the capture, or {@link #FAKE_STATUS_UNCHECKED}.
+	 * @param capturedAt {@link System#nanoTime()} at the start of the capturing poll.
+	 */
+	public Scan(int device, byte[] template, int length, int fakeStatus, long capturedAt) {
+		set(device, template, length, fakeStatus, capturedAt);
+	}
+
+	/**
+	 * Creates a pool of scans.
+	 *
+	 * @param capacity The number of idle scans kept.
+	 * @return The pool.
+	 */
+	public static ObjectPool<Scan> newPool(int capacity) {
+		return new ObjectPool<>(capacity, Scan::new);
+	}
+
+	/**
+	 * Copies a capture into a scan from a pool.
+	 *
+	 * @param pool       The pool, which {@link #recycle()} returns the scan to.
+	 * @param device     The index of the capturing device.
+	 * @param template   The sensor's template buffer.
+	 * @param length     The template length reported by the sensor.
+	 * @param fakeStatus The fake finger status read right after the capture, or {@link #FAKE_STATUS_UNCHECKED}.
+	 * @param capturedAt {@link System#nanoTime()} at the start of the capturing poll.
+	 * @return The scan.
+	 */
+	public static Scan obtain(ObjectPool<Scan> pool, int device, byte[] template, int length, int fakeStatus, long capturedAt) {
+		Scan scan = pool.acquire();
+		scan.pool = pool;
+		scan.set(device, template, length, fakeStatus, capturedAt);
+		return scan;
+	}
+
+	private void set(int device, byte[] template, int length, int fakeStatus, long capturedAt) {
+		int copied = Math.min(Math.min(length, template.length), Library.TEMPLATE_SIZE);
+
+		System.arraycopy(template, 0, this.template, 0, copied);
+		Arrays.fill(this.template, copied, Library.TEMPLATE_SIZE, (byte) 0);
+		this.device = device;
+		this.fakeStatus = fakeStatus;
+		this.capturedAt = capturedAt;
+		this.capturedMillis = System.currentTimeMillis();
+		this.quality = QUALITY_UNCHECKED;
+	}
+
+	/**
+	 * Records the assessment of the capture's image.
+	 *
+	 * @param assessment The {@link ImageQuality} that has just assessed the image.
+	 */
+	void setQuality(ImageQuality assessment) {
+		quality = assessment.getScore();
+		coverage = assessment.getCoverage();
+		contrast = assessment.getContrast();
+		clarity = assessment.getClarity();
+	}
+
+	/**
+	 * Returns the scan to its pool. Does nothing for scans that are not pooled or were already recycled.
+	 */
+	public void recycle() {
+		ObjectPool<Scan> owner = pool;
+
+		if (owner != null) {
+			pool = null;
+			owner.release(this);
+		}
+	}
+
+	/**
+	 * @return The index of the capturing device.
+	 */
+	public int getDevice() {
+		return device;
+	}
+
+	/**
+	 * @return The template, owned by this scan until it is recycled.
+	 */
+	public byte[] getTemplate() {
+		return template;
+	}
+
+	/**
+	 * @return The fake finger status, or {@link #FAKE_STATUS_UNCHECKED}.
+	 */
+	public int getFakeStatus() {
+		return fakeStatus;
+	}
+
+	/**
+	 * Tells whether the sensor flagged the capture as a fake finger. Unchecked scans are never fake.
+	 *
+	 * @return true if the capture was not a live finger.
+	 */
+	public boolean isFake() {
+		return fakeStatus != FAKE_STATUS_UNCHECKED && (fakeStatus & 31) != 31;
+	}
+
+	/**
+	 * @return The image quality score from 0 to 100, or {@link #QUALITY_UNCHECKED}.
+	 */
+	public int getQuality() {
+		return quality;
+	}
+
+	/**
+	 * Builds the `capture-quality` event telling the user to present the finger again.
+	 *
+	 * @return The event with the quality `score` and its `coverage`, `contrast` and `clarity`.
+	 */
+	public Event toQualityEvent() {
+		return new Event(Event.CAPTURE_QUALITY).score(quality).put("coverage", coverage).put("contrast", contrast).put("clarity", clarity)
+				.put("message", "Fingerprint image quality is too low, please present the finger again.").put("device", device);
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} at the start of the capturing poll.
+	 */
+	public long getCapturedAt() {
+		return capturedAt;
+	}
+
+	/**
+	 * @return The wall-clock capture time in epoch milliseconds.
+	 */
+	public long getCapturedMillis() {
+		return capturedMillis;
+	}
+}
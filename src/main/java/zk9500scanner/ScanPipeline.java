@@ -0,0 +1,216 @@
+package zk9500scanner;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+import zk9500scanner.PipelineStage.OverflowPolicy;
+
+/**
+ * Carries scans from the acquisition threads to clients through separate stages, so that identification and slow clients never hold up the next finger read:
+ *
+ * <pre>
+ * capture (Scanner threads) -&gt; detect -&gt; process -&gt; publish
+ * </pre>
+ * <p>
+ * `detect` drops fake fingers and answers captures whose image quality is below `quality.min` with a `capture-quality` event, once per touch: further low-quality
+ * captures of the same device less than `hold.ttl` milliseconds (default 1000) after the previous one are dropped silently. `process` identifies or registers
+ * the scan and turns it into an {@link Event}, and `publish` sends the event to clients. Each stage has its own bounded queue, configured with
+ * `pipeline.<stage>.capacity` and `pipeline.<stage>.overflow` (`block`, `drop-oldest` or `drop-newest`). By default the capture thread never waits: a full
+ * `detect` queue drops its oldest scan, while the later stages push back on the stage before them.
+ * </p>
+ * <p>
+ * Every scan submitted is {@link Scan#recycle() recycled} once the pipeline is done with it: when dropped, when it produces no event, or after its event is published.
+ * Scans, queue slots and published outcomes are all pooled, so a capture that produces no event, such as a finger left on the sensor, passes through the pipeline
+ * without allocating.
+ * </p>
+ */
+public class ScanPipeline {
+	/**
+	 * Turns a live scan into the event for clients.
+	 */
+	public interface Processor {
+		/**
+		 * @param scan The scan.
+		 * @return The event to publish, or {@code null} to publish nothing.
+		 * @throws Exception If the scan cannot be processed.
+		 */
+		Event process(Scan scan) throws Exception;
+	}
+
+	/**
+	 * An event waiting to be published with the scan it came from, pooled like the scans.
+	 */
+	private static class Outcome {
+		Event event;
+		Scan scan;
+	}
+
+	private final PipelineStage<Scan> detect;
+	private final PipelineStage<Scan> process;
+	private final PipelineStage<Outcome> publish;
+	private final ObjectPool<Outcome> outcomes = new ObjectPool<>(64, Outcome::new); // As many as the default `publish` queue holds
+	private final int minQuality = Integer.getInteger("quality.min", 0); // Lowest image quality score identified
+	private final long qualityTtl = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(System.getProperty("hold.ttl", "1000"))); // Gap ending a low-quality touch
+	private long[] lowQualityAt = new long[0]; // Capture time of each device's last low-quality scan, 0 once it scanned well; used by `detect` only
+
+	/**
+	 * Creates and starts the pipeline.
+	 *
+	 * @param processor  Identifies or registers scans.
+	 * @param publisher  Sends events to clients.
+	 * @param schedulers Returns the scheduler of a device, which receives the scan-to-event latency of its published scans.
+	 */
+	public ScanPipeline(Processor processor, Consumer<Event> publisher, IntFunction<AcquisitionScheduler> schedulers) {
+		publish = PipelineStage.fromSystemProperties("publish", 64, OverflowPolicy.BLOCK, outcome -> {
+			try {
+				publisher.accept(outcome.event);
+
+				if (outcome.scan != null) {
+					AcquisitionScheduler scheduler = schedulers.apply(outcome.scan.getDevice());
+					if (scheduler != null) {
+						scheduler.recordLatency(System.nanoTime() - outcome.scan.getCapturedAt());
+					}
+				}
+			} finally {
+				recycle(outcome);
+			}
+		});
+		publish.onDrop = this::recycle;
+
+		process = PipelineStage.fromSystemProperties("process", 8, OverflowPolicy.BLOCK, scan -> {
+			Event event = null;
+
+			try {
+				event = processor.process(scan);
+			} finally {
+				if (event == null) {
+					scan.recycle();
+				}
+			}
+
+			if (event != null) {
+				publish.offer(outcome(event, scan));
+			}
+		});
+		process.onDrop = Scan::recycle;
+
+		detect = PipelineStage.fromSystemProperties("detect", 8, OverflowPolicy.DROP_OLDEST, scan -> {
+			if (scan.isFake()) {
+				Main.log.warning("Fake finger detected!");
+				scan.recycle();
+				return;
+			}
+
+			if (scan.getQuality() != Scan.QUALITY_UNCHECKED && scan.getQuality() < minQuality) {
+				// a finger left on the sensor is polled over and over; the user is told once
+				if (isLowQualityRepeat(scan)) {
+					scan.recycle();
+					return;
+				}
+
+				Main.log.warning("Fingerprint image quality " + scan.getQuality() + " is below " + minQuality + " on device " + scan.getDevice());
+				publish.offer(outcome(scan.toQualityEvent(), scan));
+				return;
+			}
+
+			if (scan.getDevice() < lowQualityAt.length) {
+				lowQualityAt[scan.getDevice()] = 0;
+			}
+
+			process.offer(scan);
+		});
+		detect.onDrop = Scan::recycle;
+	}
+
+	/**
+	 * Records a low-quality scan of the `detect` stage.
+	 *
+	 * @return true if it follows another low-quality scan of its device closely enough to be the same touch.
+	 */
+	private boolean isLowQualityRepeat(Scan scan) {
+		int device = scan.getDevice();
+
+		if (device >= lowQualityAt.length) {
+			lowQualityAt = Arrays.copyOf(lowQualityAt, device + 1);
+		}
+
+		long previous = lowQualityAt[device];
+		lowQualityAt[device] = scan.getCapturedAt();
+		return previous != 0 && scan.getCapturedAt() - previous <= qualityTtl;
+	}
+
+	private Outcome outcome(Event event, Scan scan) {
+		Outcome outcome = outcomes.acquire();
+		outcome.event = event;
+		outcome.scan = scan;
+		return outcome;
+	}
+
+	private void recycle(Outcome outcome) {
+		if (outcome.scan != null) {
+			outcome.scan.recycle();
+		}
+
+		outcome.event = null;
+		outcome.scan = null;
+		outcomes.release(outcome);
+	}
+
+	/**
+	 * Hands a capture to the pipeline. Called by the acquisition threads.
+	 *
+	 * @param scan The capture.
+	 */
+	public void submit(Scan scan) {
+		try {
+			if (!detect.offer(scan)) {
+				Main.log.warning("Scan pipeline is full, dropped a scan");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queues an event that does not come from a scan for publishing, after the events already queued.
+	 *
+	 * @param event The event.
+	 */
+	public void publish(Event event) {
+		try {
+			publish.offer(outcome(event, null));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Tells whether live scans are waiting for or undergoing identification, so that background work can step aside.
+	 *
+	 * @return true if the `detect` and `process` stages are idle.
+	 */
+	public boolean isIdle() {
+		return detect.isIdle() && process.isIdle();
+	}
+
+	/**
+	 * Returns the stages in order, for monitoring their depth and latency.
+	 *
+	 * @return The stages.
+	 */
+	public List<PipelineStage<?>> getStages() {
+		return Arrays.<PipelineStage<?>>asList(detect, process, publish);
+	}
+
+	/**
+	 * Stops every stage.
+	 */
+	public void close() {
+		detect.close();
+		process.close();
+		publish.close();
+	}
+}
@@ -4,63 +4,142 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 import com.zkteco.biometric.FingerprintSensorErrorCode;
-import com.zkteco.biometric.FingerprintSensorEx;
 
 /**
- * Handles fingerprint scanning operations using the ZKTeco SDK. This class manages device initialization, fingerprint acquisition, and fake finger detection.
+ * Handles fingerprint scanning operations through a {@link SensorDriver}. This class manages device initialization, fingerprint acquisition, and fake finger detection.
+ * <p>
+ * A scanner drives one device, identified by its index in the SDK's device enumeration, on its own acquisition thread. The SDK itself is initialized and terminated by
+ * the {@link DeviceManager} shared by all scanners.
+ * </p>
+ * <p>
+ * The acquisition task ends by itself when the sensor is lost: when a poll fails with an error saying the device is gone or its handle is no longer valid, or when
+ * `device.errors` polls in a row (default 10) fail with any other error. It then closes the device and notifies {@link #onLost}; the scanner can be opened again with
+ * {@link #init()} and {@link #startScanning()}.
+ * </p>
  */
 public class Scanner {
 	public static final int TEMPLATE_SIZE = 2048;
 
-	private long deviceHandle = 0;
-	private int initValue;
+	private final SensorDriver driver;
+	private final int deviceIndex;
+	private final AtomicLong deviceHandle = new AtomicLong();
 	private int imgWidth = 0;
 	private int imgHeight = 0;
 	private int nFakeFunOn = 1;
 	private int[] fingerprintTemplateLength = new int[1];
 	private byte[] fingerprintTemplate = new byte[TEMPLATE_SIZE];
 	private byte[] imgBuffer = null;
-	private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+	private ImageQuality quality = null;
+	private final boolean assessQuality = Integer.getInteger("quality.min", 0) > 0; // Scored only when the pipeline's quality gate is on
+	private int imageSequence = 0;
+	private final byte[] paramValue = new byte[4];
+	private final int[] fakeStatusSize = new int[1];
+	private final ObjectPool<Scan> scans = Scan.newPool(Integer.getInteger("scan.pool", 32));
+	private final int maxErrors = Integer.getInteger("device.errors", 10);
+	private final AcquisitionScheduler scheduler;
+	private final ExecutorService executorService;
 
-	public Consumer<byte[]> onScanEvent = null;
+	/**
+	 * Receives every capture, with its own copy of the template taken from the scanner's pool; the receiver {@link Scan#recycle() recycles} it when done. Called on the
+	 * acquisition thread, so it should hand the scan off rather than process it.
+	 */
+	public Consumer<Scan> onScanEvent = null;
+
+	/** Receives the scanner and the SDK error code when its sensor is lost, on the acquisition thread, after the device has been closed. */
+	public LostListener onLost = null;
+
+	/**
+	 * Receives lost sensors.
+	 */
+	@FunctionalInterface
+	public interface LostListener {
+		/**
+		 * @param scanner The scanner whose sensor was lost.
+		 * @param code    The error code of the last poll.
+		 */
+		void accept(Scanner scanner, int code);
+	}
+
+	/** Receives the image of every capture on the acquisition thread; the image must be copied before returning, since the buffer is reused. */
+	public ImageListener onImage = null;
+
+	/**
+	 * Receives capture images.
+	 */
+	@FunctionalInterface
+	public interface ImageListener {
+		/**
+		 * @param device   The device index.
+		 * @param sequence The sequence number of the capture on its device.
+		 * @param image    The grayscale image, one byte per pixel, row by row.
+		 * @param width    The image width in pixels.
+		 * @param height   The image height in pixels.
+		 */
+		void accept(int device, int sequence, byte[] image, int width, int height);
+	}
 
 	/**
-	 * Checks if the scanner device is open and available.
+	 * Creates a scanner for the first device, polling it on the schedule configured by the system properties.
 	 *
-	 * @return true if the scanner is open and connected, false otherwise.
+	 * @param driver The sensor driver.
 	 */
-	public boolean isOpen() {
-		int devices = FingerprintSensorEx.GetDeviceCount();
-		boolean status = deviceHandle != 0 && devices > 0;
+	public Scanner(SensorDriver driver) {
+		this(driver, 0, AcquisitionScheduler.fromSystemProperties());
+	}
 
-		if (!status) {
-			releaseScanner();
-		}
+	/**
+	 * Creates a scanner that talks to one sensor through the given driver.
+	 *
+	 * @param driver      The sensor driver.
+	 * @param deviceIndex The index of the device, from 0 to {@link SensorDriver#getDeviceCount()} - 1.
+	 * @param scheduler   Paces the acquisition loop.
+	 */
+	public Scanner(SensorDriver driver, int deviceIndex, AcquisitionScheduler scheduler) {
+		this.driver = driver;
+		this.deviceIndex = deviceIndex;
+		this.scheduler = scheduler;
+		this.executorService = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "scanner-" + deviceIndex));
+	}
 
-		return status;
+	/**
+	 * Checks if the scanner device is open. A lost sensor is noticed by the acquisition task, so this does not call the SDK.
+	 *
+	 * @return true if the device is open, false if it was never opened, failed to open or was lost.
+	 */
+	public boolean isOpen() {
+		return deviceHandle.get() != 0;
+	}
+
+	/**
+	 * Tells whether an error code of {@link SensorDriver#acquireFingerprint} means that the sensor is gone, rather than that no finger was read.
+	 *
+	 * @param code The error code.
+	 * @return true if the device was unplugged, closed or never initialized.
+	 */
+	static boolean isDeviceGone(int code) {
+		return code == FingerprintSensorErrorCode.ZKFP_ERR_NO_DEVICE || code == FingerprintSensorErrorCode.ZKFP_ERR_INVALID_HANDLE
+				|| code == FingerprintSensorErrorCode.ZKFP_ERR_NOT_OPENED || code == FingerprintSensorErrorCode.ZKFP_ERR_NOT_INIT
+				|| code == FingerprintSensorErrorCode.ZKFP_ERR_OPEN;
 	}
 
 	/**
-	 * Initializes the fingerprint scanner. This sets up necessary parameters and opens the device.
+	 * Initializes the fingerprint scanner. This opens the device and sets up necessary parameters. The SDK must already be initialized.
 	 */
 	public void init() {
 		try {
-			initValue = FingerprintSensorEx.Init();
-
-			if (initValue != FingerprintSensorErrorCode.ZKFP_ERR_OK) {
-				throw new IllegalStateException("Unable to initialize scanner resources.");
-			}
-
-			int deviceCount = FingerprintSensorEx.GetDeviceCount();
-			if (deviceCount < 1) {
-				throw new IllegalStateException("No device(s) connected");
+			int deviceCount = driver.getDeviceCount();
+			if (deviceCount <= deviceIndex) {
+				throw new IllegalStateException("Device " + deviceIndex + " is not connected");
 			}
 
-			deviceHandle = FingerprintSensorEx.OpenDevice(0);
-			if (deviceHandle == 0) {
+			long handle = driver.openDevice(deviceIndex);
+			deviceHandle.set(handle);
+			if (handle == 0) {
 				throw new IOException("Failed to open fingerprint device");
 			}
 
@@ -69,48 +148,70 @@ public class Scanner {
 			size[0] = 4;
 
 			// Get image width and height
-			FingerprintSensorEx.GetParameters(deviceHandle, 1, paramValue, size);
+			driver.getParameters(handle, SensorDriver.PARAM_IMAGE_WIDTH, paramValue, size);
 			imgWidth = byteArrayToInt(paramValue);
-			FingerprintSensorEx.GetParameters(deviceHandle, 2, paramValue, size);
+			driver.getParameters(handle, SensorDriver.PARAM_IMAGE_HEIGHT, paramValue, size);
 			imgHeight = byteArrayToInt(paramValue);
 
-			imgBuffer = new byte[imgWidth * imgHeight];
-			Main.log.info("Scanner initialized successfully.");
+			// a reopened sensor keeps its buffers
+			if (imgBuffer == null || imgBuffer.length != imgWidth * imgHeight) {
+				imgBuffer = new byte[imgWidth * imgHeight];
+				quality = new ImageQuality(imgWidth, imgHeight);
+			}
+			Main.log.info("Scanner " + deviceIndex + " initialized successfully.");
 		} catch (Exception e) {
 			releaseScanner();
-			Main.log.severe("Scanner initialization failed: " + e.getMessage());
+			Main.log.severe("Scanner " + deviceIndex + " initialization failed: " + e.getMessage());
 		}
 	}
 
 	/**
-	 * Starts fingerprint scanning in a separate thread. Captured fingerprints are logged in Base64 format.
+	 * Starts fingerprint scanning in a separate thread. The sensor is polled on the schedule of {@link #getScheduler()} until the scanner is stopped or the sensor is
+	 * lost.
 	 */
 	public void startScanning() {
 		executorService.submit(() -> {
+			int errors = 0;
+
 			while (!Thread.currentThread().isInterrupted()) {
 				fingerprintTemplateLength[0] = TEMPLATE_SIZE;
 
-				int ret = FingerprintSensorEx.AcquireFingerprint(deviceHandle, imgBuffer, fingerprintTemplate,
+				long start = System.nanoTime();
+				int ret = driver.acquireFingerprint(deviceHandle.get(), imgBuffer, fingerprintTemplate,
 						fingerprintTemplateLength);
-				if (ret == 0) {
-					if (nFakeFunOn == 1) {
-						byte[] paramValue = new byte[4];
-						int[] size = new int[1];
-						size[0] = 4;
-						FingerprintSensorEx.GetParameters(deviceHandle, 2004, paramValue, size);
-						int nFakeStatus = byteArrayToInt(paramValue);
-						if ((nFakeStatus & 31) != 31) {
-							Main.log.warning("Fake finger detected!");
-							continue; // Skip processing this scan
-						}
-					}
+				Metrics.ACQUIRE.recordSince(start);
+				boolean captured = ret == 0;
 
-					// String strBase64 = FingerprintSensorEx.BlobToBase64(fingerprintTemplate,
+				// no finger on the sensor is the usual outcome of a poll
+				if (captured || ret == FingerprintSensorErrorCode.ZKFP_ERR_CAPTURE) {
+					errors = 0;
+				} else if (isDeviceGone(ret) || ++errors >= maxErrors) {
+					lose(ret);
+					return;
+				}
+
+				if (captured) {
+					// the fake finger status describes the last capture, so it is read before the next poll
+					int fakeStatus = nFakeFunOn == 1 ? readFakeStatus() : Scan.FAKE_STATUS_UNCHECKED;
+
+					// String strBase64 = driver.blobToBase64(fingerprintTemplate,
 					// fingerprintTemplateLength[0]);
 					// Main.log.info("Fingerprint captured: " + strBase64);
 
 					if (onScanEvent != null) {
-						onScanEvent.accept(fingerprintTemplate);
+						Scan scan = Scan.obtain(scans, deviceIndex, fingerprintTemplate, fingerprintTemplateLength[0], fakeStatus, start);
+
+						// the image is only kept until the next poll, so it is assessed here
+						if (assessQuality) {
+							quality.assess(imgBuffer);
+							scan.setQuality(quality);
+						}
+						onScanEvent.accept(scan);
+					}
+
+					imageSequence++;
+					if (onImage != null) {
+						onImage.accept(deviceIndex, imageSequence, imgBuffer, imgWidth, imgHeight);
 					}
 
 					Arrays.fill(imgBuffer, (byte) 0);
@@ -118,7 +219,7 @@ public class Scanner {
 				}
 
 				try {
-					Thread.sleep(500);
+					scheduler.await(captured);
 				} catch (InterruptedException e) {
 					Thread.currentThread().interrupt();
 				}
@@ -127,29 +228,75 @@ public class Scanner {
 	}
 
 	/**
-	 * Stops the scanning process and shuts down the executor service.
+	 * Closes a sensor that stopped answering and reports it. Called on the acquisition thread, which then ends.
 	 */
-	public void stopScanning() {
-		executorService.shutdownNow();
+	private void lose(int code) {
+		Main.log.warning("Scanner " + deviceIndex + " lost (error " + code + ")");
+		releaseScanner();
+
+		LostListener listener = onLost;
+		if (listener != null) {
+			listener.accept(this, code);
+		}
 	}
 
 	/**
-	 * Releases scanner resources and closes the device connection.
+	 * Reads the fake finger status of the last capture.
+	 *
+	 * @return The status bits; all of the low five are set for a live finger.
 	 */
-	public void releaseScanner() {
+	private int readFakeStatus() {
+		long start = System.nanoTime();
+		fakeStatusSize[0] = 4;
+		driver.getParameters(deviceHandle.get(), SensorDriver.PARAM_FAKE_STATUS, paramValue, fakeStatusSize);
+		Metrics.FAKE_CHECK.recordSince(start);
+		return byteArrayToInt(paramValue);
+	}
+
+	/**
+	 * Returns the scheduler pacing the acquisition loop, which also collects the observed scan-to-event latency.
+	 *
+	 * @return The scheduler.
+	 */
+	public AcquisitionScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Stops the scanning process and shuts down the executor service, waiting for the poll in progress so that the device can be closed safely.
+	 */
+	public void stopScanning() {
+		executorService.shutdownNow();
+
 		try {
-			Thread.sleep(1000);
+			if (!executorService.awaitTermination(1, TimeUnit.SECONDS)) {
+				Main.log.warning("Scanner " + deviceIndex + " did not stop in time");
+			}
 		} catch (InterruptedException e) {
 			Thread.currentThread().interrupt();
 		}
+	}
 
-		if (deviceHandle > 0) {
-			FingerprintSensorEx.CloseDevice(deviceHandle);
-			deviceHandle = 0;
+	/**
+	 * Releases scanner resources and closes the device connection. The SDK stays initialized for the other devices. The acquisition task must have stopped, see
+	 * {@link #stopScanning()}. The handle is taken before it is closed, so a device released from two threads at once is closed only once.
+	 */
+	public void releaseScanner() {
+		long handle = deviceHandle.getAndSet(0);
+		if (handle > 0) {
+			driver.closeDevice(handle);
 		}
 
-		FingerprintSensorEx.Terminate();
-		Main.log.info("Scanner resources released.");
+		Main.log.info("Scanner " + deviceIndex + " resources released.");
+	}
+
+	/**
+	 * Returns the index of the device driven by this scanner, reported to clients as the `device` of its events.
+	 *
+	 * @return The device index.
+	 */
+	public int getDeviceIndex() {
+		return deviceIndex;
 	}
 
 	/**
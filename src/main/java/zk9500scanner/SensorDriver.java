@@ -0,0 +1,100 @@
+package zk9500scanner;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Abstraction over the ZKTeco fingerprint SDK. Every sensor and algorithm library call made by the application goes through this interface so that the pipeline can run
+ * against the physical ZK9500 ({@link ZKSensorDriver}) or a pure-Java replay of a recorded capture file ({@link SimulatedSensorDriver}).
+ * <p>
+ * Method names, arguments and return codes mirror {@code com.zkteco.biometric.FingerprintSensorEx}: {@code 0} means success and negative values are
+ * {@code FingerprintSensorErrorCode} constants.
+ * </p>
+ */
+public interface SensorDriver {
+	/** Parameter code for the image width. */
+	int PARAM_IMAGE_WIDTH = 1;
+
+	/** Parameter code for the image height. */
+	int PARAM_IMAGE_HEIGHT = 2;
+
+	/** Parameter code for the fake finger detection status of the last capture. */
+	int PARAM_FAKE_STATUS = 2004;
+
+	int init();
+
+	int terminate();
+
+	int getDeviceCount();
+
+	long openDevice(int index);
+
+	int closeDevice(long deviceHandle);
+
+	int getParameters(long deviceHandle, int code, byte[] paramValue, int[] size);
+
+	int acquireFingerprint(long deviceHandle, byte[] imgBuffer, byte[] template, int[] templateLength);
+
+	long dbInit();
+
+	int dbFree(long dbHandle);
+
+	int dbMerge(long dbHandle, byte[] temp1, byte[] temp2, byte[] temp3, byte[] regTemp, int[] regTempLength);
+
+	int dbAdd(long dbHandle, int id, byte[] template);
+
+	int dbDel(long dbHandle, int id);
+
+	int dbClear(long dbHandle);
+
+	int dbCount(long dbHandle);
+
+	int dbIdentify(long dbHandle, byte[] template, int[] id, int[] score);
+
+	int dbMatch(long dbHandle, byte[] temp1, byte[] temp2);
+
+	String blobToBase64(byte[] blob, int length);
+
+	int base64ToBlob(String base64, byte[] blob, int length);
+
+	/**
+	 * Creates the driver selected by the {@code driver} system property. {@code zk} (the default) uses the native SDK, {@code sim} replays the capture file given by
+	 * {@code capture} at the speed multiplier given by {@code rate}, and unplugs its sensors periodically when {@code sim.unplug} is set. When {@code record} is set,
+	 * successful acquisitions are additionally written to that file.
+	 *
+	 * @return The configured driver.
+	 * @throws IOException If the capture file cannot be read or the record file cannot be created.
+	 */
+	static SensorDriver fromSystemProperties() throws IOException {
+		String name = System.getProperty("driver", "zk");
+		SensorDriver driver;
+
+		if (name.equals("sim")) {
+			String capture = System.getProperty("capture");
+			double rate = Double.parseDouble(System.getProperty("rate", "1"));
+			int devices = Integer.parseInt(System.getProperty("sim.devices", "1"));
+
+			SimulatedSensorDriver simulated = new SimulatedSensorDriver(capture != null ? CaptureFile.read(Paths.get(capture)) : null, rate, devices);
+			String unplug = System.getProperty("sim.unplug");
+
+			// `period:duration` in milliseconds
+			if (unplug != null) {
+				String[] times = unplug.split(":");
+				simulated.simulateUnplug(Long.parseLong(times[0].trim()), Long.parseLong(times[1].trim()));
+			}
+
+			driver = simulated;
+		} else if (name.equals("zk")) {
+			driver = new ZKSensorDriver();
+		} else {
+			throw new IllegalArgumentException("Unknown sensor driver: " + name);
+		}
+
+		String record = System.getProperty("record");
+		if (record != null) {
+			driver = new RecordingSensorDriver(driver, Paths.get(record));
+		}
+
+		return driver;
+	}
+}
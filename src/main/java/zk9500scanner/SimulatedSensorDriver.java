@@ -0,0 +1,409 @@
+package zk9500scanner;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zkteco.biometric.FingerprintSensorErrorCode;
+
+/**
+ * Pure-Java {@link SensorDriver} that simulates one or more ZK9500 sensors and the matching algorithm library.
+ * <p>
+ * Each opened device replays the records of a {@link CaptureFile} in a loop, honouring the recorded inter-arrival times divided by {@code rate} (a rate of 10 replays
+ * traffic ten times faster than it was recorded). Between records the device reports that no finger is present.
+ * </p>
+ * <p>
+ * The simulated algorithm library scores two templates by the percentage of equal bytes, so identification cost grows linearly with the population like the native
+ * library does. Scores below {@link #MATCH_THRESHOLD} are reported as no match.
+ * </p>
+ * <p>
+ * With {@link #simulateUnplug(long, long)} the sensors are unplugged for a while at a fixed period: they disappear from {@link #getDeviceCount()}, polls fail with
+ * {@code ZKFP_ERR_NO_DEVICE}, and handles opened before the unplug stay invalid once the sensors are back, like a USB sensor pulled out and plugged in again.
+ * </p>
+ */
+public class SimulatedSensorDriver implements SensorDriver {
+	/** Minimum score for {@link #dbMatch} and {@link #dbIdentify} to report a match. */
+	public static final int MATCH_THRESHOLD = 70;
+
+	private static final int DEFAULT_IMAGE_WIDTH = 300;
+	private static final int DEFAULT_IMAGE_HEIGHT = 400;
+
+	private final CaptureFile capture;
+	private final double rate;
+	private final int deviceCount;
+	private final AtomicLong nextHandle = new AtomicLong(1);
+	private final Map<Long, Device> devices = new ConcurrentHashMap<>();
+	private final Map<Long, Database> databases = new ConcurrentHashMap<>();
+	private volatile boolean initialized = false;
+	private final long startNanos = System.nanoTime();
+	private volatile long unplugPeriod = 0;
+	private volatile long unplugDuration = 0;
+
+	/**
+	 * Creates a simulated driver.
+	 *
+	 * @param capture     The recorded captures to replay, or {@code null} for sensors that never see a finger.
+	 * @param rate        Replay speed multiplier applied to the recorded inter-arrival times.
+	 * @param deviceCount The number of sensors reported by {@link #getDeviceCount()}.
+	 */
+	public SimulatedSensorDriver(CaptureFile capture, double rate, int deviceCount) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("Replay rate must be positive");
+		}
+
+		this.capture = capture;
+		this.rate = rate;
+		this.deviceCount = deviceCount;
+	}
+
+	/**
+	 * Unplugs every sensor for {@code durationMillis} at the end of every {@code periodMillis}, to exercise device recovery.
+	 *
+	 * @param periodMillis   The time from one unplug to the next, in milliseconds.
+	 * @param durationMillis How long the sensors stay unplugged, in milliseconds.
+	 */
+	public void simulateUnplug(long periodMillis, long durationMillis) {
+		if (durationMillis <= 0 || durationMillis >= periodMillis) {
+			throw new IllegalArgumentException("Unplug duration must be positive and shorter than its period");
+		}
+
+		unplugDuration = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		unplugPeriod = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+	}
+
+	/**
+	 * @return The number of unplug periods started so far; a handle opened in an earlier period is no longer valid.
+	 */
+	private long plugCycle(long now) {
+		return unplugPeriod > 0 ? (now - startNanos) / unplugPeriod : 0;
+	}
+
+	private boolean isUnplugged(long now) {
+		return unplugPeriod > 0 && (now - startNanos) % unplugPeriod >= unplugPeriod - unplugDuration;
+	}
+
+	/**
+	 * Replay state of one opened device.
+	 */
+	private class Device {
+		private final long cycle = plugCycle(System.nanoTime());
+		private int cursor = 0;
+		private int fakeStatus = 31;
+		private long dueNanos;
+
+		Device() {
+			this.dueNanos = System.nanoTime() + delayOf(0);
+		}
+
+		synchronized int acquire(byte[] imgBuffer, byte[] template, int[] templateLength) {
+			if (capture == null || capture.getRecords().isEmpty()) {
+				return FingerprintSensorErrorCode.ZKFP_ERR_CAPTURE;
+			}
+
+			long now = System.nanoTime();
+			if (now < dueNanos) {
+				return FingerprintSensorErrorCode.ZKFP_ERR_CAPTURE;
+			}
+
+			CaptureFile.Record record = capture.getRecords().get(cursor);
+			int length = Math.min(record.template.length, Math.min(template.length, templateLength[0]));
+			System.arraycopy(record.template, 0, template, 0, length);
+			templateLength[0] = length;
+
+			if (imgBuffer != null) {
+				System.arraycopy(record.image, 0, imgBuffer, 0, Math.min(record.image.length, imgBuffer.length));
+			}
+
+			fakeStatus = record.fakeStatus;
+			cursor = (cursor + 1) % capture.getRecords().size();
+			dueNanos = now + delayOf(cursor);
+			return FingerprintSensorErrorCode.ZKFP_ERR_OK;
+		}
+
+		private long delayOf(int recordIndex) {
+			if (capture == null || capture.getRecords().isEmpty()) {
+				return 0;
+			}
+			return (long) (capture.getRecords().get(recordIndex).delayMillis * 1_000_000L / rate);
+		}
+	}
+
+	/**
+	 * In-memory template database. Like the native library, a handle is not meant to be shared between threads without external coordination, but access is
+	 * synchronized so that misuse cannot corrupt it.
+	 */
+	private static class Database {
+		private final Map<Integer, Integer> index = new HashMap<>();
+		private int[] ids = new int[64];
+		private byte[][] templates = new byte[64][];
+		private int size = 0;
+
+		synchronized int add(int id, byte[] template) {
+			byte[] copy = Arrays.copyOf(template, Library.TEMPLATE_SIZE);
+			Integer slot = index.get(id);
+
+			if (slot != null) {
+				templates[slot] = copy;
+				return 0;
+			}
+
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				templates = Arrays.copyOf(templates, size * 2);
+			}
+
+			ids[size] = id;
+			templates[size] = copy;
+			index.put(id, size++);
+			return 0;
+		}
+
+		synchronized int delete(int id) {
+			Integer slot = index.remove(id);
+
+			if (slot == null) {
+				return FingerprintSensorErrorCode.ZKFP_ERR_DEL_FINGER;
+			}
+
+			int last = --size;
+			if (slot != last) {
+				ids[slot] = ids[last];
+				templates[slot] = templates[last];
+				index.put(ids[slot], slot);
+			}
+
+			templates[last] = null;
+			return 0;
+		}
+
+		synchronized void clear() {
+			index.clear();
+			Arrays.fill(templates, null);
+			size = 0;
+		}
+
+		synchronized int count() {
+			return size;
+		}
+
+		synchronized int identify(byte[] template, int[] id, int[] score) {
+			int bestId = 0;
+			int bestScore = 0;
+
+			for (int i = 0; i < size; i++) {
+				int s = similarity(templates[i], template);
+				if (s > bestScore) {
+					bestScore = s;
+					bestId = ids[i];
+				}
+			}
+
+			if (bestScore < MATCH_THRESHOLD) {
+				return FingerprintSensorErrorCode.ZKFP_ERR_FAIL;
+			}
+
+			id[0] = bestId;
+			score[0] = bestScore;
+			return 0;
+		}
+	}
+
+	/**
+	 * Scores two templates by the percentage of equal bytes.
+	 *
+	 * @return A score between 0 and 100.
+	 */
+	static int similarity(byte[] a, byte[] b) {
+		int length = Math.min(Library.TEMPLATE_SIZE, Math.min(a.length, b.length));
+		int equal = 0;
+
+		for (int i = 0; i < length; i++) {
+			if (a[i] == b[i]) {
+				equal++;
+			}
+		}
+
+		return equal * 100 / Library.TEMPLATE_SIZE;
+	}
+
+	@Override
+	public int init() {
+		if (initialized) {
+			return FingerprintSensorErrorCode.ZKFP_ERR_ALREADY_INIT;
+		}
+		initialized = true;
+		return FingerprintSensorErrorCode.ZKFP_ERR_OK;
+	}
+
+	@Override
+	public int terminate() {
+		initialized = false;
+		devices.clear();
+		return FingerprintSensorErrorCode.ZKFP_ERR_OK;
+	}
+
+	@Override
+	public int getDeviceCount() {
+		return initialized && !isUnplugged(System.nanoTime()) ? deviceCount : 0;
+	}
+
+	@Override
+	public long openDevice(int index) {
+		if (!initialized || index < 0 || index >= deviceCount || isUnplugged(System.nanoTime())) {
+			return 0;
+		}
+
+		long handle = nextHandle.getAndIncrement();
+		devices.put(handle, new Device());
+		return handle;
+	}
+
+	@Override
+	public int closeDevice(long deviceHandle) {
+		return devices.remove(deviceHandle) != null ? FingerprintSensorErrorCode.ZKFP_ERR_OK : FingerprintSensorErrorCode.ZKFP_ERR_INVALID_HANDLE;
+	}
+
+	@Override
+	public int getParameters(long deviceHandle, int code, byte[] paramValue, int[] size) {
+		Device device = devices.get(deviceHandle);
+
+		if (device == null) {
+			return FingerprintSensorErrorCode.ZKFP_ERR_INVALID_HANDLE;
+		}
+
+		int value;
+		switch (code) {
+		case PARAM_IMAGE_WIDTH:
+			value = capture != null ? capture.getImageWidth() : DEFAULT_IMAGE_WIDTH;
+			break;
+		case PARAM_IMAGE_HEIGHT:
+			value = capture != null ? capture.getImageHeight() : DEFAULT_IMAGE_HEIGHT;
+			break;
+		case PARAM_FAKE_STATUS:
+			synchronized (device) {
+				value = device.fakeStatus;
+			}
+			break;
+		default:
+			return FingerprintSensorErrorCode.ZKFP_ERR_NOT_SUPPORT;
+		}
+
+		paramValue[0] = (byte) value;
+		paramValue[1] = (byte) (value >>> 8);
+		paramValue[2] = (byte) (value >>> 16);
+		paramValue[3] = (byte) (value >>> 24);
+		size[0] = 4;
+		return FingerprintSensorErrorCode.ZKFP_ERR_OK;
+	}
+
+	@Override
+	public int acquireFingerprint(long deviceHandle, byte[] imgBuffer, byte[] template, int[] templateLength) {
+		Device device = devices.get(deviceHandle);
+		long now = System.nanoTime();
+
+		if (device == null || device.cycle != plugCycle(now)) {
+			return FingerprintSensorErrorCode.ZKFP_ERR_INVALID_HANDLE;
+		}
+
+		return isUnplugged(now) ? FingerprintSensorErrorCode.ZKFP_ERR_NO_DEVICE : device.acquire(imgBuffer, template, templateLength);
+	}
+
+	@Override
+	public long dbInit() {
+		long handle = nextHandle.getAndIncrement();
+		databases.put(handle, new Database());
+		return handle;
+	}
+
+	@Override
+	public int dbFree(long dbHandle) {
+		return databases.remove(dbHandle) != null ? FingerprintSensorErrorCode.ZKFP_ERR_OK : FingerprintSensorErrorCode.ZKFP_ERR_INVALID_HANDLE;
+	}
+
+	@Override
+	public int dbMerge(long dbHandle, byte[] temp1, byte[] temp2, byte[] temp3, byte[] regTemp, int[] regTempLength) {
+		if (!databases.containsKey(dbHandle)) {
+			return FingerprintSensorErrorCode.ZKFP_ERR_INVALID_HANDLE;
+		}
+
+		if (similarity(temp1, temp2) < MATCH_THRESHOLD || similarity(temp1, temp3) < MATCH_THRESHOLD) {
+			return FingerprintSensorErrorCode.ZKFP_ERR_MERGE;
+		}
+
+		// Byte-wise majority vote, falling back to the first template when all three differ
+		int length = Math.min(regTemp.length, Library.TEMPLATE_SIZE);
+		for (int i = 0; i < length; i++) {
+			regTemp[i] = temp2[i] == temp3[i] ? temp2[i] : temp1[i];
+		}
+
+		regTempLength[0] = length;
+		return FingerprintSensorErrorCode.ZKFP_ERR_OK;
+	}
+
+	@Override
+	public int dbAdd(long dbHandle, int id, byte[] template) {
+		Database db = databases.get(dbHandle);
+		return db != null ? db.add(id, template) : FingerprintSensorErrorCode.ZKFP_ERR_INVALID_HANDLE;
+	}
+
+	@Override
+	public int dbDel(long dbHandle, int id) {
+		Database db = databases.get(dbHandle);
+		return db != null ? db.delete(id) : FingerprintSensorErrorCode.ZKFP_ERR_INVALID_HANDLE;
+	}
+
+	@Override
+	public int dbClear(long dbHandle) {
+		Database db = databases.get(dbHandle);
+
+		if (db == null) {
+			return FingerprintSensorErrorCode.ZKFP_ERR_INVALID_HANDLE;
+		}
+
+		db.clear();
+		return FingerprintSensorErrorCode.ZKFP_ERR_OK;
+	}
+
+	@Override
+	public int dbCount(long dbHandle) {
+		Database db = databases.get(dbHandle);
+		return db != null ? db.count() : FingerprintSensorErrorCode.ZKFP_ERR_INVALID_HANDLE;
+	}
+
+	@Override
+	public int dbIdentify(long dbHandle, byte[] template, int[] id, int[] score) {
+		Database db = databases.get(dbHandle);
+		return db != null ? db.identify(template, id, score) : FingerprintSensorErrorCode.ZKFP_ERR_INVALID_HANDLE;
+	}
+
+	@Override
+	public int dbMatch(long dbHandle, byte[] temp1, byte[] temp2) {
+		if (!databases.containsKey(dbHandle)) {
+			return FingerprintSensorErrorCode.ZKFP_ERR_INVALID_HANDLE;
+		}
+
+		int score = similarity(temp1, temp2);
+		return score >= MATCH_THRESHOLD ? score : 0;
+	}
+
+	@Override
+	public String blobToBase64(byte[] blob, int length) {
+		return Base64.getEncoder().encodeToString(Arrays.copyOf(blob, length));
+	}
+
+	@Override
+	public int base64ToBlob(String base64, byte[] blob, int length) {
+		try {
+			byte[] decoded = Base64.getDecoder().decode(base64);
+			int n = Math.min(decoded.length, length);
+			System.arraycopy(decoded, 0, blob, 0, n);
+			return n;
+		} catch (IllegalArgumentException e) {
+			return 0;
+		}
+	}
+}
@@ -1,79 +1,547 @@
 package zk9500scanner;
 
+import java.io.StringReader;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.java_websocket.WebSocket;
 import org.java_websocket.drafts.Draft;
 import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
 import org.java_websocket.server.WebSocketServer;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
-public class SocketServer extends WebSocketServer {
-	private AtomicBoolean running = new AtomicBoolean(false);
+/**
+ * The WebSocket endpoint of the application: client connections with their outbound queues, command lanes, image streams and the event journal.
+ * <p>
+ * The listening socket itself is a {@link WebSocketServer} that cannot be started again once it has stopped, so it is kept apart from the rest. When it fails, e.g.
+ * because its selector broke or the port could not be bound, {@link #start()} replaces it with a new one on the same address, while the queues, handlers and journal
+ * stay as they are; clients reconnect and replay what they missed.
+ * </p>
+ */
+public class SocketServer {
+	private static final long PUMP_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final Pattern EVENT_FIELD = Pattern.compile("\"event\"\\s*:\\s*\"([^\"]*)\"");
+	private static final Pattern REQUEST_ID_FIELD = Pattern.compile("\"requestId\"\\s*:\\s*(\"(?:[^\"\\\\]|\\\\.)*\"|[-\\w.]+)");
 
-	public Consumer<Integer> onRegistrationStart = null;
-	public Consumer<JSONArray> onInitialize = null;
+	/** Field of a command echoed in its responses. */
+	public static final String REQUEST_ID = "requestId";
 
-	public SocketServer(int port) throws UnknownHostException {
-		super(new InetSocketAddress(port));
+	private final InetSocketAddress address;
+	private final List<Draft> drafts;
+	private volatile Listener listener = null; // The current listening socket, null until started
+	private final Draft_6455 framer = new Draft_6455();
+	private final Connection.Policy queuePolicy = Connection.Policy.parse(System.getProperty("ws.queue.policy", "coalesce"));
+	private final int queueCapacity = Integer.getInteger("ws.queue.capacity", 256);
+	private final long queueLag = Long.getLong("ws.queue.lag", 5000);
+	private final Thread sender;
+	private final CommandExecutor commands = new CommandExecutor();
+	private final ImageStream images = new ImageStream();
+	private final int replayMax = Integer.getInteger("journal.replay.max", 10000);
+	private volatile EventJournal journal = null;
+	private final LinkedBlockingQueue<Event> journaled = new LinkedBlockingQueue<>(); // Journaled events waiting for their group to be flushed
+	private final Object publishing = new Object(); // Held while journaled events are queued for clients, so replays do not interleave with them
+	private volatile long published = 0; // Sequence number of the last journaled event queued for clients
+	private Thread journalWriter = null;
+
+	public Consumer<JSONObject> onRegistrationStart = null;
+	public Consumer<JSONObject> onVerifyStart = null;
+	public Consumer<JSONObject> onInitializeBegin = null;
+	public Supplier<TemplateMessageReader.TemplateSink> onTemplates = null;
+	public Consumer<JSONObject> onInitializeChunk = null;
+	public Consumer<JSONObject> onInitializeCommit = null;
+	public Consumer<JSONObject> onMetrics = null;
+	public BiConsumer<JSONObject, LibraryChange> onLibraryChange = null;
+	public BiConsumer<JSONObject, BatchJob.Probes> onBatchIdentify = null;
+	public Consumer<JSONObject> onBatchAudit = null;
+	public Consumer<JSONObject> onBatchCancel = null;
+
+	public SocketServer(int port) {
+		this(new InetSocketAddress(port), Collections.<Draft>emptyList());
 	}
 
+	/**
+	 * Creates a server accepting both JSON clients and clients that request the {@link BinaryProtocol#SUBPROTOCOL} subprotocol.
+	 *
+	 * @param address The address to listen on.
+	 */
 	public SocketServer(InetSocketAddress address) {
-		super(address);
+		this(address, Collections.<Draft>singletonList(new Draft_6455(Collections.<IExtension>emptyList(),
+				Arrays.<IProtocol>asList(new Protocol(BinaryProtocol.SUBPROTOCOL), new Protocol("")))));
 	}
 
 	public SocketServer(int port, Draft_6455 draft) {
-		super(new InetSocketAddress(port), Collections.<Draft>singletonList(draft));
+		this(new InetSocketAddress(port), Collections.<Draft>singletonList(draft));
+	}
+
+	private SocketServer(InetSocketAddress address, List<Draft> drafts) {
+		this.address = address;
+		this.drafts = drafts;
+		sender = startSender();
+	}
+
+	/**
+	 * A listening socket, handing its connections to the server. Once it has failed it is only replaced, never restarted.
+	 */
+	private class Listener extends WebSocketServer {
+		volatile boolean listening = false;
+		volatile boolean failed = false;
+
+		Listener() {
+			super(address, drafts);
+			setReuseAddr(true);
+		}
+
+		@Override
+		public void onOpen(WebSocket conn, ClientHandshake handshake) {
+			SocketServer.this.onOpen(conn, handshake);
+		}
+
+		@Override
+		public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+			SocketServer.this.onClose(conn, code, reason, remote);
+		}
+
+		@Override
+		public void onMessage(WebSocket conn, String message) {
+			SocketServer.this.onMessage(conn, message);
+		}
+
+		@Override
+		public void onMessage(WebSocket conn, ByteBuffer message) {
+			SocketServer.this.onMessage(conn, message);
+		}
+
+		@Override
+		public void onError(WebSocket conn, Exception ex) {
+			// errors of a single connection leave the server running
+			if (conn == null) {
+				failed = true;
+			}
+			Main.log.severe("Websocket error: " + ex.getLocalizedMessage());
+		}
+
+		@Override
+		public void onStart() {
+			listening = true;
+			Main.log.info("WebSocket server started at port " + getPort());
+			setConnectionLostTimeout(0);
+			setConnectionLostTimeout(100);
+		}
 	}
 
-	@Override
-	public void onOpen(WebSocket conn, ClientHandshake handshake) {
+	/**
+	 * Starts listening, or starts a new listening socket in place of one that has failed. Does nothing while the current one is running or still starting.
+	 *
+	 * @return true if a listening socket was started.
+	 */
+	public synchronized boolean start() {
+		Listener current = listener;
+
+		if (current != null && !current.failed) {
+			return false;
+		}
+
+		if (current != null) {
+			try {
+				current.stop(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		listener = new Listener();
+		listener.start();
+		return true;
+	}
+
+	/**
+	 * @return true while a listening socket is accepting connections.
+	 */
+	public boolean isRunning() {
+		Listener current = listener;
+		return current != null && current.listening && !current.failed;
+	}
+
+	/**
+	 * @return The connections of the current listening socket.
+	 */
+	public Collection<WebSocket> getConnections() {
+		Listener current = listener;
+		return current != null ? current.getConnections() : Collections.<WebSocket>emptyList();
+	}
+
+	/**
+	 * Starts the thread that moves queued events to the sockets. A single thread does all the sending, so the frames shared between connections are never written
+	 * concurrently.
+	 */
+	private Thread startSender() {
+		Thread thread = new Thread(() -> {
+			while (!Thread.currentThread().isInterrupted()) {
+				for (WebSocket conn : getConnections()) {
+					Connection connection = conn.getAttachment();
+
+					if (connection != null) {
+						connection.pump();
+					}
+				}
+
+				LockSupport.parkNanos(PUMP_INTERVAL);
+			}
+		}, "socket-sender");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private void onOpen(WebSocket conn, ClientHandshake handshake) {
+		IProtocol protocol = conn.getProtocol();
+		boolean binary = protocol != null && BinaryProtocol.SUBPROTOCOL.equals(protocol.getProvidedProtocol());
+
+		conn.setAttachment(new Connection(conn, binary, queuePolicy, queueCapacity, queueLag));
 		Main.log.info(conn.getRemoteSocketAddress().getAddress().getHostAddress() + " has entered the connection");
 	}
 
-	@Override
-	public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+	private void onClose(WebSocket conn, int code, String reason, boolean remote) {
+		Connection connection = conn.getAttachment();
+
+		if (connection != null) {
+			images.unsubscribe(connection);
+			connection.close();
+		}
+
 		Main.log.info(conn + " has disconnected");
 	}
 
-	@Override
-	public void onMessage(WebSocket conn, String message) {
-		processMessage(new JSONObject(message));
-	}
+	/**
+	 * Queues a text command on its {@link CommandExecutor} lane. Only the `event` field is looked up here; the message, with any templates, is parsed on the worker.
+	 */
+	private void onMessage(WebSocket conn, String message) {
+		Matcher event = EVENT_FIELD.matcher(message);
+		String command = event.find() ? event.group(1) : null;
 
-	@Override
-	public void onMessage(WebSocket conn, ByteBuffer message) {
-		processMessage(new JSONObject(message));
+		try {
+			commands.execute(command, () -> {
+				try {
+					if (LibraryChange.isChange(command)) {
+						LibraryChange change = new LibraryChange(command);
+						processChange(TemplateMessageReader.read(new StringReader(message), header -> change), change);
+					} else if (Event.BATCH_IDENTIFY.equals(command)) {
+						BatchJob.Probes probes = new BatchJob.Probes();
+						processBatch(TemplateMessageReader.read(new StringReader(message), header -> probes), probes);
+					} else if (Event.IMAGE_STREAM.equals(command)) {
+						processImageStream(conn, new JSONObject(message));
+					} else if (Event.JOURNAL_REPLAY.equals(command) || Event.JOURNAL_ACK.equals(command)) {
+						processJournal(conn, new JSONObject(message));
+					} else {
+						processMessage(TemplateMessageReader.read(new StringReader(message), this::templateSink));
+					}
+				} catch (Exception e) {
+					Main.log.severe("Invalid message: " + e.getLocalizedMessage());
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Matcher requestId = REQUEST_ID_FIELD.matcher(message);
+			reject(conn, command, requestId.find() ? new JSONTokener(requestId.group(1)).nextValue() : null);
+		}
 	}
 
-	@Override
-	public void onError(WebSocket conn, Exception ex) {
-		running.set(false);
-		Main.log.severe("Websocket error: " + ex.getLocalizedMessage());
+	/**
+	 * Queues a binary command on its {@link CommandExecutor} lane. Only the type code is read here; the frame is decoded on the worker.
+	 */
+	private void onMessage(WebSocket conn, ByteBuffer message) {
+		int code = message.remaining() > 1 ? message.get(message.position() + 1) & 0xFF : 0;
+		String command = code < BinaryProtocol.TYPES.length ? BinaryProtocol.TYPES[code] : null;
+
+		try {
+			commands.execute(command, () -> {
+				try {
+					Event event = BinaryProtocol.decode(message);
+					JSONObject header = event.toHeader();
+
+					if (LibraryChange.isChange(event.getName())) {
+						LibraryChange change = new LibraryChange(event.getName());
+
+						if (event.getTemplate() != null) {
+							BinaryProtocol.readTemplates(event.getTemplate(), change);
+						}
+
+						processChange(header, change);
+						return;
+					}
+
+					if (Event.BATCH_IDENTIFY.equals(event.getName())) {
+						BatchJob.Probes probes = new BatchJob.Probes();
+
+						if (event.getTemplate() != null) {
+							BinaryProtocol.readTemplates(event.getTemplate(), probes);
+						}
+
+						processBatch(header, probes);
+						return;
+					}
+
+					if (Event.IMAGE_STREAM.equals(event.getName())) {
+						processImageStream(conn, header);
+						return;
+					}
+
+					if (Event.JOURNAL_REPLAY.equals(event.getName()) || Event.JOURNAL_ACK.equals(event.getName())) {
+						processJournal(conn, header);
+						return;
+					}
+
+					if (event.getTemplate() != null) {
+						TemplateMessageReader.TemplateSink sink = templateSink(header);
+
+						if (sink != null) {
+							BinaryProtocol.readTemplates(event.getTemplate(), sink);
+						}
+					}
+
+					processMessage(header);
+				} catch (Exception e) {
+					Main.log.severe("Invalid message: " + e.getLocalizedMessage());
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Object requestId = null;
+
+			try {
+				requestId = BinaryProtocol.decode(message.duplicate()).toHeader().opt(REQUEST_ID);
+			} catch (Exception invalid) {
+				// rejected anyway
+			}
+
+			reject(conn, command, requestId);
+		}
 	}
 
-	@Override
-	public void onStart() {
-		running.set(true);
-		Main.log.info("WebSocket server started at port " + System.getProperty("wsport", "1234"));
-		setConnectionLostTimeout(0);
-		setConnectionLostTimeout(100);
+	/**
+	 * Tells a client that its command was not accepted because the command's lane is full.
+	 */
+	private void reject(WebSocket conn, String command, Object requestId) {
+		Main.log.warning("Rejected " + command + " command from " + conn.getRemoteSocketAddress() + ", too many pending commands");
+		send(conn, new Event(Event.COMMAND_REJECTED).put("command", command).put("reason", "overloaded").put(REQUEST_ID, requestId));
 	}
 
 	public void send(JSONObject json) {
-		String message = json.toString();
-		broadcast(message);
+		send(Event.fromJSON(json));
 	}
 
-	public boolean isRunning() {
-		return running.get();
+	/**
+	 * Sends the response to a command to every client, with the command's `requestId` if it had one so that the requester can recognize it.
+	 *
+	 * @param request The command.
+	 * @param event   The response.
+	 */
+	public void reply(JSONObject request, Event event) {
+		send(event.put(REQUEST_ID, request.opt(REQUEST_ID)));
+	}
+
+	/**
+	 * Queues an event for one client only.
+	 *
+	 * @param conn  The client.
+	 * @param event The event.
+	 */
+	public void send(WebSocket conn, Event event) {
+		Connection connection = conn.getAttachment();
+
+		if (connection != null) {
+			List<Framedata> frames = connection.isBinary() ? framer.createFrames(event.toBinary(), false) : framer.createFrames(event.toText(), false);
+			connection.enqueue(new Connection.Outbound(event, frames));
+			LockSupport.unpark(sender);
+		}
+	}
+
+	/**
+	 * Sets the journal that numbers and keeps the events clients must not miss.
+	 *
+	 * @param journal The journal, or {@code null} to journal nothing.
+	 */
+	public synchronized void setJournal(EventJournal journal) {
+		if (journal != null) {
+			published = journal.getLast();
+		}
+
+		this.journal = journal;
+
+		if (journal != null && journalWriter == null) {
+			journalWriter = new Thread(this::writeJournal, "journal-writer");
+			journalWriter.setDaemon(true);
+			journalWriter.start();
+		}
+	}
+
+	/**
+	 * Flushes the journaled events to disk and then queues them for the clients, in sequence order. Events appended while a flush is running are committed together by
+	 * the next one, so the scan pipeline never waits for the disk.
+	 */
+	private void writeJournal() {
+		List<Event> group = new ArrayList<>();
+
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				group.add(journaled.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			journaled.drainTo(group);
+			EventJournal journal = this.journal;
+
+			try {
+				if (journal != null) {
+					journal.flush();
+				}
+			} catch (RuntimeException e) {
+				Main.log.severe("Failed to flush the event journal: " + e.getMessage());
+			}
+
+			synchronized (publishing) {
+				for (Event event : group) {
+					broadcast(event);
+
+					if (event.getExtra() != null && event.getExtra().has(EventJournal.SEQUENCE)) {
+						published = event.getExtra().getLong(EventJournal.SEQUENCE);
+					}
+				}
+			}
+
+			group.clear();
+		}
+	}
+
+	/**
+	 * Queues an event for every client in the format it negotiated. Each format is encoded into frames once, and the frames are shared by the clients' queues; a client
+	 * that falls behind only affects its own queue.
+	 * <p>
+	 * An event of the {@link EventJournal} is appended to it first and then handed to the `journal-writer` thread, which queues it for the clients once it is flushed to
+	 * disk. Clients thus receive journaled events in sequence order, after they are durable, while the caller only waits for the append.
+	 * </p>
+	 *
+	 * @param event The event.
+	 */
+	public void send(Event event) {
+		EventJournal journal = this.journal;
+
+		if (journal != null && journal.accepts(event)) {
+			// handed over in the order of their sequence numbers
+			synchronized (journal) {
+				try {
+					journal.append(event);
+				} catch (Exception e) {
+					Main.log.severe("Failed to journal " + event.getName() + " event: " + e.getMessage());
+				}
+
+				journaled.add(event);
+			}
+			return;
+		}
+
+		broadcast(event);
+	}
+
+	private void broadcast(Event event) {
+		long start = System.nanoTime();
+		Connection.Outbound text = null;
+		Connection.Outbound binary = null;
+
+		for (WebSocket conn : getConnections()) {
+			Connection connection = conn.getAttachment();
+
+			if (connection == null) {
+				continue;
+			}
+
+			if (connection.isBinary()) {
+				if (binary == null) {
+					binary = new Connection.Outbound(event, framer.createFrames(event.toBinary(), false));
+				}
+				connection.enqueue(binary);
+			} else {
+				if (text == null) {
+					text = new Connection.Outbound(event, framer.createFrames(event.toText(), false));
+				}
+				connection.enqueue(text);
+			}
+		}
+
+		LockSupport.unpark(sender);
+		Metrics.BROADCAST.recordSince(start);
+	}
+
+	/**
+	 * Queues the image of a capture for the clients subscribed to it. Called on the acquisition thread, before the image buffer is reused.
+	 *
+	 * @param device   The device index.
+	 * @param sequence The sequence number of the capture on its device.
+	 * @param image    The grayscale image.
+	 * @param width    The image width in pixels.
+	 * @param height   The image height in pixels.
+	 */
+	public void sendImage(int device, int sequence, byte[] image, int width, int height) {
+		if (images.publish(device, sequence, image, width, height)) {
+			LockSupport.unpark(sender);
+		}
+	}
+
+	/**
+	 * Summarizes the outbound queue of every client.
+	 *
+	 * @return One {@link Connection#toJSON()} entry per client.
+	 */
+	public JSONArray getConnectionMetrics() {
+		JSONArray connections = new JSONArray();
+
+		for (WebSocket conn : getConnections()) {
+			Connection connection = conn.getAttachment();
+
+			if (connection != null) {
+				connections.put(connection.toJSON());
+			}
+		}
+
+		return connections;
+	}
+
+	/**
+	 * Summarizes the image subscriptions.
+	 *
+	 * @return See {@link ImageStream#toJSON()}.
+	 */
+	public JSONArray getImageMetrics() {
+		return images.toJSON();
+	}
+
+	/**
+	 * Summarizes the command lanes.
+	 *
+	 * @return See {@link CommandExecutor#toJSON()}.
+	 */
+	public JSONObject getCommandMetrics() {
+		return commands.toJSON();
 	}
 
 	private void processMessage(JSONObject data) {
@@ -82,12 +550,173 @@ public class SocketServer extends WebSocketServer {
 
 			// event hooks
 			if (eventName.equals("registration-start") && onRegistrationStart != null) {
-				onRegistrationStart.accept(data.getInt("id"));
-			} else if (eventName.equals("library-init") && onInitialize != null) {
-				onInitialize.accept(data.getJSONArray("fingerprints"));
+				onRegistrationStart.accept(data);
+			} else if (eventName.equals("verify-start") && onVerifyStart != null) {
+				onVerifyStart.accept(data);
+			} else if (eventName.equals("library-init") && onInitializeCommit != null) {
+				// single-message initialization: the templates were loaded while parsing
+				onInitializeCommit.accept(data);
+			} else if (eventName.equals("library-init-begin") && onInitializeBegin != null) {
+				onInitializeBegin.accept(data);
+			} else if (eventName.equals("library-init-chunk") && onInitializeChunk != null) {
+				onInitializeChunk.accept(data);
+			} else if (eventName.equals("library-init-commit") && onInitializeCommit != null) {
+				onInitializeCommit.accept(data);
+			} else if (eventName.equals("metrics") && onMetrics != null) {
+				onMetrics.accept(data);
+			} else if (eventName.equals("batch-audit") && onBatchAudit != null) {
+				onBatchAudit.accept(data);
+			} else if (eventName.equals("batch-cancel") && onBatchCancel != null) {
+				onBatchCancel.accept(data);
 			}
 		} catch (Exception e) {
 			Main.log.severe(e.getLocalizedMessage());
 		}
 	}
+
+	/**
+	 * Hands a `library-add`, `library-update` or `library-remove` command to its hook, once its `fingerprints` have been read.
+	 */
+	private void processChange(JSONObject header, LibraryChange change) {
+		if (onLibraryChange != null) {
+			change.addFields(header);
+			onLibraryChange.accept(header, change);
+		}
+	}
+
+	/**
+	 * Hands a `batch-identify` command to its hook, once its `fingerprints` have been read.
+	 */
+	private void processBatch(JSONObject header, BatchJob.Probes probes) {
+		if (onBatchIdentify != null) {
+			onBatchIdentify.accept(header, probes);
+		}
+	}
+
+	/**
+	 * Subscribes the sender of an `image-stream` command to capture images, or unsubscribes it when `enabled` is false, and answers the sender alone.
+	 */
+	private void processImageStream(WebSocket conn, JSONObject data) {
+		Connection connection = conn.getAttachment();
+		Event event = new Event(Event.IMAGE_STREAM).put(REQUEST_ID, data.opt(REQUEST_ID));
+
+		if (connection == null) {
+			return;
+		}
+
+		if (!data.optBoolean("enabled", true)) {
+			images.unsubscribe(connection);
+			send(conn, event.put("enabled", false));
+			return;
+		}
+
+		try {
+			ImageStream.Subscription subscription = images.subscribe(connection, data);
+			event.put("enabled", true).put("scale", subscription.getScale()).put("fps", subscription.getFps());
+			send(conn, subscription.getDevice() != RegistrationManager.ANY_DEVICE ? event.put("device", subscription.getDevice()) : event);
+		} catch (Exception e) {
+			Main.log.warning("Image stream error: " + e.getMessage());
+			send(conn, event.put("enabled", false).put("message", e.getMessage()));
+		}
+	}
+
+	/**
+	 * Handles the `journal-ack` and `journal-replay` commands of a client, and answers it alone.
+	 */
+	private void processJournal(WebSocket conn, JSONObject data) {
+		String command = data.getString("event");
+		String consumer = data.optString("consumer", null);
+		EventJournal journal = this.journal;
+		Event event = new Event(command).put(REQUEST_ID, data.opt(REQUEST_ID)).put("consumer", consumer);
+
+		try {
+			if (journal == null) {
+				throw new Exception("The event journal is disabled");
+			}
+
+			if (Event.JOURNAL_ACK.equals(command)) {
+				send(conn, event.put(EventJournal.SEQUENCE, journal.acknowledge(consumer, data.getLong(EventJournal.SEQUENCE))));
+			} else {
+				replay(conn, journal, consumer, data, event);
+			}
+		} catch (Exception e) {
+			Main.log.warning("Journal error: " + e.getMessage());
+			send(conn, event.put("message", e.getMessage()));
+		}
+	}
+
+	/**
+	 * Sends a client the journaled events from `from`, or after the last one its `consumer` acknowledged, followed by the `journal-replay` response. The events and the
+	 * response take a single place in the client's queue, so a long replay is never partly dropped, and are handed to the socket together.
+	 * <p>
+	 * The events already sent to clients are read without any lock that {@link #send(Event)} needs. Only the few events the `journal-writer` sent meanwhile are read
+	 * while it waits, so that the replay joins the live events without a gap or a repeat.
+	 * </p>
+	 */
+	private void replay(WebSocket conn, EventJournal journal, String consumer, JSONObject data, Event event) throws Exception {
+		Connection connection = conn.getAttachment();
+
+		if (connection == null) {
+			return;
+		}
+
+		long from = data.has("from") ? data.getLong("from") : journal.getAcknowledged(consumer) + 1;
+		List<ByteBuffer> records = new ArrayList<>();
+		long to = journal.read(from, published, replayMax, records);
+		List<Framedata> frames = new ArrayList<>(records.size() + 1);
+
+		// a consumer replaying for the first time becomes known, and keeps its events from being deleted until it acknowledges them
+		if (consumer != null && !data.has("from")) {
+			journal.acknowledge(consumer, from - 1);
+		}
+
+		addFrames(connection, records, frames);
+
+		synchronized (publishing) {
+			long last = published;
+
+			if (to < last && records.size() < replayMax) {
+				List<ByteBuffer> missed = new ArrayList<>();
+				to = Math.max(to, journal.read(Math.max(from, to + 1), last, replayMax - records.size(), missed));
+				addFrames(connection, missed, frames);
+				records.addAll(missed);
+			}
+
+			event.put("from", from).put("to", to).put("count", records.size()).put("first", journal.getFirst()).put("last", last).put("more", to < last);
+			frames.addAll(connection.isBinary() ? framer.createFrames(event.toBinary(), false) : framer.createFrames(event.toText(), false));
+			connection.enqueue(new Connection.Outbound(event, frames));
+		}
+
+		LockSupport.unpark(sender);
+	}
+
+	/**
+	 * Encodes journal records for a client in the format it negotiated.
+	 */
+	private void addFrames(Connection connection, List<ByteBuffer> records, List<Framedata> frames) {
+		for (ByteBuffer record : records) {
+			frames.addAll(connection.isBinary() ? framer.createFrames(record, false) : framer.createFrames(BinaryProtocol.decode(record).toText(), false));
+		}
+	}
+
+	/**
+	 * Selects where the templates of an incoming message go while it is being parsed. A `library-init` message starts a new initialization first; a
+	 * `library-init-chunk` adds to the one in progress.
+	 */
+	private TemplateMessageReader.TemplateSink templateSink(JSONObject header) {
+		String eventName = header.optString("event");
+
+		if (onTemplates == null) {
+			return null;
+		}
+
+		if (eventName.equals("library-init") && onInitializeBegin != null) {
+			onInitializeBegin.accept(header);
+			return onTemplates.get();
+		} else if (eventName.equals("library-init-chunk")) {
+			return onTemplates.get();
+		}
+
+		return null;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,187 @@
+package zk9500scanner;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Streaming reader for client messages that may carry fingerprint templates, e.g.
+ * {@code {"event":"library-init-chunk","fingerprints":[{"id":1,"data":"..."}, ...]}}.
+ * <p>
+ * Entries of the {@code fingerprints} array are handed to a {@link TemplateSink} one at a time as they are parsed, without building a {@code JSONArray} or a
+ * {@code JSONObject} per entry. Every other top-level field is collected into the returned header object. The sink is chosen from the header fields seen before the
+ * array, so clients should put {@code event} first; if they do not, entries are buffered and delivered once the whole message has been read.
+ * </p>
+ */
+public class TemplateMessageReader {
+	/** Name of the top-level array holding templates. */
+	public static final String FINGERPRINTS = "fingerprints";
+
+	/**
+	 * Receives templates as they are parsed.
+	 */
+	public interface TemplateSink {
+		void accept(int id, String base64) throws Exception;
+
+		/**
+		 * Receives a raw template, as sent in binary frames.
+		 */
+		void accept(int id, byte[] buffer, int offset, int length) throws Exception;
+	}
+
+	private TemplateMessageReader() {
+	}
+
+	/**
+	 * Reads one message.
+	 *
+	 * @param reader  The message source.
+	 * @param sinkFor Returns the sink for the templates of a message given its header, or {@code null} if the message carries no templates of interest.
+	 * @return The header, i.e. every top-level field except {@code fingerprints}.
+	 * @throws Exception If the message is malformed or the sink fails.
+	 */
+	public static JSONObject read(Reader reader, Function<JSONObject, TemplateSink> sinkFor) throws Exception {
+		JSONTokener x = new JSONTokener(reader);
+		JSONObject header = new JSONObject();
+		List<Object[]> buffered = null;
+
+		expect(x, '{');
+		if (x.nextClean() == '}') {
+			return header;
+		}
+		x.back();
+
+		while (true) {
+			String key = nextKey(x);
+			expect(x, ':');
+
+			if (key.equals(FINGERPRINTS)) {
+				TemplateSink sink = header.has("event") ? sinkFor.apply(header) : null;
+
+				if (sink == null && !header.has("event")) {
+					buffered = new ArrayList<>();
+					final List<Object[]> buffer = buffered;
+					sink = new TemplateSink() {
+						@Override
+						public void accept(int id, String base64) {
+							buffer.add(new Object[] { id, base64 });
+						}
+
+						@Override
+						public void accept(int id, byte[] template, int offset, int length) {
+							buffer.add(new Object[] { id, Arrays.copyOfRange(template, offset, offset + length) });
+						}
+					};
+				}
+
+				readTemplates(x, sink);
+			} else {
+				header.put(key, x.nextValue());
+			}
+
+			char c = x.nextClean();
+			if (c == '}') {
+				break;
+			}
+			if (c != ',') {
+				throw x.syntaxError("Expected ',' or '}'");
+			}
+		}
+
+		if (buffered != null) {
+			TemplateSink sink = sinkFor.apply(header);
+
+			if (sink != null) {
+				for (Object[] entry : buffered) {
+					if (entry[1] instanceof byte[]) {
+						byte[] template = (byte[]) entry[1];
+						sink.accept((Integer) entry[0], template, 0, template.length);
+					} else {
+						sink.accept((Integer) entry[0], (String) entry[1]);
+					}
+				}
+			}
+		}
+
+		return header;
+	}
+
+	/**
+	 * Reads the template array, passing each entry to the sink. A {@code null} sink skips the entries.
+	 */
+	private static void readTemplates(JSONTokener x, TemplateSink sink) throws Exception {
+		expect(x, '[');
+		if (x.nextClean() == ']') {
+			return;
+		}
+		x.back();
+
+		while (true) {
+			Integer id = null;
+			String data = null;
+
+			expect(x, '{');
+			if (x.nextClean() != '}') {
+				x.back();
+
+				while (true) {
+					String key = nextKey(x);
+					expect(x, ':');
+					Object value = x.nextValue();
+
+					if (key.equals("id")) {
+						id = value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString());
+					} else if (key.equals("data")) {
+						data = value.toString();
+					}
+
+					char c = x.nextClean();
+					if (c == '}') {
+						break;
+					}
+					if (c != ',') {
+						throw x.syntaxError("Expected ',' or '}'");
+					}
+				}
+			}
+
+			if (id == null || data == null) {
+				throw new JSONException("Fingerprint entry requires 'id' and 'data'");
+			}
+
+			if (sink != null) {
+				sink.accept(id, data);
+			}
+
+			char c = x.nextClean();
+			if (c == ']') {
+				return;
+			}
+			if (c != ',') {
+				throw x.syntaxError("Expected ',' or ']'");
+			}
+		}
+	}
+
+	private static String nextKey(JSONTokener x) {
+		char c = x.nextClean();
+
+		if (c != '"' && c != '\'') {
+			throw x.syntaxError("Expected a quoted key");
+		}
+
+		return x.nextString(c);
+	}
+
+	private static void expect(JSONTokener x, char expected) {
+		if (x.nextClean() != expected) {
+			throw x.syntaxError("Expected '" + expected + "'");
+		}
+	}
+}
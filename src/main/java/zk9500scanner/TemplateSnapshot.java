@@ -0,0 +1,404 @@
+package zk9500scanner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped on-disk copy of the fingerprint library, replayed into the algorithm database at startup so identification works before any client connects.
+ * <p>
+ * Each snapshot is a file {@code library-<generation>.snap} made of a 64-byte header followed by fixed-size records of ID, CRC32 and template. A slot with ID 0 is free.
+ * The header carries a format version, the template and record sizes, the slot capacity, a completion flag and its own CRC32. A full `library-init` writes a new
+ * generation and marks it complete only once every template is in; registrations update the current generation in place. At startup the newest complete generation
+ * whose header is intact is used and records with a bad checksum are skipped.
+ * </p>
+ * <p>
+ * Old generations are deleted once replaced. Files are never replaced in place, because a file that is still mapped cannot be overwritten on every platform.
+ * </p>
+ */
+public class TemplateSnapshot implements Closeable {
+	/** Magic number identifying a snapshot file ("ZKLS"). */
+	public static final int MAGIC = 0x5A4B4C53;
+
+	/** Current format version. */
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 64;
+	private static final int RECORD_SIZE = 8 + Library.TEMPLATE_SIZE;
+	private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+	private static final int FLAG_COMPLETE = 1;
+	private static final String PREFIX = "library-";
+	private static final String SUFFIX = ".snap";
+
+	private final Path path;
+	private final long generation;
+	private final FileChannel channel;
+	private final Map<Integer, Integer> index = new HashMap<>();
+	private final Deque<Integer> freeSlots = new ArrayDeque<>();
+	private final CRC32 crc = new CRC32();
+	private final byte[] scratch = new byte[Library.TEMPLATE_SIZE];
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int used = 0;
+
+	private TemplateSnapshot(Path path, long generation, FileChannel channel, int capacity) throws IOException {
+		this.path = path;
+		this.generation = generation;
+		this.channel = channel;
+		map(capacity);
+	}
+
+	/**
+	 * Creates a new, incomplete snapshot generation.
+	 *
+	 * @param dir        The snapshot directory.
+	 * @param generation The generation number, higher than every existing one.
+	 * @param capacity   The initial number of slots; the file grows as needed.
+	 * @return The new snapshot.
+	 * @throws IOException If the file cannot be created.
+	 */
+	public static TemplateSnapshot create(Path dir, long generation, int capacity) throws IOException {
+		Files.createDirectories(dir);
+		Path path = dir.resolve(PREFIX + generation + SUFFIX);
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+
+		TemplateSnapshot snapshot = new TemplateSnapshot(path, generation, channel, Math.max(1, Math.min(capacity, MAX_CAPACITY)));
+		snapshot.writeHeader(0);
+		return snapshot;
+	}
+
+	/**
+	 * Opens the newest complete snapshot in the directory.
+	 *
+	 * @param dir The snapshot directory.
+	 * @return The snapshot, or {@code null} if there is none.
+	 */
+	public static TemplateSnapshot openLatest(Path dir) {
+		if (!Files.isDirectory(dir)) {
+			return null;
+		}
+
+		Map<Long, Path> candidates = new HashMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+			for (Path file : files) {
+				Long generation = generationOf(file);
+				if (generation != null) {
+					candidates.put(generation, file);
+				}
+			}
+		} catch (IOException e) {
+			Main.log.warning("Unable to list library snapshots: " + e.getMessage());
+			return null;
+		}
+
+		while (!candidates.isEmpty()) {
+			long newest = candidates.keySet().stream().mapToLong(Long::longValue).max().getAsLong();
+			Path file = candidates.remove(newest);
+
+			try {
+				TemplateSnapshot snapshot = open(file, newest);
+				if (snapshot != null) {
+					return snapshot;
+				}
+			} catch (IOException e) {
+				Main.log.warning("Unable to open library snapshot " + file + ": " + e.getMessage());
+			}
+		}
+
+		return null;
+	}
+
+	private static TemplateSnapshot open(Path path, long generation) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+		if (channel.read(header, 0) < HEADER_SIZE || !validHeader(header)) {
+			Main.log.warning("Ignoring invalid or incomplete library snapshot " + path);
+			channel.close();
+			return null;
+		}
+
+		TemplateSnapshot snapshot = new TemplateSnapshot(path, generation, channel, header.getInt(16));
+		snapshot.scan();
+		return snapshot;
+	}
+
+	private static boolean validHeader(ByteBuffer header) {
+		if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != Library.TEMPLATE_SIZE || header.getInt(12) != RECORD_SIZE) {
+			return false;
+		}
+
+		int capacity = header.getInt(16);
+		if (capacity < 1 || capacity > MAX_CAPACITY || (header.getInt(20) & FLAG_COMPLETE) == 0) {
+			return false;
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(header.array(), 0, 32);
+		return header.getInt(32) == (int) crc.getValue();
+	}
+
+	private static Long generationOf(Path file) {
+		String name = file.getFileName().toString();
+
+		try {
+			return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes every snapshot generation other than the given one. Files that cannot be deleted yet are left for a later attempt.
+	 *
+	 * @param dir  The snapshot directory.
+	 * @param keep The generation to keep.
+	 */
+	public static void deleteOthers(Path dir, long keep) {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+			for (Path file : files) {
+				Long generation = generationOf(file);
+
+				if (generation != null && generation != keep) {
+					try {
+						Files.deleteIfExists(file);
+					} catch (IOException e) {
+						Main.log.fine("Library snapshot " + file + " not deleted yet: " + e.getMessage());
+					}
+				}
+			}
+		} catch (IOException e) {
+			Main.log.warning("Unable to clean up library snapshots: " + e.getMessage());
+		}
+	}
+
+	private void map(int newCapacity) throws IOException {
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * RECORD_SIZE);
+		capacity = newCapacity;
+	}
+
+	private void writeHeader(int flags) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(0, MAGIC);
+		header.putInt(4, VERSION);
+		header.putInt(8, Library.TEMPLATE_SIZE);
+		header.putInt(12, RECORD_SIZE);
+		header.putInt(16, capacity);
+		header.putInt(20, flags);
+		header.putLong(24, generation);
+
+		CRC32 headerCrc = new CRC32();
+		headerCrc.update(header.array(), 0, 32);
+		header.putInt(32, (int) headerCrc.getValue());
+
+		ByteBuffer target = buffer.duplicate();
+		target.position(0);
+		target.put(header.array());
+	}
+
+	/**
+	 * Builds the index from the records, dropping those whose checksum does not match.
+	 */
+	private void scan() {
+		for (int slot = 0; slot < capacity; slot++) {
+			int offset = offsetOf(slot);
+			int id = buffer.getInt(offset);
+
+			if (id == 0) {
+				freeSlots.add(slot);
+				continue;
+			}
+
+			if (buffer.getInt(offset + 4) != checksum(id, readTemplate(slot, scratch)) || index.containsKey(id)) {
+				Main.log.warning("Dropping corrupt library snapshot record for ID " + id);
+				buffer.putInt(offset, 0);
+				freeSlots.add(slot);
+				continue;
+			}
+
+			index.put(id, slot);
+			used = Math.max(used, slot + 1);
+		}
+
+		// slots past the last used one are handed out in order by put
+		freeSlots.removeIf(slot -> slot >= used);
+	}
+
+	private static int offsetOf(int slot) {
+		return HEADER_SIZE + slot * RECORD_SIZE;
+	}
+
+	private byte[] readTemplate(int slot, byte[] out) {
+		ByteBuffer source = buffer.duplicate();
+		source.position(offsetOf(slot) + 8);
+		source.get(out, 0, Library.TEMPLATE_SIZE);
+		return out;
+	}
+
+	private int checksum(int id, byte[] template) {
+		crc.reset();
+		crc.update(id >>> 24);
+		crc.update(id >>> 16);
+		crc.update(id >>> 8);
+		crc.update(id);
+		crc.update(template, 0, Library.TEMPLATE_SIZE);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Stores or replaces the template of an ID.
+	 *
+	 * @param id       The fingerprint ID, not 0.
+	 * @param template The template.
+	 * @throws IOException If the file cannot grow.
+	 */
+	public synchronized void put(int id, byte[] template) throws IOException {
+		Integer slot = index.get(id);
+
+		if (slot == null) {
+			slot = freeSlots.isEmpty() ? used++ : freeSlots.poll();
+
+			if (slot >= capacity) {
+				if (capacity == MAX_CAPACITY) {
+					used--;
+					throw new IOException("Library snapshot is full");
+				}
+				map((int) Math.min((long) capacity * 2, MAX_CAPACITY));
+				writeHeader(buffer.getInt(20));
+			}
+		}
+
+		int offset = offsetOf(slot);
+		ByteBuffer target = buffer.duplicate();
+		target.position(offset + 8);
+		target.put(template, 0, Library.TEMPLATE_SIZE);
+		buffer.putInt(offset + 4, checksum(id, template));
+		buffer.putInt(offset, id);
+		index.put(id, slot);
+	}
+
+	/**
+	 * Removes the template of an ID.
+	 *
+	 * @param id The fingerprint ID.
+	 * @return `true` if the ID was present.
+	 */
+	public synchronized boolean remove(int id) {
+		Integer slot = index.remove(id);
+
+		if (slot == null) {
+			return false;
+		}
+
+		buffer.putInt(offsetOf(slot), 0);
+		freeSlots.add(slot);
+		return true;
+	}
+
+	/**
+	 * Copies the template of an ID.
+	 *
+	 * @param id  The fingerprint ID.
+	 * @param out Receives the template; at least {@link Library#TEMPLATE_SIZE} bytes.
+	 * @return `true` if the ID was present.
+	 */
+	public synchronized boolean get(int id, byte[] out) {
+		Integer slot = index.get(id);
+
+		if (slot == null) {
+			return false;
+		}
+
+		readTemplate(slot, out);
+		return true;
+	}
+
+	/**
+	 * @return The IDs of every stored template, in no particular order.
+	 */
+	public synchronized int[] ids() {
+		return index.keySet().stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * Adds every stored template to an algorithm database.
+	 *
+	 * @param database The database to fill.
+	 * @return The number of templates added.
+	 */
+	public synchronized int replay(DatabaseHandle database) {
+		int added = 0;
+
+		for (Map.Entry<Integer, Integer> entry : index.entrySet()) {
+			if (database.add(entry.getKey(), readTemplate(entry.getValue(), scratch)) == 0) {
+				added++;
+			} else {
+				Main.log.warning("Failed to restore fingerprint ID " + entry.getKey() + " from the library snapshot");
+			}
+		}
+
+		return added;
+	}
+
+	/**
+	 * Marks the snapshot complete and flushes it to disk.
+	 */
+	public synchronized void seal() {
+		buffer.force();
+		writeHeader(FLAG_COMPLETE);
+		buffer.force();
+	}
+
+	/**
+	 * Flushes pending record updates to disk.
+	 */
+	public synchronized void force() {
+		buffer.force();
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	@Override
+	public synchronized void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Main.log.warning("Unable to close library snapshot: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Closes and deletes this snapshot, e.g. after an abandoned `library-init`.
+	 */
+	public void discard() {
+		close();
+
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			Main.log.fine("Library snapshot " + path + " not deleted yet: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package zk9500scanner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Verifies scans 1:1 against a claimed fingerprint ID, for stations where the user has already entered a badge number or PIN.
+ * <p>
+ * A client arms a device with a {@link Claim}; the next new touch on that device is matched against the stored template of the claimed ID only, instead of being
+ * identified against the whole library, and the claim is used up. A claim armed without a device ({@link RegistrationManager#ANY_DEVICE}) takes the next touch of
+ * any device that has no claim of its own. A claim without a scan for `verify.timeout` milliseconds (default 30000) is dropped and a `verify-error` event reports
+ * the timeout.
+ * </p>
+ */
+public class VerificationManager {
+	private final Library library;
+	private final long timeout;
+	private final Map<Integer, Claim> claims = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService sweeper;
+
+	/** Receives the `verify-error` event of every claim that timed out. */
+	public Consumer<Event> onTimeout = null;
+
+	/**
+	 * A claimed identity waiting for the next scan.
+	 */
+	public static final class Claim {
+		private final int id;
+		private final int device;
+		private final Object requestId;
+		private final long armedAt = System.currentTimeMillis();
+
+		Claim(int id, int device, Object requestId) {
+			this.id = id;
+			this.device = device;
+			this.requestId = requestId;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public int getDevice() {
+			return device;
+		}
+
+		public Object getRequestId() {
+			return requestId;
+		}
+
+		public long getArmedAt() {
+			return armedAt;
+		}
+	}
+
+	/**
+	 * @param library The library holding the stored templates.
+	 * @param timeout How long a claim may wait for a scan, in milliseconds.
+	 */
+	public VerificationManager(Library library, long timeout) {
+		this.library = library;
+		this.timeout = timeout;
+
+		sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "verify-timeout");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		long period = Math.max(100, timeout / 10);
+		sweeper.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates a manager configured by the `verify.timeout` system property.
+	 *
+	 * @param library The library holding the stored templates.
+	 * @return The manager.
+	 */
+	public static VerificationManager fromSystemProperties(Library library) {
+		return new VerificationManager(library, Long.parseLong(System.getProperty("verify.timeout", "30000")));
+	}
+
+	/**
+	 * Arms a device with a claimed ID, replacing any claim of the same device.
+	 *
+	 * @param device    The device index, or {@link RegistrationManager#ANY_DEVICE}.
+	 * @param id        The claimed fingerprint ID.
+	 * @param requestId The `requestId` of the command, echoed in the result, or {@code null}.
+	 * @return The claim.
+	 */
+	public Claim arm(int device, int id, Object requestId) {
+		Claim claim = new Claim(id, device, requestId);
+		claims.put(device, claim);
+		return claim;
+	}
+
+	/**
+	 * Disarms a device.
+	 *
+	 * @param device The device index, or {@link RegistrationManager#ANY_DEVICE}.
+	 */
+	public void cancel(int device) {
+		claims.remove(device);
+	}
+
+	/**
+	 * Disarms every device.
+	 */
+	public void cancelAll() {
+		claims.clear();
+	}
+
+	/**
+	 * Takes the claim that the next scan of a device is verified against.
+	 *
+	 * @param device The device index.
+	 * @return The device's own claim, or else the claim for any device, or {@code null} if the scan is to be identified.
+	 */
+	public Claim take(int device) {
+		Claim claim = claims.remove(device);
+		return claim != null ? claim : claims.remove(RegistrationManager.ANY_DEVICE);
+	}
+
+	/**
+	 * Matches a scan against the stored template of a claim.
+	 *
+	 * @param claim The claim returned by {@link #take(int)}.
+	 * @param scan  The scan.
+	 * @return The `verify` event with the claimed `id`, the `score` and whether the scan is `verified`, or a `verify-error` event if there is nothing to match
+	 *         against.
+	 */
+	public Event verify(Claim claim, Scan scan) {
+		long start = System.nanoTime();
+
+		try {
+			int score = library.verify(claim.getId(), scan.getTemplate());
+			boolean verified = score > 0 && score >= library.getThreshold();
+
+			if (Main.log.isLoggable(Level.INFO)) {
+				Main.log.info("Verification of fingerprint ID " + claim.getId() + (verified ? " passed" : " failed") + " [SCORE: " + score + ", DEVICE: "
+						+ scan.getDevice() + "]");
+			}
+			return toEvent(Event.VERIFY, claim).score(Math.max(score, 0)).timestamp(scan.getCapturedMillis()).put("verified", verified);
+		} catch (Exception e) {
+			Main.log.warning("Verification error: " + e.getMessage());
+			return toEvent(Event.VERIFY_ERROR, claim).put("message", e.getMessage());
+		} finally {
+			Metrics.CLAIM_VERIFY.recordSince(start);
+		}
+	}
+
+	/**
+	 * Builds a verification event for a claim.
+	 *
+	 * @param name  The event name.
+	 * @param claim The claim.
+	 * @return The event with the claimed `id` and the `requestId` of the command that armed it.
+	 */
+	public static Event toEvent(String name, Claim claim) {
+		return new Event(name).id(claim.getId()).put(SocketServer.REQUEST_ID, claim.getRequestId());
+	}
+
+	/**
+	 * Drops the claims that have waited too long for a scan.
+	 */
+	private void sweep() {
+		List<Claim> expired = new ArrayList<>();
+		long now = System.currentTimeMillis();
+
+		for (Claim claim : claims.values()) {
+			if (now - claim.getArmedAt() > timeout && claims.remove(claim.getDevice(), claim)) {
+				expired.add(claim);
+			}
+		}
+
+		for (Claim claim : expired) {
+			Main.log.warning("Verification of fingerprint ID " + claim.getId() + " timed out");
+
+			Consumer<Event> consumer = onTimeout;
+			if (consumer != null) {
+				Event event = toEvent(Event.VERIFY_ERROR, claim).put("message", "Verification timed out.");
+				consumer.accept(claim.getDevice() != RegistrationManager.ANY_DEVICE ? event.put("device", claim.getDevice()) : event);
+			}
+		}
+	}
+
+	/**
+	 * Summarizes the armed devices.
+	 *
+	 * @return One entry per claim with the claimed `id`, `device` (absent for any device) and `age` in milliseconds.
+	 */
+	public JSONArray toJSON() {
+		JSONArray json = new JSONArray();
+		long now = System.currentTimeMillis();
+
+		for (Claim claim : claims.values()) {
+			JSONObject entry = new JSONObject();
+			entry.put("id", claim.getId());
+			if (claim.getDevice() != RegistrationManager.ANY_DEVICE) {
+				entry.put("device", claim.getDevice());
+			}
+			entry.put("age", now - claim.getArmedAt());
+			json.put(entry);
+		}
+
+		return json;
+	}
+
+	/**
+	 * Stops the timeout sweeper.
+	 */
+	public void close() {
+		sweeper.shutdownNow();
+	}
+}
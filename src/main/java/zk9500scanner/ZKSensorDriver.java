@@ -0,0 +1,98 @@
+package zk9500scanner;
+
+import com.zkteco.biometric.FingerprintSensorEx;
+
+/**
+ * {@link SensorDriver} backed by the native ZKTeco SDK through {@link FingerprintSensorEx}.
+ */
+public class ZKSensorDriver implements SensorDriver {
+	@Override
+	public int init() {
+		return FingerprintSensorEx.Init();
+	}
+
+	@Override
+	public int terminate() {
+		return FingerprintSensorEx.Terminate();
+	}
+
+	@Override
+	public int getDeviceCount() {
+		return FingerprintSensorEx.GetDeviceCount();
+	}
+
+	@Override
+	public long openDevice(int index) {
+		return FingerprintSensorEx.OpenDevice(index);
+	}
+
+	@Override
+	public int closeDevice(long deviceHandle) {
+		return FingerprintSensorEx.CloseDevice(deviceHandle);
+	}
+
+	@Override
+	public int getParameters(long deviceHandle, int code, byte[] paramValue, int[] size) {
+		return FingerprintSensorEx.GetParameters(deviceHandle, code, paramValue, size);
+	}
+
+	@Override
+	public int acquireFingerprint(long deviceHandle, byte[] imgBuffer, byte[] template, int[] templateLength) {
+		return FingerprintSensorEx.AcquireFingerprint(deviceHandle, imgBuffer, template, templateLength);
+	}
+
+	@Override
+	public long dbInit() {
+		return FingerprintSensorEx.DBInit();
+	}
+
+	@Override
+	public int dbFree(long dbHandle) {
+		return FingerprintSensorEx.DBFree(dbHandle);
+	}
+
+	@Override
+	public int dbMerge(long dbHandle, byte[] temp1, byte[] temp2, byte[] temp3, byte[] regTemp, int[] regTempLength) {
+		return FingerprintSensorEx.DBMerge(dbHandle, temp1, temp2, temp3, regTemp, regTempLength);
+	}
+
+	@Override
+	public int dbAdd(long dbHandle, int id, byte[] template) {
+		return FingerprintSensorEx.DBAdd(dbHandle, id, template);
+	}
+
+	@Override
+	public int dbDel(long dbHandle, int id) {
+		return FingerprintSensorEx.DBDel(dbHandle, id);
+	}
+
+	@Override
+	public int dbClear(long dbHandle) {
+		return FingerprintSensorEx.DBClear(dbHandle);
+	}
+
+	@Override
+	public int dbCount(long dbHandle) {
+		return FingerprintSensorEx.DBCount(dbHandle);
+	}
+
+	@Override
+	public int dbIdentify(long dbHandle, byte[] template, int[] id, int[] score) {
+		return FingerprintSensorEx.DBIdentify(dbHandle, template, id, score);
+	}
+
+	@Override
+	public int dbMatch(long dbHandle, byte[] temp1, byte[] temp2) {
+		return FingerprintSensorEx.DBMatch(dbHandle, temp1, temp2);
+	}
+
+	@Override
+	public String blobToBase64(byte[] blob, int length) {
+		return FingerprintSensorEx.BlobToBase64(blob, length);
+	}
+
+	@Override
+	public int base64ToBlob(String base64, byte[] blob, int length) {
+		return FingerprintSensorEx.Base64ToBlob(base64, blob, length);
+	}
+}
@@ -0,0 +1,156 @@
+package zk9500scanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class BatchJobTest {
+	private static final int LIBRARY_SIZE = 200;
+	private static final int THREADS = 3;
+
+	/**
+	 * A matcher counting the databases the job allocates and fills, and the databases it searches.
+	 */
+	private static class CountingDriver extends SimulatedSensorDriver {
+		final AtomicInteger inits = new AtomicInteger();
+		final AtomicInteger adds = new AtomicInteger();
+		final Set<Long> searched = ConcurrentHashMap.newKeySet();
+
+		CountingDriver() {
+			super(null, 1, 1);
+		}
+
+		void reset() {
+			inits.set(0);
+			adds.set(0);
+			searched.clear();
+		}
+
+		@Override
+		public long dbInit() {
+			inits.incrementAndGet();
+			return super.dbInit();
+		}
+
+		@Override
+		public int dbAdd(long dbHandle, int id, byte[] template) {
+			adds.incrementAndGet();
+			return super.dbAdd(dbHandle, id, template);
+		}
+
+		@Override
+		public int dbIdentify(long dbHandle, byte[] template, int[] id, int[] score) {
+			searched.add(dbHandle);
+			return super.dbIdentify(dbHandle, template, id, score);
+		}
+	}
+
+	private final CountingDriver driver = new CountingDriver();
+	private final List<JSONObject> results = new CopyOnWriteArrayList<>();
+	private Library library;
+	private byte[][] templates;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		System.setProperty("batch.threads", String.valueOf(THREADS));
+		library = TestLibraries.create(driver);
+		templates = TestLibraries.enroll(library, LIBRARY_SIZE, new Random(5));
+	}
+
+	@AfterEach
+	public void tearDown() {
+		library.close();
+		System.clearProperty("batch.threads");
+	}
+
+	@Test
+	public void workersShareOneCopyOfTheLibrary() throws Exception {
+		BatchJob.Probes probes = new BatchJob.Probes();
+		for (int i = 0; i < LIBRARY_SIZE; i += 2) {
+			probes.accept(1000 + i, templates[i], 0, Library.TEMPLATE_SIZE);
+		}
+
+		driver.reset();
+		BatchJob job = BatchJob.identify(library, probes, null);
+
+		// a library change in progress does not hold the job up
+		synchronized (library) {
+			Event done = run(job);
+			assertFalse(done.getExtra().has("message"));
+			assertEquals(LIBRARY_SIZE / 2, done.getExtra().getInt("found"));
+		}
+
+		// one database with a shard per worker, filled once and searched by every worker
+		assertEquals(THREADS, driver.inits.get());
+		assertEquals(LIBRARY_SIZE, driver.adds.get());
+		assertEquals(THREADS, driver.searched.size());
+		assertFalse(job.isRunning());
+	}
+
+	@Test
+	public void auditFindsFingersEnrolledTwice() throws Exception {
+		Random random = new Random(9);
+		library.addTemplate(1001, TestLibraries.probe(templates[3], random));
+		library.addTemplate(1002, TestLibraries.probe(templates[50], random));
+
+		driver.reset();
+		BatchJob job = BatchJob.audit(library, null);
+		Event done = run(job);
+
+		assertFalse(done.getExtra().has("message"));
+		assertEquals(2, done.getExtra().getInt("found"));
+
+		Set<Set<Integer>> pairs = new HashSet<>();
+		for (JSONObject result : results) {
+			pairs.add(pair(result.getInt("id"), result.getInt("match")));
+		}
+		assertEquals(new HashSet<>(Arrays.asList(pair(4, 1001), pair(51, 1002))), pairs);
+
+		// each audit worker builds a database of its own: batch.threads copies of the library
+		assertEquals(THREADS, driver.inits.get());
+		assertEquals(THREADS * (LIBRARY_SIZE + 2), driver.adds.get());
+		assertFalse(job.isRunning());
+	}
+
+	private static Set<Integer> pair(int id, int match) {
+		return new HashSet<>(Arrays.asList(id, match));
+	}
+
+	/**
+	 * Runs a job to the end, collecting the results of every event.
+	 *
+	 * @return The `batch-done` event.
+	 */
+	private Event run(BatchJob job) throws Exception {
+		CompletableFuture<Event> done = new CompletableFuture<>();
+
+		job.start(event -> {
+			JSONArray batch = event.getExtra().getJSONArray("results");
+			for (int i = 0; i < batch.length(); i++) {
+				results.add(batch.getJSONObject(i));
+			}
+
+			if (event.getName().equals(Event.BATCH_DONE)) {
+				done.complete(event);
+			}
+		}, () -> true);
+
+		return done.get(10, TimeUnit.SECONDS);
+	}
+}
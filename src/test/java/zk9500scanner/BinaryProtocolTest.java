@@ -0,0 +1,60 @@
+package zk9500scanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+public class BinaryProtocolTest {
+	@Test
+	public void decodesWhatItEncodes() {
+		Event event = BinaryProtocol.decode(BinaryProtocol.encode(new Event(Event.BIOMETRIC).id(42).score(80).timestamp(1000).put("device", 1)));
+
+		assertEquals(Event.BIOMETRIC, event.getName());
+		assertEquals(42, event.getId());
+		assertEquals(80, event.getScore());
+		assertEquals(1000, event.getTimestamp());
+		assertEquals(1, event.getExtra().getInt("device"));
+	}
+
+	@Test
+	public void rejectsLengthBeyondFrameBeforeAllocating() {
+		ByteBuffer frame = header();
+		frame.putInt(Integer.MAX_VALUE - 8);
+		frame.flip();
+
+		assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.decode(frame));
+	}
+
+	@Test
+	public void rejectsNegativeLength() {
+		ByteBuffer frame = header();
+		frame.putInt(-1);
+		frame.flip();
+
+		assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.decode(frame));
+	}
+
+	@Test
+	public void rejectsExtrasLengthBeyondFrame() {
+		ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE + 4);
+		frame.put(header().flip());
+		frame.putInt(0);
+		frame.putInt(1 << 30);
+		frame.flip();
+
+		assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.decode(frame));
+	}
+
+	/**
+	 * A frame header without flags, up to the payload length.
+	 */
+	private static ByteBuffer header() {
+		ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE);
+		frame.put((byte) BinaryProtocol.VERSION).put((byte) BinaryProtocol.getType(Event.METRICS)).putShort((short) 0);
+		frame.putInt(0).putInt(0).putLong(0);
+		return frame;
+	}
+}
@@ -0,0 +1,70 @@
+package zk9500scanner;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CaptureFileTest {
+	private static final int WIDTH = 4;
+	private static final int HEIGHT = 3;
+
+	/** Offset of the template length of the first record: the header, then the delay and fake status. */
+	private static final int FIRST_LENGTH = 16 + 8;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void readsEveryRecord() throws Exception {
+		Path path = write(3);
+		CaptureFile capture = CaptureFile.read(path);
+
+		assertEquals(3, capture.getRecords().size());
+		assertEquals(2, capture.getRecords().get(2).delayMillis);
+		assertArrayEquals(new byte[] { 2, 2, 2 }, capture.getRecords().get(2).template);
+	}
+
+	@Test
+	public void rejectsTemplateLengthOutOfRange() throws Exception {
+		for (int length : new int[] { -1, Library.TEMPLATE_SIZE + 1, Integer.MAX_VALUE }) {
+			Path path = write(1);
+
+			try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+				file.seek(FIRST_LENGTH);
+				file.writeInt(length);
+			}
+
+			assertThrows(IOException.class, () -> CaptureFile.read(path));
+		}
+	}
+
+	@Test
+	public void rejectsTruncatedRecord() throws Exception {
+		Path path = write(2);
+		byte[] bytes = Files.readAllBytes(path);
+		Files.write(path, Arrays.copyOf(bytes, bytes.length - 1));
+
+		assertThrows(IOException.class, () -> CaptureFile.read(path));
+	}
+
+	private Path write(int records) throws IOException {
+		Path path = Files.createTempFile(dir, "capture", ".zkcap");
+
+		try (CaptureFile.Writer writer = new CaptureFile.Writer(path, WIDTH, HEIGHT)) {
+			for (int i = 0; i < records; i++) {
+				writer.append(i, 31, new byte[] { (byte) i, (byte) i, (byte) i }, 3, new byte[WIDTH * HEIGHT]);
+			}
+		}
+
+		return path;
+	}
+}
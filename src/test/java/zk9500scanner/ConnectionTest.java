@@ -0,0 +1,32 @@
+package zk9500scanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+public class ConnectionTest {
+	@Test
+	public void fullQueueDropsStateBeforeBiometrics() {
+		Connection connection = new Connection(null, true, Connection.Policy.COALESCE, 2, 5000);
+		long dropped = Connection.getTotalDropped();
+
+		connection.enqueue(outbound(new Event(Event.BIOMETRIC).id(1)));
+		connection.enqueue(outbound(new Event(Event.BATCH_PROGRESS)));
+		connection.enqueue(outbound(new Event(Event.REGISTRATION_SUCCESS).id(2)));
+
+		assertEquals(2, connection.getDepth());
+		assertEquals(dropped + 1, Connection.getTotalDropped());
+
+		// nothing left to drop but preserved events: the newcomer goes instead
+		connection.enqueue(outbound(new Event(Event.DEVICE_LOST)));
+
+		assertEquals(2, connection.getDepth());
+		assertEquals(dropped + 2, Connection.getTotalDropped());
+	}
+
+	private static Connection.Outbound outbound(Event event) {
+		return new Connection.Outbound(event, Collections.emptyList());
+	}
+}
@@ -0,0 +1,141 @@
+package zk9500scanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.zkteco.biometric.FingerprintSensorErrorCode;
+
+public class DeviceSupervisorTest {
+	private static final int REINIT_AFTER = 2;
+
+	/**
+	 * Sensors that are enumerated while their index is below {@link #connected}; polls of a sensor at a higher index fail as unplugged.
+	 */
+	private static class PluggedDriver extends SimulatedSensorDriver {
+		final Map<Long, Integer> indices = new ConcurrentHashMap<>();
+		volatile int connected;
+
+		PluggedDriver(int connected) {
+			super(null, 1, 2);
+			this.connected = connected;
+		}
+
+		@Override
+		public int getDeviceCount() {
+			return Math.min(connected, super.getDeviceCount());
+		}
+
+		@Override
+		public long openDevice(int index) {
+			if (index >= connected) {
+				return 0;
+			}
+
+			long handle = super.openDevice(index);
+			indices.put(handle, index);
+			return handle;
+		}
+
+		@Override
+		public int acquireFingerprint(long deviceHandle, byte[] imgBuffer, byte[] template, int[] templateLength) {
+			Integer index = indices.get(deviceHandle);
+
+			if (index != null && index >= connected) {
+				return FingerprintSensorErrorCode.ZKFP_ERR_NO_DEVICE;
+			}
+
+			return super.acquireFingerprint(deviceHandle, imgBuffer, template, templateLength);
+		}
+	}
+
+	private final List<Event> events = new CopyOnWriteArrayList<>();
+	private PluggedDriver driver;
+	private DeviceManager devices;
+	private DeviceSupervisor supervisor;
+
+	@BeforeEach
+	public void setUp() {
+		System.setProperty("device.backoff.min", "5");
+		System.setProperty("device.backoff.max", "20");
+		System.setProperty("device.reinit.after", String.valueOf(REINIT_AFTER));
+		System.setProperty("scan.interval.max", "20");
+
+		driver = new PluggedDriver(2);
+		devices = new DeviceManager(driver);
+		supervisor = new DeviceSupervisor(new SocketServer(0), devices);
+		devices.onLost = supervisor::lost;
+		supervisor.onEvent = events::add;
+	}
+
+	@AfterEach
+	public void tearDown() {
+		supervisor.stop();
+		devices.close();
+		System.clearProperty("device.backoff.min");
+		System.clearProperty("device.backoff.max");
+		System.clearProperty("device.reinit.after");
+		System.clearProperty("scan.interval.max");
+	}
+
+	@Test
+	public void oneOfTwoLostSensorsComesBack() throws Exception {
+		supervisor.start();
+		waitFor(() -> devices.getScanners().size() == 2 && devices.isOpen(), "both sensors open");
+
+		// both unplugged until the SDK is reinitialized, then only the first comes back
+		driver.connected = 0;
+		waitFor(() -> devices.getScanners().isEmpty(), "SDK reinitialized");
+		driver.connected = 1;
+		waitFor(() -> count(Event.DEVICE_RESTORED) == 1, "first sensor restored");
+
+		Scanner restored = devices.getScanner(0);
+		Thread.sleep(200);
+
+		// the working sensor is not torn down again for the one that is gone
+		assertSame(restored, devices.getScanner(0));
+		assertTrue(restored.isOpen());
+		assertEquals(1, devices.getScanners().size());
+		assertEquals(0, supervisor.toJSON().length());
+		assertEquals(0, events.get(events.size() - 1).getExtra().getInt("device"));
+
+		// plugged in again later
+		driver.connected = 2;
+		waitFor(() -> devices.getScanners().size() == 2 && count(Event.DEVICE_RESTORED) == 2, "second sensor picked up");
+		assertSame(restored, devices.getScanner(0));
+		assertTrue(devices.getScanner(1).isOpen());
+	}
+
+	private int count(String name) {
+		int count = 0;
+
+		for (Event event : events) {
+			if (event.getName().equals(name)) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	private static void waitFor(BooleanSupplier condition, String what) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+		while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+
+		assertTrue(condition.getAsBoolean(), what);
+	}
+}
@@ -0,0 +1,52 @@
+package zk9500scanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class EventJournalTest {
+	@TempDir
+	Path dir;
+
+	@Test
+	public void flushCommitsEveryAppendedEvent() throws Exception {
+		EventJournal journal = EventJournal.open(dir, 4096, 64, true, Collections.singleton(Event.BIOMETRIC));
+
+		// enough events to fill several segments
+		for (int i = 1; i <= 100; i++) {
+			assertEquals(i, journal.append(new Event(Event.BIOMETRIC).id(i).score(90)));
+		}
+
+		assertEquals(100, journal.flush());
+
+		EventJournal reopened = EventJournal.open(dir, 4096, 64, true, Collections.singleton(Event.BIOMETRIC));
+		assertEquals(100, reopened.getLast());
+		assertEquals(101, reopened.append(new Event(Event.BIOMETRIC).id(101)));
+	}
+
+	@Test
+	public void readStopsAtTheLastSequenceWanted() throws Exception {
+		EventJournal journal = EventJournal.open(dir, 4096, 64, true, Collections.singleton(Event.BIOMETRIC));
+
+		for (int i = 1; i <= 50; i++) {
+			journal.append(new Event(Event.BIOMETRIC).id(i));
+		}
+
+		List<ByteBuffer> records = new ArrayList<>();
+		assertEquals(30, journal.read(10, 30, 1000, records));
+		assertEquals(21, records.size());
+		assertEquals(10, BinaryProtocol.decode(records.get(0)).getId());
+
+		// a second read continues where the first one stopped, with what is left of the maximum
+		assertEquals(35, journal.read(31, 50, 5, records));
+		assertEquals(26, records.size());
+		assertEquals(35, BinaryProtocol.decode(records.get(25)).getId());
+	}
+}
@@ -0,0 +1,64 @@
+package zk9500scanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class HoldCacheTest {
+	private Library library;
+	private HoldCache holds;
+	private byte[] finger;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		library = TestLibraries.create();
+		holds = new HoldCache(library, 60000, 8);
+		finger = TestLibraries.enroll(library, 1, new Random(11))[0];
+	}
+
+	@AfterEach
+	public void tearDown() {
+		holds.close();
+		library.close();
+	}
+
+	@Test
+	public void badCaptureThenGoodCaptureOfSameFinger() throws Exception {
+		int[] match = new int[2];
+
+		// placed badly: too little of the finger to identify it
+		byte[] bad = finger.clone();
+		for (int i = 0; i < Library.TEMPLATE_SIZE * 32 / 100; i++) {
+			bad[i] = (byte) ~bad[i];
+		}
+		Scan first = scan(bad);
+		assertFalse(holds.isRepeat(first));
+		assertFalse(library.identify(bad, match));
+		assertFalse(holds.addFailure(first), "first failure of a touch is reported");
+		assertTrue(holds.addFailure(scan(bad)), "same failure of the same touch is not reported again");
+
+		// adjusted without lifting: close enough to the bad capture to match it 1:1, and now identified
+		byte[] good = bad.clone();
+		System.arraycopy(finger, 0, good, 0, Library.TEMPLATE_SIZE * 10 / 100);
+		assertTrue(library.match(bad, good) > 0);
+
+		Scan second = scan(good);
+		assertFalse(holds.isRepeat(second), "an unidentified touch suppresses a capture that identifies");
+		assertTrue(library.identify(good, match));
+		assertEquals(1, match[0]);
+		holds.add(second, new Event(Event.BIOMETRIC).id(match[0]).score(match[1]));
+
+		// from then on the finger is held
+		assertTrue(holds.isRepeat(scan(good)));
+	}
+
+	private static Scan scan(byte[] template) {
+		return new Scan(0, template, template.length, Scan.FAKE_STATUS_UNCHECKED, System.nanoTime());
+	}
+}
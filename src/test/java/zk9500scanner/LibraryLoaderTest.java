@@ -0,0 +1,102 @@
+package zk9500scanner;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class LibraryLoaderTest {
+	private static final int IN_FLIGHT = 4;
+
+	/**
+	 * A matcher whose database adds wait until released, so the loader's pipeline fills up.
+	 */
+	private static class StalledDriver extends SimulatedSensorDriver {
+		final CountDownLatch adding = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		StalledDriver() {
+			super(null, 1, 1);
+		}
+
+		@Override
+		public int dbAdd(long dbHandle, int id, byte[] template) {
+			adding.countDown();
+
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+
+			return super.dbAdd(dbHandle, id, template);
+		}
+	}
+
+	@AfterEach
+	public void clearProperties() {
+		System.clearProperty("library.init.inflight");
+	}
+
+	@Test
+	public void abortReleasesProducerBlockedInMiddleOfChunk() throws Exception {
+		System.setProperty("library.init.inflight", String.valueOf(IN_FLIGHT));
+		StalledDriver driver = new StalledDriver();
+		LibraryLoader loader = new LibraryLoader(new DatabaseHandle(driver, 1), null, 100);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		byte[] template = new byte[Library.TEMPLATE_SIZE];
+
+		// a chunk larger than the pipeline: the producer blocks once IN_FLIGHT templates are waiting
+		Thread producer = new Thread(() -> {
+			try {
+				for (int id = 1; id <= 100; id++) {
+					loader.accept(id, template, 0, template.length);
+				}
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		});
+		producer.start();
+
+		assertTrue(driver.adding.await(5, TimeUnit.SECONDS));
+		waitUntilBlocked(producer);
+
+		loader.abort();
+		producer.join(TimeUnit.SECONDS.toMillis(5));
+
+		assertFalse(producer.isAlive(), "producer still blocked after abort");
+		assertInstanceOf(CancellationException.class, failure.get());
+		assertThrows(CancellationException.class, () -> loader.accept(101, template, 0, template.length));
+
+		// nothing is pending any more, so a flush returns at once
+		Thread flusher = new Thread(() -> {
+			try {
+				loader.flush();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		flusher.start();
+		flusher.join(TimeUnit.SECONDS.toMillis(5));
+		assertFalse(flusher.isAlive(), "flush still waiting after abort");
+	}
+
+	private static void waitUntilBlocked(Thread thread) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+		while (thread.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+
+		assertTrue(thread.getState() == Thread.State.WAITING, "producer never blocked");
+	}
+}
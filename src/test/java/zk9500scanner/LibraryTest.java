@@ -0,0 +1,137 @@
+package zk9500scanner;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class LibraryTest {
+	private static final byte REFUSED = 0x5a;
+
+	private Library library;
+	private byte[] finger;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		library = TestLibraries.create();
+
+		// stored templates are kept without their trailing zeros
+		finger = TestLibraries.template(new Random(3));
+		finger[Library.TEMPLATE_SIZE - 1] = 0;
+		library.addTemplate(7, finger);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		library.close();
+	}
+
+	@Test
+	public void verifiesWithoutSnapshot() throws Exception {
+		byte[] stored = new byte[Library.TEMPLATE_SIZE];
+
+		assertTrue(library.getTemplate(7, stored));
+		assertArrayEquals(finger, stored);
+		assertTrue(library.verify(7, finger) > 0);
+
+		library.removeTemplate(7);
+		assertFalse(library.getTemplate(7, stored));
+		assertThrows(Exception.class, () -> library.verify(7, finger));
+	}
+
+	@Test
+	public void verifyDoesNotWaitForLibraryChanges() throws Exception {
+		// a library change in progress holds the library's monitor
+		synchronized (library) {
+			CompletableFuture<Integer> score = CompletableFuture.supplyAsync(() -> {
+				try {
+					return library.verify(7, finger);
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+
+			assertTrue(score.get(5, TimeUnit.SECONDS) > 0);
+		}
+	}
+
+	@Test
+	public void failedIdentifyWaitsForOtherShards() throws Exception {
+		Thread caller = Thread.currentThread();
+		AtomicBoolean searching = new AtomicBoolean();
+		CountDownLatch started = new CountDownLatch(1);
+
+		// the caller's own shard fails while a pool thread is still searching another
+		SimulatedSensorDriver driver = new SimulatedSensorDriver(null, 1, 1) {
+			@Override
+			public int dbIdentify(long dbHandle, byte[] template, int[] id, int[] score) {
+				try {
+					if (Thread.currentThread() == caller) {
+						started.await(5, TimeUnit.SECONDS);
+						throw new IllegalStateException("search failed");
+					}
+
+					searching.set(true);
+					started.countDown();
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				searching.set(false);
+				return super.dbIdentify(dbHandle, template, id, score);
+			}
+		};
+
+		System.setProperty("library.shards", "2");
+		Library sharded = TestLibraries.create(driver);
+
+		try {
+			assertThrows(IllegalStateException.class, () -> sharded.identify(finger, new int[2]));
+			assertFalse(searching.get(), "identify returned while a shard was still searched");
+		} finally {
+			sharded.close();
+			System.clearProperty("library.shards");
+		}
+	}
+
+	@Test
+	public void refusedUpdateKeepsPreviousEnrollment() throws Exception {
+		SimulatedSensorDriver driver = new SimulatedSensorDriver(null, 1, 1) {
+			@Override
+			public int dbAdd(long dbHandle, int id, byte[] template) {
+				return template[0] == REFUSED ? -1 : super.dbAdd(dbHandle, id, template);
+			}
+		};
+
+		Library refusing = TestLibraries.create(driver);
+
+		try {
+			refusing.addTemplate(7, finger);
+
+			byte[] refused = finger.clone();
+			refused[0] = REFUSED;
+			assertThrows(Exception.class, () -> refusing.updateTemplate(7, refused));
+
+			byte[] stored = new byte[Library.TEMPLATE_SIZE];
+			int[] match = new int[2];
+			assertTrue(refusing.getTemplate(7, stored));
+			assertArrayEquals(finger, stored);
+			assertTrue(refusing.identify(finger, match));
+			assertEquals(7, match[0]);
+		} finally {
+			refusing.close();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package zk9500scanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class RegistrationManagerTest {
+	private static final long HOLD_TTL = 500;
+
+	private Library library;
+	private HoldCache holds;
+	private RegistrationManager registrations;
+
+	@BeforeEach
+	public void setUp() {
+		library = TestLibraries.create();
+		holds = new HoldCache(library, HOLD_TTL, 8);
+		registrations = new RegistrationManager(library, holds, 60000);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		registrations.close();
+		holds.close();
+		library.close();
+	}
+
+	@Test
+	public void heldFingerIsOneSample() throws Exception {
+		byte[] finger = TestLibraries.template(new Random(7));
+		registrations.start(0, 42, null);
+
+		Event first = registrations.process(registrations.get(0), scan(finger));
+		assertEquals(Event.REGISTRATION_ONGOING, first.getName());
+		assertEquals(1, first.getExtra().getInt("step"));
+
+		// the finger stays on the sensor, captured every few milliseconds
+		for (int i = 0; i < 10; i++) {
+			assertNull(registrations.process(registrations.get(0), scan(finger)));
+		}
+
+		// lifted and presented again
+		Thread.sleep(HOLD_TTL * 3);
+		Event second = registrations.process(registrations.get(0), scan(finger));
+		assertEquals(Event.REGISTRATION_ONGOING, second.getName());
+		assertEquals(2, second.getExtra().getInt("step"));
+	}
+
+	private static Scan scan(byte[] template) {
+		return new Scan(0, template, template.length, Scan.FAKE_STATUS_UNCHECKED, System.nanoTime());
+	}
+}
@@ -0,0 +1,167 @@
+package zk9500scanner;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The per-capture work of the `process` stage before an event is built, as in the `ScanPathBenchmark`: a pooled {@link Scan}, the finger-hold check and for a new
+ * finger the 1:N identification, or the 1:1 verification of a claimed ID. A held finger is also passed through the {@link ScanPipeline}, from
+ * {@link ScanPipeline#submit} to a `process` stage that publishes nothing. The bytes the test and stage threads allocate are read from the
+ * {@link com.sun.management.ThreadMXBean} once the path is warmed up.
+ */
+public class ScanPathAllocationTest {
+	private static final int LIBRARY_SIZE = 100;
+	private static final int CLAIMED_ID = 4242;
+	private static final int PROBES = 64;
+	private static final int WARMUP = 20_000;
+	private static final int MEASURED = 10_000;
+
+	/** Bytes per capture allowed for measurement noise, as in the benchmarks' allocation check. */
+	private static final double ALLOCATION_NOISE = 16;
+
+	private Library library;
+	private HoldCache holds;
+	private ObjectPool<Scan> scans;
+	private byte[][] probes;
+	private byte[] held;
+	private final int[] match = new int[2];
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		library = TestLibraries.create();
+
+		Random random = new Random(42);
+		byte[][] templates = TestLibraries.enroll(library, LIBRARY_SIZE, random);
+		library.addTemplate(CLAIMED_ID, templates[0]);
+
+		probes = new byte[PROBES][];
+		for (int i = 0; i < PROBES; i++) {
+			probes[i] = TestLibraries.probe(templates[random.nextInt(LIBRARY_SIZE)], random);
+		}
+
+		// one finger resting on device 1, new fingers on device 0
+		scans = Scan.newPool(8);
+		holds = new HoldCache(library, TimeUnit.HOURS.toMillis(1), 8);
+		held = TestLibraries.probe(templates[0], random);
+		holds.add(new Scan(1, held, held.length, Scan.FAKE_STATUS_UNCHECKED, System.nanoTime()), null);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		holds.close();
+		library.close();
+	}
+
+	@Test
+	public void heldFingerDoesNotAllocate() throws Exception {
+		assertAllocationFree(i -> {
+			Scan scan = Scan.obtain(scans, 1, held, held.length, Scan.FAKE_STATUS_UNCHECKED, System.nanoTime());
+			boolean repeat = holds.isRepeat(scan);
+			scan.recycle();
+			return repeat ? 1 : 0;
+		});
+	}
+
+	@Test
+	public void heldFingerThroughPipelineDoesNotAllocate() throws Exception {
+		ScanPipeline pipeline = new ScanPipeline(scan -> {
+			holds.isRepeat(scan);
+			return null;
+		}, event -> {
+		}, device -> null);
+
+		try {
+			assertAllocationFree(i -> {
+				pipeline.submit(Scan.obtain(scans, 1, held, held.length, Scan.FAKE_STATUS_UNCHECKED, System.nanoTime()));
+
+				while (!pipeline.isIdle()) {
+					Thread.yield();
+				}
+				return 1;
+			});
+		} finally {
+			pipeline.close();
+		}
+	}
+
+	@Test
+	public void newFingerDoesNotAllocate() throws Exception {
+		assertAllocationFree(i -> {
+			Scan scan = Scan.obtain(scans, 0, probes[i % PROBES], Library.TEMPLATE_SIZE, Scan.FAKE_STATUS_UNCHECKED, System.nanoTime());
+			int id = 0;
+
+			if (!holds.isRepeat(scan) && library.identify(scan.getTemplate(), match)) {
+				id = match[0];
+			}
+
+			scan.recycle();
+			return id;
+		});
+	}
+
+	@Test
+	public void claimVerificationDoesNotAllocate() throws Exception {
+		assertAllocationFree(i -> {
+			Scan scan = Scan.obtain(scans, 0, probes[i % PROBES], Library.TEMPLATE_SIZE, Scan.FAKE_STATUS_UNCHECKED, System.nanoTime());
+			int score = library.verify(CLAIMED_ID, scan.getTemplate());
+			scan.recycle();
+			return score;
+		});
+	}
+
+	private interface Capture {
+		int process(int i) throws Exception;
+	}
+
+	private static void assertAllocationFree(Capture capture) throws Exception {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean, "thread allocation counters unavailable");
+
+		com.sun.management.ThreadMXBean counters = (com.sun.management.ThreadMXBean) threads;
+		assumeTrue(counters.isThreadAllocatedMemorySupported(), "thread allocation counters unavailable");
+		counters.setThreadAllocatedMemoryEnabled(true);
+
+		int sink = 0;
+
+		for (int i = 0; i < WARMUP; i++) {
+			sink += capture.process(i);
+		}
+
+		long[] ids = threadIds();
+		long before = allocatedBytes(counters, ids);
+		for (int i = 0; i < MEASURED; i++) {
+			sink += capture.process(i);
+		}
+		long allocated = allocatedBytes(counters, ids) - before;
+
+		double perCapture = (double) allocated / MEASURED;
+		assertTrue(perCapture <= ALLOCATION_NOISE, String.format("%.1f B allocated per capture (%d)", perCapture, sink));
+	}
+
+	/**
+	 * @return The test thread and the threads of the pipeline stages.
+	 */
+	private static long[] threadIds() {
+		return Thread.getAllStackTraces().keySet().stream()
+				.filter(thread -> thread == Thread.currentThread() || thread.isAlive() && thread.getName().startsWith("pipeline-"))
+				.mapToLong(Thread::getId).toArray();
+	}
+
+	private static long allocatedBytes(com.sun.management.ThreadMXBean counters, long[] ids) {
+		long total = 0;
+
+		for (long id : ids) {
+			total += Math.max(0, counters.getThreadAllocatedBytes(id));
+		}
+
+		return total;
+	}
+}
@@ -0,0 +1,72 @@
+package zk9500scanner;
+
+import java.util.Random;
+
+/**
+ * Libraries for tests: backed by the simulated matcher, without a snapshot on disk, and filled with random templates.
+ */
+final class TestLibraries {
+	private TestLibraries() {
+	}
+
+	/**
+	 * @return An empty library on a simulated matcher.
+	 */
+	static Library create() {
+		return create(new SimulatedSensorDriver(null, 1, 1));
+	}
+
+	/**
+	 * @param driver The simulated matcher, e.g. one that fails on purpose.
+	 * @return An empty library on the driver, without a snapshot.
+	 */
+	static Library create(SimulatedSensorDriver driver) {
+		System.setProperty("library.snapshot", "");
+
+		try {
+			return new Library(driver);
+		} finally {
+			System.clearProperty("library.snapshot");
+		}
+	}
+
+	/**
+	 * Enrolls random templates under the IDs 1 to {@code count}.
+	 *
+	 * @return The templates, the one of ID {@code i + 1} at index {@code i}.
+	 */
+	static byte[][] enroll(Library library, int count, Random random) throws Exception {
+		byte[][] templates = new byte[count][];
+
+		for (int i = 0; i < count; i++) {
+			templates[i] = template(random);
+			library.addTemplate(i + 1, templates[i]);
+		}
+
+		return templates;
+	}
+
+	/**
+	 * @return A random template, {@link Library#TEMPLATE_SIZE} bytes.
+	 */
+	static byte[] template(Random random) {
+		byte[] template = new byte[Library.TEMPLATE_SIZE];
+		random.nextBytes(template);
+		return template;
+	}
+
+	/**
+	 * @return Another capture of an enrolled finger: the template with about one byte in ten changed, which the simulated matcher still matches.
+	 */
+	static byte[] probe(byte[] enrolled, Random random) {
+		byte[] probe = enrolled.clone();
+
+		for (int i = 0; i < probe.length; i++) {
+			if (random.nextDouble() < 0.1) {
+				probe[i] ^= (byte) (1 + random.nextInt(255));
+			}
+		}
+
+		return probe;
+	}
+}